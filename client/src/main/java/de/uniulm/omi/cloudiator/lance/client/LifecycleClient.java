@@ -191,6 +191,16 @@ public final class LifecycleClient {
         currentRegistry.addComponent(myInstanceId, zookeeperComponentId, componentName);
     }
 
+    /**
+     * moves all registry data of the application instance to another shard; 
+     * requires a sharded registry. Deployment contexts created afterwards 
+     * direct their components to the new shard.
+     */
+    public void migrateApplicationInstance(ApplicationInstanceId appInstanceId, int shard)
+        throws RegistrationException {
+        RegistryFactory.migrateApplicationInstance(currentRegistry, appInstanceId, shard);
+    }
+
     public DeploymentContext initDeploymentContext(ApplicationId appId,
         ApplicationInstanceId appInstanceId) {
         return new DeploymentContext(appId, appInstanceId, currentRegistry);
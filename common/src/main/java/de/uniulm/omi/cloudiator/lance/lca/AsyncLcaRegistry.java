@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+
+/** 
+ * non-blocking counterpart of the operations of LcaRegistry that are 
+ * used while components are running. The methods return immediately; 
+ * the futures fail with a RegistrationException if the operation fails. 
+ * Futures may be completed on threads of the registry implementation, 
+ * so that dependent actions have to return quickly or be handed over 
+ * to an executor of their own.
+ * 
+ * @see LcaRegistry#async()
+ */
+public interface AsyncLcaRegistry {
+    
+    public CompletableFuture<Void> renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis);
+    public CompletableFuture<Boolean> removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId);
+    public CompletableFuture<Void> addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value);
+    public CompletableFuture<Void> addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties);
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> dumpComponent(ApplicationInstanceId instId, ComponentId compId);
+    public CompletableFuture<ComponentDump> dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId);
+    public CompletableFuture<ComponentDelta> dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion);
+    public CompletableFuture<ComponentSnapshot> snapshotComponent(ApplicationInstanceId instId, ComponentId compId);
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query);
+    public CompletableFuture<ComponentPage> queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize);
+    public CompletableFuture<String> getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name);
+}
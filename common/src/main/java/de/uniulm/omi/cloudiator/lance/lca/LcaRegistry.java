@@ -25,6 +25,12 @@ import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
 
 /** interface to the global registry where 
@@ -43,10 +49,90 @@ public interface LcaRegistry extends Serializable {
     public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RegistrationException;
     public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RegistrationException;
     public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException;
+    /**
+     * attaches a lease to the instance or renews it. The registry removes the 
+     * instance once the lease has not been renewed for leaseMillis. Instances 
+     * without a lease are only removed explicitly or after they have been DESTROYED 
+     * (see InstanceLease).
+     * @throws RegistrationException if the instance is not known (any longer)
+     */
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RegistrationException;
+    /**
+     * removes the instance together with all of its properties.
+     * @return false if the instance was not known
+     * @throws RegistrationException
+     */
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException;
     void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RegistrationException;
+    /**
+     * sets all given properties of a component instance with as few 
+     * interactions with the registry as the implementation allows. 
+     * @throws RegistrationException
+     */
+    void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) throws RegistrationException;
+    /**
+     * same as addComponentProperties for a single instance, but for 
+     * several instances of the same component at once.
+     * @throws RegistrationException
+     */
+    void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RegistrationException;
     public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException;
+    /**
+     * @return the same content as dumpComponent together with the version at which 
+     * the content has been read. The version changes whenever an instance of this 
+     * component is added, removed, or changes its properties.
+     * @throws RegistrationException
+     */
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException;
+    /**
+     * @param sinceVersion the version of a dump or delta previously read for this component
+     * @return the instances added, changed, or removed after sinceVersion. If the registry 
+     * cannot tell, the delta is complete and holds the same content as dumpComponentWithVersion.
+     * @throws RegistrationException
+     */
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RegistrationException;
+    /**
+     * @return the same content as dumpComponentWithVersion in compact form. Registries 
+     * may hand out the same snapshot object to all readers of a version.
+     * @throws RegistrationException
+     */
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException;
+    /**
+     * @return the instances of the component that match the query, each reduced to 
+     * the keys selected by the query. Implementations evaluate the query as close 
+     * to the stored data as possible so that only the result has to be transferred.
+     * @throws RegistrationException
+     */
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RegistrationException;
+    /**
+     * reads the result of queryComponent in pages, so that neither the registry 
+     * nor the reader has to hold the entire component at once.
+     * @param continuation null for the first page; the continuation token of the previous page otherwise
+     * @param pageSize the maximum number of instances on the page
+     * @return the instances that match the query and follow the token, sorted by instance id
+     * @throws RegistrationException
+     */
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) throws RegistrationException;
     public String getComponentProperty(ApplicationInstanceId appInstId,
             ComponentId compId, ComponentInstanceId myId, String name) throws RegistrationException;
     public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RegistrationException;
     boolean applicationComponentExists(ApplicationInstanceId appInstId, ComponentId compId) throws RegistrationException;
+    
+    /**
+     * registers a listener that is informed whenever an instance of the given 
+     * component is added or changes its properties.
+     * 
+     * @return true if the registry will notify the listener; false if this 
+     * registry does not support notifications and callers have to poll.
+     * @throws RegistrationException
+     */
+    public boolean addComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException;
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException;
+    
+    /**
+     * @return a view on this registry whose operations do not block the caller. 
+     * Implementations that cannot avoid blocking run the operations on a small 
+     * pool of threads shared by all callers.
+     */
+    public AsyncLcaRegistry async();
 }
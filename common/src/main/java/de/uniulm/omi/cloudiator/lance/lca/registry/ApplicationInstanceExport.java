@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** 
+ * everything a registry holds for one application instance: its 
+ * components and all their instances with their properties. Used to 
+ * move an application instance from one registry to another.
+ */
+public final class ApplicationInstanceExport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final ApplicationInstanceId instId;
+    private final ApplicationId appId;
+    private final String name;
+    private final Map<ComponentId, String> componentNames;
+    private final Map<ComponentId, Map<ComponentInstanceId, Map<String, String>>> instances;
+    
+    /** 
+     * @param appIdParam null if the registry does not store it 
+     * @param instancesParam the instances per component; has to contain every component of componentNamesParam 
+     */
+    public ApplicationInstanceExport(ApplicationInstanceId instIdParam, ApplicationId appIdParam, String nameParam, 
+                Map<ComponentId, String> componentNamesParam, Map<ComponentId, Map<ComponentInstanceId, Map<String, String>>> instancesParam) {
+        instId = instIdParam;
+        appId = appIdParam;
+        name = nameParam;
+        componentNames = componentNamesParam;
+        instances = instancesParam;
+    }
+    
+    public ApplicationInstanceId getApplicationInstanceId() {
+        return instId;
+    }
+    
+    /** @return null if the exporting registry does not store it */
+    public ApplicationId getApplicationId() {
+        return appId;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /** @return the components and their names */
+    public Map<ComponentId, String> getComponentNames() {
+        return Collections.unmodifiableMap(componentNames);
+    }
+    
+    public Map<ComponentInstanceId, Map<String, String>> getInstances(ComponentId cid) {
+        Map<ComponentInstanceId, Map<String, String>> map = instances.get(cid);
+        if(map == null) 
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(map);
+    }
+    
+    /**
+     * adds the application instance to the given registry. Components and 
+     * instances that already exist there are kept and receive the exported 
+     * properties, so that an interrupted import can be repeated.
+     */
+    public void importInto(LcaRegistry reg) throws RegistrationException {
+        reg.addApplicationInstance(instId, appId, name);
+        for(Entry<ComponentId, String> component : componentNames.entrySet()) {
+            ComponentId cid = component.getKey();
+            reg.addComponent(instId, cid, component.getValue());
+            Map<ComponentInstanceId, Map<String, String>> toImport = getInstances(cid);
+            if(toImport.isEmpty()) 
+                continue;
+            Map<ComponentInstanceId, Map<String, String>> existing = reg.dumpComponent(instId, cid);
+            for(ComponentInstanceId cinstId : toImport.keySet()) {
+                if(! existing.containsKey(cinstId)) {
+                    reg.addComponentInstance(instId, cid, cinstId);
+                }
+            }
+            reg.addComponentProperties(instId, cid, toImport);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ApplicationInstanceExport(" + instId + ", " + name + "): " + componentNames.keySet();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** 
+ * the changes of a component between two versions as stored in the registry. 
+ * If the registry cannot tell which instances have changed since the requested 
+ * version, the delta is complete and contains all instances of the component. 
+ */
+public final class ComponentDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final long sinceVersion;
+    private final long version;
+    private final boolean complete;
+    private final Map<ComponentInstanceId, Map<String, String>> updated;
+    private final Set<ComponentInstanceId> removed;
+    
+    public ComponentDelta(long sinceVersionParam, long versionParam, Map<ComponentInstanceId, Map<String, String>> updatedParam, 
+                Set<ComponentInstanceId> removedParam) {
+        this(sinceVersionParam, versionParam, false, updatedParam, removedParam);
+    }
+    
+    private ComponentDelta(long sinceVersionParam, long versionParam, boolean completeParam, 
+                Map<ComponentInstanceId, Map<String, String>> updatedParam, Set<ComponentInstanceId> removedParam) {
+        sinceVersion = sinceVersionParam;
+        version = versionParam;
+        complete = completeParam;
+        updated = updatedParam;
+        removed = removedParam;
+    }
+    
+    /** @return a delta that replaces whatever the reader knows with the given dump */
+    public static ComponentDelta complete(long sinceVersion, ComponentDump dump) {
+        return new ComponentDelta(sinceVersion, dump.getVersion(), true, 
+                    dump.getInstances(), Collections.<ComponentInstanceId>emptySet());
+    }
+    
+    /** @return a delta stating that nothing has changed since the given version */
+    public static ComponentDelta unchanged(long version) {
+        return new ComponentDelta(version, version, false, 
+                    Collections.<ComponentInstanceId, Map<String, String>>emptyMap(), Collections.<ComponentInstanceId>emptySet());
+    }
+    
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    /** @return true if this delta contains all instances of the component rather than the changed ones */
+    public boolean isComplete() {
+        return complete;
+    }
+    
+    public boolean isEmpty() {
+        return !complete && updated.isEmpty() && removed.isEmpty();
+    }
+    
+    /** @return the instances added or changed since the requested version with all their properties */
+    public Map<ComponentInstanceId, Map<String, String>> getUpdated() {
+        return Collections.unmodifiableMap(updated);
+    }
+    
+    public Set<ComponentInstanceId> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+    
+    /** 
+     * @param base the dump this delta has been requested for
+     * @return a dump at the version of this delta; base itself if nothing has changed 
+     */
+    public ComponentDump applyTo(ComponentDump base) {
+        if(complete) 
+            return base.getVersion() == version ? base : new ComponentDump(version, updated);
+        if(base.getVersion() != sinceVersion) 
+            throw new IllegalArgumentException("delta since " + sinceVersion + " does not apply to version " + base.getVersion());
+        if(isEmpty() && version == sinceVersion) 
+            return base;
+        Map<ComponentInstanceId, Map<String, String>> instances = new HashMap<>(base.getInstances());
+        instances.keySet().removeAll(removed);
+        instances.putAll(updated);
+        return new ComponentDump(version, instances);
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentDelta(" + sinceVersion + "->" + version + (complete ? ", complete" : "") + "): +" + updated + " -" + removed;
+    }
+}
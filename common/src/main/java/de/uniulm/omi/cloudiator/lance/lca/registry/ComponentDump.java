@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** 
+ * the content of a component as stored in the registry together 
+ * with the registry's version of that content. Two dumps of the same 
+ * component with equal versions have equal content.
+ */
+public final class ComponentDump implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final long version;
+    private final Map<ComponentInstanceId, Map<String, String>> instances;
+    
+    public ComponentDump(long versionParam, Map<ComponentInstanceId, Map<String, String>> instancesParam) {
+        version = versionParam;
+        instances = instancesParam;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public Map<ComponentInstanceId, Map<String, String>> getInstances() {
+        return Collections.unmodifiableMap(instances);
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentDump(" + version + "): " + instances;
+    }
+}
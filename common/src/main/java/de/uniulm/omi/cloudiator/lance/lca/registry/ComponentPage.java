@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** 
+ * one page of the instances of a component that match a query, sorted by 
+ * instance id. The continuation token of a page is passed to the next call 
+ * so that reading resumes after the last instance of this page; it is null 
+ * on the last page. Tokens remain valid while the component changes: 
+ * instances added behind the token show on a later page, while those 
+ * added before it do not.
+ */
+public final class ComponentPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    /** orders instance ids the way pages are sorted */
+    public static final Comparator<ComponentInstanceId> ORDER = new Comparator<ComponentInstanceId>() {
+        @Override public int compare(ComponentInstanceId a, ComponentInstanceId b) {
+            return a.toString().compareTo(b.toString());
+        }
+    };
+    
+    private final Map<ComponentInstanceId, Map<String, String>> instances;
+    private final String continuation;
+    
+    public ComponentPage(Map<ComponentInstanceId, Map<String, String>> instancesParam, String continuationParam) {
+        instances = instancesParam;
+        continuation = continuationParam;
+    }
+    
+    /** @return the instances in the order of their ids */
+    public Map<ComponentInstanceId, Map<String, String>> getInstances() {
+        return Collections.unmodifiableMap(instances);
+    }
+    
+    /** @return the token for the next page; null if this is the last page */
+    public String getContinuation() {
+        return continuation;
+    }
+    
+    public boolean isLast() {
+        return continuation == null;
+    }
+    
+    /** @return true if the instance comes after the given token; every instance does for a null token */
+    public static boolean follows(ComponentInstanceId id, String token) {
+        return token == null || id.toString().compareTo(token) > 0;
+    }
+    
+    /** 
+     * selects a page from instances held in memory.
+     * @param sortedIds the ids of all instances, sorted by ORDER
+     */
+    public static ComponentPage select(List<ComponentInstanceId> sortedIds, Map<ComponentInstanceId, Map<String, String>> instances, 
+                ComponentQuery query, String token, int pageSize) {
+        checkPageSize(pageSize);
+        Map<ComponentInstanceId, Map<String, String>> page = new LinkedHashMap<>();
+        int i = token == null ? 0 : firstAfter(sortedIds, token);
+        for(; i < sortedIds.size() && page.size() < pageSize; i++) {
+            ComponentInstanceId id = sortedIds.get(i);
+            Map<String, String> properties = instances.get(id);
+            if(properties != null && query.matches(properties)) {
+                page.put(id, query.project(properties));
+            }
+        }
+        String next = i < sortedIds.size() ? sortedIds.get(i - 1).toString() : null;
+        return new ComponentPage(page, next);
+    }
+    
+    public static void checkPageSize(int pageSize) {
+        if(pageSize < 1) 
+            throw new IllegalArgumentException("page size has to be positive: " + pageSize);
+    }
+    
+    private static int firstAfter(List<ComponentInstanceId> sortedIds, String token) {
+        int low = 0;
+        int high = sortedIds.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(sortedIds.get(mid).toString().compareTo(token) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentPage: " + instances.size() + " instances, continuation=" + continuation;
+    }
+}
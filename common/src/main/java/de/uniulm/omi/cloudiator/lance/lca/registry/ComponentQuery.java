@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * selects the instances of a component that have all required property 
+ * values and projects each of them to the selected keys. The keys of the 
+ * required values are always part of the result. A query without selected 
+ * keys returns all properties of the matching instances.
+ */
+public final class ComponentQuery implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final Map<String, String> requiredValues;
+    private final Set<String> selectedKeys;
+    
+    ComponentQuery(Map<String, String> requiredValuesParam, Set<String> selectedKeysParam) {
+        requiredValues = requiredValuesParam;
+        selectedKeys = selectedKeysParam;
+    }
+    
+    public static class ComponentQueryBuilder {
+        
+        private final Map<String, String> requiredValues = new HashMap<>();
+        private final Set<String> selectedKeys = new HashSet<>();
+        
+        public ComponentQueryBuilder requireValue(String key, String value) {
+            requiredValues.put(key, value);
+            return this;
+        }
+        
+        public ComponentQueryBuilder selectKey(String key) {
+            selectedKeys.add(key);
+            return this;
+        }
+        
+        public ComponentQuery build() {
+            Set<String> keys = new HashSet<>(selectedKeys);
+            if(!keys.isEmpty()) {
+                keys.addAll(requiredValues.keySet());
+            }
+            return new ComponentQuery(new HashMap<>(requiredValues), keys);
+        }
+    }
+    
+    public boolean matches(Map<String, String> properties) {
+        for(Entry<String, String> entry : requiredValues.entrySet()) {
+            if(!entry.getValue().equals(properties.get(entry.getKey()))) 
+                return false;
+        }
+        return true;
+    }
+    
+    /** @return true if the value of this key can be part of the result */
+    public boolean selects(String key) {
+        return selectedKeys.isEmpty() || selectedKeys.contains(key);
+    }
+    
+    public Map<String, String> project(Map<String, String> properties) {
+        if(selectedKeys.isEmpty()) 
+            return properties;
+        Map<String, String> result = new HashMap<>();
+        for(String key : selectedKeys) {
+            String value = properties.get(key);
+            if(value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+    
+    /** applies this query to a dump that has been read in full */
+    public Map<ComponentInstanceId, Map<String, String>> apply(Map<ComponentInstanceId, Map<String, String>> instances) {
+        Map<ComponentInstanceId, Map<String, String>> result = new HashMap<>();
+        for(Entry<ComponentInstanceId, Map<String, String>> entry : instances.entrySet()) {
+            if(matches(entry.getValue())) {
+                result.put(entry.getKey(), project(entry.getValue()));
+            }
+        }
+        return result;
+    }
+    
+    public Map<String, String> getRequiredValues() {
+        return Collections.unmodifiableMap(requiredValues);
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentQuery: " + requiredValues + " -> " + (selectedKeys.isEmpty() ? "*" : selectedKeys.toString());
+    }
+}
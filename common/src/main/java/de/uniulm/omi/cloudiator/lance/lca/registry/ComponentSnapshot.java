@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ContainerStatus;
+import de.uniulm.omi.cloudiator.lance.lifecycle.LifecycleHandlerType;
+
+/** 
+ * immutable, compact form of a component dump. All instances share one 
+ * sorted dictionary of interned keys, and each instance holds one array of 
+ * values indexed by the position of the key in that dictionary. Numeric 
+ * values and the status properties are parsed once when the snapshot is 
+ * built. A snapshot derived from another one by an empty delta is that 
+ * very object, so readers can tell by identity that nothing has changed; 
+ * two snapshots of the same component with equal versions have equal content. 
+ */
+public final class ComponentSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    /** returned by getNumber if the value is missing or not an int */
+    public static final int NO_NUMBER = Integer.MIN_VALUE;
+    
+    private static final String[] NO_KEYS = new String[0];
+    private static final Map<String, ContainerStatus> CONTAINER_STATUSES = byName(ContainerStatus.values());
+    private static final Map<String, LifecycleHandlerType> INSTANCE_STATUSES = byName(LifecycleHandlerType.values());
+    
+    private final long version;
+    /** sorted and interned */
+    private final String[] keys;
+    /** sorted by ComponentPage.ORDER */
+    private final ComponentInstanceId[] ids;
+    /** one row per instance, one column per key; null where an instance lacks the key */
+    private final String[][] values;
+    
+    // derived from the values; not transferred //
+    private final transient int[][] numbers;
+    private final transient ContainerStatus[] containerStatuses;
+    private final transient LifecycleHandlerType[] instanceStatuses;
+    
+    private ComponentSnapshot(long versionParam, String[] keysParam, ComponentInstanceId[] idsParam, String[][] valuesParam) {
+        this(versionParam, keysParam, idsParam, valuesParam, new int[idsParam.length][]);
+    }
+    
+    private ComponentSnapshot(long versionParam, String[] keysParam, ComponentInstanceId[] idsParam, String[][] valuesParam, 
+                int[][] numbersParam) {
+        version = versionParam;
+        keys = keysParam;
+        ids = idsParam;
+        values = valuesParam;
+        numbers = numbersParam;
+        containerStatuses = new ContainerStatus[ids.length];
+        instanceStatuses = new LifecycleHandlerType[ids.length];
+        final int containerColumn = indexOfKey(LcaRegistryConstants.CONTAINER_STATUS);
+        final int instanceColumn = indexOfKey(LcaRegistryConstants.COMPONENT_INSTANCE_STATUS);
+        for(int row = 0; row < ids.length; row++) {
+            if(numbers[row] == null) {
+                numbers[row] = parseNumbers(values[row]);
+            }
+            if(containerColumn >= 0 && values[row][containerColumn] != null) {
+                containerStatuses[row] = CONTAINER_STATUSES.get(values[row][containerColumn]);
+            }
+            if(instanceColumn >= 0 && values[row][instanceColumn] != null) {
+                instanceStatuses[row] = INSTANCE_STATUSES.get(values[row][instanceColumn]);
+            }
+        }
+    }
+    
+    public static ComponentSnapshot of(ComponentDump dump) {
+        return of(dump.getVersion(), dump.getInstances());
+    }
+    
+    public static ComponentSnapshot of(long version, Map<ComponentInstanceId, Map<String, String>> instances) {
+        TreeSet<String> keySet = new TreeSet<>();
+        for(Map<String, String> properties : instances.values()) {
+            keySet.addAll(properties.keySet());
+        }
+        String[] keys = intern(keySet.toArray(NO_KEYS));
+        ComponentInstanceId[] ids = instances.keySet().toArray(new ComponentInstanceId[instances.size()]);
+        Arrays.sort(ids, ComponentPage.ORDER);
+        String[][] values = new String[ids.length][];
+        for(int row = 0; row < ids.length; row++) {
+            values[row] = toRow(keys, instances.get(ids[row]));
+        }
+        return new ComponentSnapshot(version, keys, ids, values);
+    }
+    
+    /** 
+     * @param delta the changes since the version of this snapshot
+     * @return a snapshot at the version of the delta; this very object if nothing has changed. 
+     * Instances that have not changed share their rows with this snapshot unless new keys show up.
+     */
+    public ComponentSnapshot withDelta(ComponentDelta delta) {
+        if(delta.isComplete()) 
+            return delta.getVersion() == version ? this : of(delta.getVersion(), delta.getUpdated());
+        if(delta.getSinceVersion() != version) 
+            throw new IllegalArgumentException("delta since " + delta.getSinceVersion() + " does not apply to version " + version);
+        if(delta.isEmpty() && delta.getVersion() == version) 
+            return this;
+        if(! knowsAllKeys(delta.getUpdated())) 
+            return of(delta.getVersion(), delta.applyTo(toDump()).getInstances());
+        if(delta.getRemoved().isEmpty() && knowsAllInstances(delta.getUpdated())) 
+            return withUpdatedRows(delta);
+        
+        TreeSet<ComponentInstanceId> idSet = new TreeSet<>(ComponentPage.ORDER);
+        idSet.addAll(Arrays.asList(ids));
+        idSet.removeAll(delta.getRemoved());
+        idSet.addAll(delta.getUpdated().keySet());
+        ComponentInstanceId[] newIds = idSet.toArray(new ComponentInstanceId[idSet.size()]);
+        String[][] newValues = new String[newIds.length][];
+        int[][] newNumbers = new int[newIds.length][];
+        for(int row = 0; row < newIds.length; row++) {
+            Map<String, String> updated = delta.getUpdated().get(newIds[row]);
+            if(updated != null) {
+                newValues[row] = toRow(keys, updated);
+            } else {
+                int oldRow = indexOf(newIds[row]);
+                newValues[row] = values[oldRow];
+                newNumbers[row] = numbers[oldRow];
+            }
+        }
+        return new ComponentSnapshot(delta.getVersion(), keys, newIds, newValues, newNumbers);
+    }
+    
+    /** keeps the ids and replaces the rows of the updated instances only */
+    private ComponentSnapshot withUpdatedRows(ComponentDelta delta) {
+        String[][] newValues = values.clone();
+        int[][] newNumbers = numbers.clone();
+        for(Entry<ComponentInstanceId, Map<String, String>> updated : delta.getUpdated().entrySet()) {
+            int row = indexOf(updated.getKey());
+            newValues[row] = toRow(keys, updated.getValue());
+            newNumbers[row] = null;
+        }
+        return new ComponentSnapshot(delta.getVersion(), keys, ids, newValues, newNumbers);
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    /** @return the same content under another version; shares all arrays with this snapshot */
+    public ComponentSnapshot withVersion(long newVersion) {
+        if(newVersion == version) 
+            return this;
+        return new ComponentSnapshot(newVersion, keys, ids, values, numbers.clone());
+    }
+    
+    /** @return the number of instances */
+    public int size() {
+        return ids.length;
+    }
+    
+    /** @param row between 0 and size() - 1; rows are sorted by ComponentPage.ORDER */
+    public ComponentInstanceId getId(int row) {
+        return ids[row];
+    }
+    
+    /** @return the row of the instance; a negative value if this snapshot does not contain it */
+    public int indexOf(ComponentInstanceId id) {
+        return Arrays.binarySearch(ids, id, ComponentPage.ORDER);
+    }
+    
+    /** @return the column of the key; a negative value if no instance has that key */
+    public int indexOfKey(String key) {
+        return Arrays.binarySearch(keys, key);
+    }
+    
+    /** @return the value; null if the instance does not have the key or the column is negative */
+    public String getValue(int row, int column) {
+        return column < 0 ? null : values[row][column];
+    }
+    
+    /** @return the value parsed as int; NO_NUMBER if it is missing or not an int */
+    public int getNumber(int row, int column) {
+        return column < 0 ? NO_NUMBER : numbers[row][column];
+    }
+    
+    /** @return the container status of the instance; null if it is not set or unknown */
+    public ContainerStatus getContainerStatus(int row) {
+        return containerStatuses[row];
+    }
+    
+    /** @return the lifecycle status of the instance; null if it is not set or unknown */
+    public LifecycleHandlerType getInstanceStatus(int row) {
+        return instanceStatuses[row];
+    }
+    
+    /** @return the properties of the instance in the form the registry returns them */
+    public Map<String, String> getProperties(int row) {
+        Map<String, String> properties = new HashMap<>();
+        String[] rowValues = values[row];
+        for(int column = 0; column < keys.length; column++) {
+            if(rowValues[column] != null) {
+                properties.put(keys[column], rowValues[column]);
+            }
+        }
+        return properties;
+    }
+    
+    /** @return all instances in the order of their ids; builds a map per instance */
+    public Map<ComponentInstanceId, Map<String, String>> toMap() {
+        Map<ComponentInstanceId, Map<String, String>> instances = new LinkedHashMap<>();
+        for(int row = 0; row < ids.length; row++) {
+            instances.put(ids[row], getProperties(row));
+        }
+        return instances;
+    }
+    
+    /** same result as query.apply(toMap()), but only builds maps for the matching instances */
+    public Map<ComponentInstanceId, Map<String, String>> query(ComponentQuery query) {
+        Map<ComponentInstanceId, Map<String, String>> result = new HashMap<>();
+        Map<String, String> required = query.getRequiredValues();
+        int[] requiredColumns = new int[required.size()];
+        String[] requiredValues = new String[required.size()];
+        int i = 0;
+        for(Entry<String, String> entry : required.entrySet()) {
+            requiredColumns[i] = indexOfKey(entry.getKey());
+            requiredValues[i] = entry.getValue();
+            if(requiredColumns[i] < 0) 
+                return result;
+            i++;
+        }
+        boolean[] selected = new boolean[keys.length];
+        for(int column = 0; column < keys.length; column++) {
+            selected[column] = query.selects(keys[column]);
+        }
+        for(int row = 0; row < ids.length; row++) {
+            if(! matches(values[row], requiredColumns, requiredValues)) 
+                continue;
+            Map<String, String> properties = new HashMap<>();
+            for(int column = 0; column < keys.length; column++) {
+                if(selected[column] && values[row][column] != null) {
+                    properties.put(keys[column], values[row][column]);
+                }
+            }
+            result.put(ids[row], properties);
+        }
+        return result;
+    }
+    
+    public ComponentDump toDump() {
+        return new ComponentDump(version, toMap());
+    }
+    
+    private static boolean matches(String[] row, int[] columns, String[] expected) {
+        for(int i = 0; i < columns.length; i++) {
+            if(! expected[i].equals(row[columns[i]])) 
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean knowsAllInstances(Map<ComponentInstanceId, Map<String, String>> updated) {
+        for(ComponentInstanceId id : updated.keySet()) {
+            if(indexOf(id) < 0) 
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean knowsAllKeys(Map<ComponentInstanceId, Map<String, String>> updated) {
+        for(Map<String, String> properties : updated.values()) {
+            for(String key : properties.keySet()) {
+                if(indexOfKey(key) < 0) 
+                    return false;
+            }
+        }
+        return true;
+    }
+    
+    private static String[] toRow(String[] keys, Map<String, String> properties) {
+        String[] row = new String[keys.length];
+        for(Entry<String, String> entry : properties.entrySet()) {
+            row[Arrays.binarySearch(keys, entry.getKey())] = entry.getValue();
+        }
+        return row;
+    }
+    
+    private static int[] parseNumbers(String[] row) {
+        int[] parsed = new int[row.length];
+        for(int column = 0; column < row.length; column++) {
+            parsed[column] = parseNumber(row[column]);
+        }
+        return parsed;
+    }
+    
+    /** like Integer.parseInt, but without throwing for the many values that are no numbers */
+    private static int parseNumber(String value) {
+        if(value == null || value.isEmpty() || value.length() > 11) 
+            return NO_NUMBER;
+        final boolean negative = value.charAt(0) == '-';
+        int i = negative ? 1 : 0;
+        if(i == value.length()) 
+            return NO_NUMBER;
+        long result = 0;
+        for(; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') 
+                return NO_NUMBER;
+            result = result * 10 + (c - '0');
+        }
+        result = negative ? -result : result;
+        if(result <= NO_NUMBER || result > Integer.MAX_VALUE) 
+            return NO_NUMBER;
+        return (int) result;
+    }
+    
+    private static String[] intern(String[] strings) {
+        for(int i = 0; i < strings.length; i++) {
+            strings[i] = strings[i].intern();
+        }
+        return strings;
+    }
+    
+    private static <T extends Enum<T>> Map<String, T> byName(T[] constants) {
+        Map<String, T> map = new HashMap<>();
+        for(T t : constants) {
+            map.put(t.toString(), t);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+    
+    /** re-interns the keys and re-parses the values after transfer */
+    private Object readResolve() {
+        return new ComponentSnapshot(version, intern(keys), ids, values);
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentSnapshot(" + version + "): " + ids.length + " instances, keys=" + Arrays.toString(keys);
+    }
+}
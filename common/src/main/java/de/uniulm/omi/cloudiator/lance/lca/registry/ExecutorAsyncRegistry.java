@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.AsyncLcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** 
+ * provides the asynchronous operations of a blocking registry by running 
+ * them on an executor. A bounded executor limits the number of threads 
+ * that wait for the registry, no matter how many callers there are.
+ */
+public final class ExecutorAsyncRegistry implements AsyncLcaRegistry {
+    
+    /** runs every operation in the calling thread; for registries that never wait for I/O */
+    public static final Executor CALLING_THREAD = new Executor() {
+        @Override public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
+    private final LcaRegistry delegate;
+    private final Executor executor;
+    
+    public ExecutorAsyncRegistry(LcaRegistry delegateParam, Executor executorParam) {
+        delegate = delegateParam;
+        executor = executorParam;
+    }
+    
+    private interface Call<T> {
+        T call() throws RegistrationException;
+    }
+    
+    private <T> CompletableFuture<T> submit(final Call<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        future.complete(call.call());
+                    } catch(RegistrationException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            future.completeExceptionally(new RegistrationException("registry executor does not accept operations.", ree));
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) {
+        return submit(() -> {
+            delegate.renewComponentInstance(instId, cid, cinstId, leaseMillis);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) {
+        return submit(() -> Boolean.valueOf(delegate.removeComponentInstance(instId, cid, cinstId)));
+    }
+
+    @Override
+    public CompletableFuture<Void> addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) {
+        return submit(() -> {
+            delegate.addComponentProperty(instId, cid, cinstId, property, value);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) {
+        return submit(() -> {
+            delegate.addComponentProperties(instId, cid, cinstId, properties);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) {
+        return submit(() -> delegate.dumpComponent(instId, compId));
+    }
+
+    @Override
+    public CompletableFuture<ComponentDump> dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) {
+        return submit(() -> delegate.dumpComponentWithVersion(instId, compId));
+    }
+
+    @Override
+    public CompletableFuture<ComponentDelta> dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) {
+        return submit(() -> delegate.dumpComponentSince(instId, compId, sinceVersion));
+    }
+
+    @Override
+    public CompletableFuture<ComponentSnapshot> snapshotComponent(ApplicationInstanceId instId, ComponentId compId) {
+        return submit(() -> delegate.snapshotComponent(instId, compId));
+    }
+
+    @Override
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) {
+        return submit(() -> delegate.queryComponent(instId, compId, query));
+    }
+
+    @Override
+    public CompletableFuture<ComponentPage> queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) {
+        return submit(() -> delegate.queryComponentPage(instId, compId, query, continuation, pageSize));
+    }
+
+    @Override
+    public CompletableFuture<String> getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name) {
+        return submit(() -> delegate.getComponentProperty(appInstId, compId, myId, name));
+    }
+}
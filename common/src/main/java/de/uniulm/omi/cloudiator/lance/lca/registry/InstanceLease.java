@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
+import de.uniulm.omi.cloudiator.lance.lca.container.ContainerStatus;
+
+/** 
+ * rules for the liveness of component instances that all registry 
+ * implementations follow: an instance that holds a lease is removed once 
+ * the lease has not been renewed in time; an instance whose container 
+ * status is set to DESTROYED is removed after a grace period, so that 
+ * readers still get to see its final state.
+ */
+public final class InstanceLease {
+    
+    /** time for which a destroyed instance remains in the registry */
+    public static final long DESTROYED_GRACE_MILLIS = 30000L;
+    
+    private InstanceLease() {
+        // 
+    }
+    
+    /** @return true if the given properties set the container status to DESTROYED */
+    public static boolean marksDestroyed(Map<String, ?> properties) {
+        Object status = properties.get(LcaRegistryConstants.CONTAINER_STATUS);
+        return status != null && ContainerStatus.DESTROYED.toString().equals(status.toString());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+
+/** a registry whose application instances can be moved to another registry */
+public interface MigratableRegistry extends LcaRegistry {
+
+    /**
+     * @return all that is stored for the application instance; null if it does not exist
+     * @throws RegistrationException
+     */
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RegistrationException;
+    /**
+     * removes the application instance with all its components and their instances.
+     * @return false if the application instance did not exist
+     * @throws RegistrationException
+     */
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RegistrationException;
+    /**
+     * records where the application instance has moved to, and only then removes 
+     * it like removeApplicationInstance. Afterwards, operations on the application 
+     * instance fail instead of creating parts of it anew. Adding the application 
+     * instance again removes the record.
+     * @param location where the application instance lives now
+     * @return false if the application instance did not exist
+     * @throws RegistrationException
+     */
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RegistrationException;
+    /**
+     * @return the location given to the last forwardApplicationInstance; null if 
+     * there is none or the application instance has been added again since
+     * @throws RegistrationException
+     */
+    public String getForwarding(ApplicationInstanceId instId) throws RegistrationException;
+}
@@ -21,9 +21,13 @@ package de.uniulm.omi.cloudiator.lance.lca.registry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.embedded.EmbeddedRegistryContainer;
 import de.uniulm.omi.cloudiator.lance.lca.registry.etcd.EtcdRegistryContainer;
 import de.uniulm.omi.cloudiator.lance.lca.registry.rmi.RmiRegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.sharded.ShardedRegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.sharded.ShardedRegistryImpl;
 
 public enum RegistryFactory {
 
@@ -36,6 +40,16 @@ public enum RegistryFactory {
         @Override RegistryContainer create() throws RegistrationException {
             return EtcdRegistryContainer.create();
         }
+    },
+    EMBEDDED_REGISTRY{
+        @Override RegistryContainer create() throws RegistrationException {
+            return EmbeddedRegistryContainer.create();
+        }
+    },
+    SHARDED_REGISTRY{
+        @Override RegistryContainer create() throws RegistrationException {
+            return ShardedRegistryContainer.create();
+        }
     };
     
     abstract RegistryContainer create() throws RegistrationException;
@@ -45,6 +59,8 @@ public enum RegistryFactory {
     public static final String LCA_REGISTRY_CONFIG_KEY = "lca.client.config.registry";
     public static final String LCA_REGISTRY_CONFIG_RMI_VALUE = "rmiregistry";
     public static final String LCA_REGISTRY_CONFIG_ETCD_VALUE = "etcdregistry";
+    public static final String LCA_REGISTRY_CONFIG_EMBEDDED_VALUE = "embeddedregistry";
+    public static final String LCA_REGISTRY_CONFIG_SHARDED_VALUE = "shardedregistry";
     
     private static RegistryContainer container = null;
     
@@ -55,6 +71,25 @@ public enum RegistryFactory {
         return container.getRegistry();
     }
     
+    /** releases the connections of the registries that arrived with deployment 
+     * contexts; to be called when the agent shuts down. Connections that a 
+     * registry created in this process still uses stay open. */
+    public static void closeSharedClients() {
+        EtcdRegistryContainer.closeSharedClients();
+    }
+    
+    /** moves an application instance to another shard of a sharded registry; 
+     * see {@link ShardedRegistryImpl#migrateApplicationInstance(ApplicationInstanceId, int)} */
+    public static void migrateApplicationInstance(LcaRegistry registry, ApplicationInstanceId instId, int shard) throws RegistrationException {
+        if(!(registry instanceof ShardedRegistryImpl)) 
+            throw new RegistrationException("registry is not sharded: " + registry);
+        try {
+            ((ShardedRegistryImpl) registry).migrateApplicationInstance(instId, shard);
+        } catch(IllegalArgumentException iae) {
+            throw new RegistrationException(iae);
+        }
+    }
+    
     public static RegistryContainer doCreateRegistry() throws RegistrationException {
         LOGGER.info("looking for registry configuration.");
         String value = System.getProperty(LCA_REGISTRY_CONFIG_KEY);
@@ -66,6 +101,12 @@ public enum RegistryFactory {
         } else if (LCA_REGISTRY_CONFIG_RMI_VALUE.equals(value)) {
             LOGGER.debug("checking for rmi-based registry configuration.");
             retVal = RMI_REGISTRY.create();
+        } else if (LCA_REGISTRY_CONFIG_EMBEDDED_VALUE.equals(value)) {
+            LOGGER.debug("using embedded registry.");
+            retVal = EMBEDDED_REGISTRY.create();
+        } else if (LCA_REGISTRY_CONFIG_SHARDED_VALUE.equals(value)) {
+            LOGGER.debug("checking for registry shards configuration.");
+            retVal = SHARDED_REGISTRY.create();
         }
         
         if(retVal != null) {
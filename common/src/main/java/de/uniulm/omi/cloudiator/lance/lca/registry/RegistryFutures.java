@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/** 
+ * helpers for the futures of AsyncLcaRegistry.
+ */
+public final class RegistryFutures {
+    
+    private RegistryFutures() {
+        // 
+    }
+    
+    /** blocks until the future has completed */
+    public static <T> T await(CompletableFuture<T> future) throws RegistrationException {
+        try {
+            return future.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RegistrationException("interrupted while waiting for the registry", ie);
+        } catch(ExecutionException ee) {
+            throw asRegistrationException(ee.getCause());
+        }
+    }
+    
+    /** @return the failure of a future as RegistrationException, without the 
+     * CompletionExceptions added by dependent stages */
+    public static RegistrationException asRegistrationException(Throwable failure) {
+        Throwable t = unwrap(failure);
+        if(t instanceof RegistrationException) 
+            return (RegistrationException) t;
+        return new RegistrationException(t);
+    }
+    
+    /** @return the failure without the CompletionExceptions added by dependent stages */
+    public static Throwable unwrap(Throwable failure) {
+        Throwable t = failure;
+        while(t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+    
+    /** 
+     * @return true if the failure reports an application instance, component, 
+     * or component instance that the registry does not know (any longer). 
+     * The RMI and embedded registries throw an IllegalArgumentException, the 
+     * etcd registry a RegistrationException; both start with "not known". 
+     */
+    public static boolean isNotKnown(Throwable failure) {
+        for(Throwable t = unwrap(failure); t != null; t = t.getCause()) {
+            if((t instanceof IllegalArgumentException || t instanceof RegistrationException) 
+                        && t.getMessage() != null && t.getMessage().startsWith("not known")) 
+                return true;
+            if(t.getCause() == t) 
+                break;
+        }
+        return false;
+    }
+    
+    /** @return a future that has failed with the given exception */
+    public static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> retVal = new CompletableFuture<>();
+        retVal.completeExceptionally(failure);
+        return retVal;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.embedded;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.rmi.RemoteRegistryImpl;
+
+/** 
+ * in-process registry for deployments where the client and the only agent 
+ * share a JVM. Uses the same store as the RMI registry, including its 
+ * optional journal (lca.registry.journal.dir), but does not export it.
+ */
+public final class EmbeddedRegistryContainer implements RegistryContainer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistryContainer.class);
+    
+    private static EmbeddedRegistryContainer localContainer = null;
+    
+    private final EmbeddedRegistryImpl impl;
+    
+    private EmbeddedRegistryContainer(EmbeddedRegistryImpl implParam) {
+        impl = implParam;
+    }
+    
+    @Override 
+    public LcaRegistry getRegistry() { 
+        return impl; 
+    }
+    
+    /** @return the one embedded registry of this process */
+    public static synchronized EmbeddedRegistryContainer create() throws RegistrationException {
+        if(localContainer == null) {
+            LOGGER.info("creating embedded registry.");
+            try {
+                localContainer = new EmbeddedRegistryContainer(new EmbeddedRegistryImpl(RemoteRegistryImpl.create()));
+            } catch(IOException ioe) {
+                throw new RegistrationException("cannot restore registry from journal", ioe);
+            }
+        }
+        return localContainer;
+    }
+    
+    static synchronized EmbeddedRegistryContainer getLocalContainer() {
+        return localContainer;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.embedded;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.AsyncLcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.MigratableRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ExecutorAsyncRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.rmi.RemoteRegistryImpl;
+import de.uniulm.omi.cloudiator.lance.lca.registry.rmi.RmiComponentListener;
+
+/**
+ * accesses the store of the RMI registry directly from within the same 
+ * process: there is neither an RMI export nor any serialisation of 
+ * arguments or results. When this object is serialised (e.g. as part 
+ * of a deployment context), it resolves to the embedded registry of the 
+ * process that deserialises it; hence, client and agents have to share 
+ * a JVM.
+ * 
+ * Plain maps of instances are returned as mutable copies, just as if they 
+ * had been serialised. Dumps, deltas, pages and snapshots are immutable and 
+ * share the instances with the store.
+ */
+final class EmbeddedRegistryImpl implements MigratableRegistry {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final transient RemoteRegistryImpl store;
+    
+    EmbeddedRegistryImpl(RemoteRegistryImpl storeParam) {
+        store = storeParam;
+    }
+    
+    private Object readResolve() throws ObjectStreamException {
+        EmbeddedRegistryContainer container = EmbeddedRegistryContainer.getLocalContainer();
+        if(container == null) 
+            throw new InvalidObjectException("no embedded registry available in this process.");
+        return container.getRegistry();
+    }
+    
+    @Override
+    public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RegistrationException {
+        try { 
+            return store.addApplicationInstance(instId, appId, name); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RegistrationException {
+        try { 
+            store.addComponent(instId, cid, name);
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException {
+        try { 
+            store.addComponentInstance(instId, cid, cinstId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RegistrationException {
+        try { 
+            store.renewComponentInstance(instId, cid, cinstId, leaseMillis); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException {
+        try { 
+            return store.removeComponentInstance(instId, cid, cinstId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property,
+            Object value) throws RegistrationException {
+        try { 
+            store.addComponentProperty(instId, cid, cinstId, property, value); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, 
+            Map<String, ?> properties) throws RegistrationException {
+        addComponentProperties(instId, cid, Collections.singletonMap(cinstId, properties));
+    }
+
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, 
+            Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RegistrationException {
+        try { 
+            store.addComponentProperties(instId, cid, properties); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> dumpComponent(
+            ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        try { 
+            return copyOf(store.dumpComponent(instId, compId));  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        try { 
+            return store.dumpComponentWithVersion(instId, compId);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RegistrationException {
+        try { 
+            return store.dumpComponentSince(instId, compId, sinceVersion);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        try { 
+            return store.snapshotComponent(instId, compId);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RegistrationException {
+        try { 
+            return copyOf(store.queryComponent(instId, compId, query));  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) 
+                throws RegistrationException {
+        try { 
+            return store.queryComponentPage(instId, compId, query, continuation, pageSize);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public String getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name)
+            throws RegistrationException {
+        return store.getComponentProperty(appInstId, compId, myId, name); 
+    }
+
+    @Override
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return store.exportApplicationInstance(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return store.removeApplicationInstance(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RegistrationException {
+        try { 
+            return store.forwardApplicationInstance(instId, location); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public String getForwarding(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return store.getForwarding(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RegistrationException {
+        try { 
+            return store.applicationInstanceExists(appInstId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean applicationComponentExists(ApplicationInstanceId appInstId, ComponentId compId) throws RegistrationException {
+        try { 
+            return store.applicationComponentExists(appInstId, compId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean addComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        try { 
+            store.addComponentListener(instId, compId, new LocalListener(listener));
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+        return true;
+    }
+
+    @Override
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        try { 
+            store.removeComponentListener(instId, compId, new LocalListener(listener));
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+    
+    private static Map<ComponentInstanceId, Map<String, String>> copyOf(Map<ComponentInstanceId, Map<String, String>> instances) {
+        Map<ComponentInstanceId, Map<String, String>> copy = new HashMap<>();
+        for(Entry<ComponentInstanceId, Map<String, String>> entry : instances.entrySet()) {
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return copy;
+    }
+    
+    /** the store is in memory; operations complete in the calling thread */
+    @Override
+    public AsyncLcaRegistry async() {
+        return new ExecutorAsyncRegistry(this, ExecutorAsyncRegistry.CALLING_THREAD);
+    }
+    
+    /** 
+     * is called from the store's delivery threads just like an exported 
+     * listener; equal for the same local listener so that it can be removed.
+     */
+    private static final class LocalListener implements RmiComponentListener {
+        
+        private final ComponentChangeListener listener;
+        
+        LocalListener(ComponentChangeListener listenerParam) {
+            listener = listenerParam;
+        }
+        
+        @Override
+        public void componentChanged(ApplicationInstanceId instId, ComponentId compId) {
+            listener.componentChanged(instId, compId);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof LocalListener)) 
+                return false;
+            return listener.equals(((LocalListener) o).listener);
+        }
+        
+        @Override
+        public int hashCode() {
+            return listener.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return "LocalListener: " + listener;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import mousio.client.promises.ResponsePromise;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+
+/** 
+ * keeps a recursive etcd watch on a component directory and informs 
+ * all registered listeners whenever something below that directory 
+ * changes. the watch is re-armed from the callback, so no thread is 
+ * blocked while waiting for changes. listeners are called from the 
+ * etcd client's I/O thread and must hence return quickly. Each watch 
+ * request goes to the member that is currently best, so that a watch 
+ * moves away from a failed member when it is re-armed.
+ */
+final class EtcdComponentWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** etcd error code signalling that the requested index has been compacted away */
+    private static final int EVENT_INDEX_CLEARED = 401;
+    private static final long RETRY_DELAY_SECONDS = 5L;
+    
+    private static final ScheduledExecutorService RETRY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "etcd-watch-retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    private final EtcdTransport etcd;
+    private final String dirName;
+    private final ApplicationInstanceId instId;
+    private final ComponentId compId;
+    private final List<ComponentChangeListener> listeners = new CopyOnWriteArrayList<>();
+    
+    private volatile boolean cancelled = false;
+    // only accessed from the watch chain, which is strictly sequential //
+    private long nextIndex;
+    
+    EtcdComponentWatcher(EtcdTransport etcdParam, String dirNameParam, ApplicationInstanceId instIdParam, ComponentId compIdParam) {
+        etcd = etcdParam;
+        dirName = dirNameParam;
+        instId = instIdParam;
+        compId = compIdParam;
+    }
+    
+    void start() throws RegistrationException {
+        nextIndex = readCurrentIndex() + 1;
+        arm();
+    }
+    
+    void cancel() {
+        cancelled = true;
+    }
+    
+    void addListener(ComponentChangeListener listener) {
+        listeners.add(listener);
+    }
+    
+    /** @return true if no listeners are left */
+    boolean removeListener(ComponentChangeListener listener) {
+        listeners.remove(listener);
+        return listeners.isEmpty();
+    }
+    
+    private long readCurrentIndex() throws RegistrationException {
+        try {
+            EtcdKeysResponse response = etcd.read(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.getDir(dirName).recursive().send();
+                }
+            });
+            return EtcdRegistryImpl.highestModifiedIndex(response.node);
+        } catch(IOException ioe) {
+            throw new RegistrationException(ioe);
+        } catch (java.util.concurrent.TimeoutException e) {
+            throw new RegistrationException(e);
+        } catch (EtcdException e) {
+            throw new RegistrationException(e);
+        }
+    }
+    
+    private void arm() {
+        if(cancelled) 
+            return;
+        try {
+            etcd.watchClient().getDir(dirName).recursive().waitForChange(nextIndex).send().addListener(
+                    new ResponsePromise.IsSimplePromiseResponseHandler<EtcdKeysResponse>() {
+                        @Override public void onResponse(ResponsePromise<EtcdKeysResponse> response) {
+                            handleResponse(response);
+                        }
+                    });
+        } catch(IOException ioe) {
+            LOGGER.warn("could not watch directory " + dirName + "; retrying.", ioe);
+            scheduleRestart();
+        }
+    }
+    
+    private void handleResponse(ResponsePromise<EtcdKeysResponse> response) {
+        if(cancelled) 
+            return;
+        Throwable t = response.getException();
+        if(t == null) {
+            EtcdKeysResponse r = response.getNow();
+            if(r != null && r.node != null && r.node.modifiedIndex != null) {
+                nextIndex = r.node.modifiedIndex.longValue() + 1;
+            }
+            notifyListeners();
+            arm();
+            return;
+        }
+        if(t instanceof EtcdException && ((EtcdException) t).errorCode == EVENT_INDEX_CLEARED) {
+            LOGGER.info("watch index for " + dirName + " outdated; resynchronising.");
+        } else {
+            LOGGER.warn("watch on directory " + dirName + " failed; retrying.", t);
+        }
+        scheduleRestart();
+    }
+    
+    /** restarts the watch from a freshly read index. as changes may have been missed 
+     * in the meantime, listeners are informed unconditionally. */
+    private void scheduleRestart() {
+        RETRY_EXECUTOR.schedule(new Runnable() {
+            @Override public void run() {
+                if(cancelled) 
+                    return;
+                try {
+                    start();
+                    notifyListeners();
+                } catch(RegistrationException re) {
+                    LOGGER.warn("could not re-establish watch on " + dirName + "; retrying.", re);
+                    scheduleRestart();
+                }
+            }
+        }, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    private void notifyListeners() {
+        for(ComponentChangeListener l : listeners) {
+            try {
+                l.componentChanged(instId, compId);
+            } catch(RuntimeException re) {
+                LOGGER.warn("component listener failed", re);
+            }
+        }
+    }
+}
@@ -32,6 +32,10 @@ import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryContainer;
 public final class EtcdRegistryContainer implements RegistryContainer {
 
     public static final String LCA_REGISTRY_CONFIG_ETCD_HOSTS_KEY = "lca.client.config.registry.etcd.hosts";
+    /** 'keys' (default) stores one key per property; 'blob' stores all properties 
+     * of an instance in one value. Both layouts can be read in either case. */
+    public static final String LCA_REGISTRY_CONFIG_ETCD_LAYOUT_KEY = "lca.client.config.registry.etcd.layout";
+    public static final String LCA_REGISTRY_CONFIG_ETCD_LAYOUT_BLOB_VALUE = "blob";
     
     private static final Logger LOGGER = LoggerFactory.getLogger(RegistryContainer.class);
     
@@ -46,6 +50,20 @@ public final class EtcdRegistryContainer implements RegistryContainer {
     	return impl; 
     }
     
+    /** 
+     * closes the etcd clients of the registries that arrived with deployment 
+     * contexts; clients of registries created in this process stay open until 
+     * these registries are closed. 
+     */
+    public static void closeSharedClients() {
+        EtcdTransport.closeUnowned();
+    }
+    
+    /** closes the registry; its etcd clients are closed once no other registry of this process owns them */
+    public void close() {
+        impl.close();
+    }
+    
     public static EtcdRegistryContainer create() throws RegistrationException {
         LOGGER.info("checking for etcd hosts configuration: " + LCA_REGISTRY_CONFIG_ETCD_HOSTS_KEY);
         String value = System.getProperty(LCA_REGISTRY_CONFIG_ETCD_HOSTS_KEY);
@@ -56,7 +74,24 @@ public final class EtcdRegistryContainer implements RegistryContainer {
             uris = doCreate("localhost:4001");
         }
         
-        return new EtcdRegistryContainer(new EtcdRegistryImpl(uris)); 
+        return new EtcdRegistryContainer(new EtcdRegistryImpl(uris, isBlobLayout())); 
+    }
+    
+    /** 
+     * @param hosts <hostname1>:<port1>,<hostname2>:<port2>,... of one etcd cluster
+     * @throws RegistrationException if the list contains no valid host
+     */
+    public static EtcdRegistryContainer createForHosts(String hosts) throws RegistrationException {
+        URI[] uris = doCreate(hosts);
+        if(uris == null) 
+            throw new RegistrationException("no valid etcd host name found in: " + hosts);
+        return new EtcdRegistryContainer(new EtcdRegistryImpl(uris, isBlobLayout()));
+    }
+    
+    private static boolean isBlobLayout() {
+        boolean blobLayout = LCA_REGISTRY_CONFIG_ETCD_LAYOUT_BLOB_VALUE.equals(System.getProperty(LCA_REGISTRY_CONFIG_ETCD_LAYOUT_KEY));
+        LOGGER.info("using " + (blobLayout ? "one value per instance" : "one key per property") + " in etcd.");
+        return blobLayout;
     }
     
     private static URI[] doCreate(String value) {
@@ -20,23 +20,45 @@ package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.requests.EtcdKeyPutRequest;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 import mousio.etcd4j.responses.EtcdKeysResponse.EtcdNode;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
-import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.AsyncLcaRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.InstanceLease;
+import de.uniulm.omi.cloudiator.lance.lca.registry.MigratableRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
 
-final class EtcdRegistryImpl implements LcaRegistry {
+final class EtcdRegistryImpl implements MigratableRegistry {
 
     private static final long serialVersionUID = 1L;
     
@@ -49,20 +71,93 @@ final class EtcdRegistryImpl implements LcaRegistry {
     private static String COMPONENT_DESCRIPTION = "Component Directory with all component instances of this component in this application instance";
     private static String COMPONENT_INSTANCE_DESCRIPTION = "Component Instance Directory with all properties of this component instances";
     
+    /** directories known to exist per etcd cluster; shared by all registry objects 
+     * of this process. This is only a hint: other agents remove application 
+     * instances and etcd removes instance directories whose lease expired. 
+     * Hence, a directory is forgotten together with its parents as soon as a 
+     * write finds it missing (error 100), so that it is created again. */
+    private static final ConcurrentMap<String, Set<String>> KNOWN_DIRECTORIES = new ConcurrentHashMap<>();
+    
+    /** number of compare-and-swap attempts for a blob before giving up */
+    private static final int MAX_BLOB_UPDATES = 16;
+    /** holds one key per forwarded application instance with the location it has moved to */
+    private static final String FORWARDINGS_DIRECTORY = "/lca-forwardings";
+    
     private final URI[] uris;
-    private transient EtcdClient etcd;
+    /** if true, all properties of an instance are stored in a single value 
+     * instead of one key per property (see InstanceBlob) */
+    private final boolean blobLayout;
+    /** owned if this object has been constructed in this process, borrowed if it has been deserialised */
+    private transient volatile EtcdTransport etcd;
+    private transient boolean ownsTransport;
+    private transient Map<String, EtcdComponentWatcher> watchers;
+    private transient Set<String> knownDirectories;
+    /** the blobs as last written by this object; saves reading them before the next update */
+    private transient ConcurrentMap<String, InstanceBlob> writtenBlobs;
+    /** the TTL in seconds that every write of a blob has to carry, as etcd 
+     * drops the TTL of a key that is written without one */
+    private transient ConcurrentMap<String, Integer> leaseTtls;
     
-    public EtcdRegistryImpl(URI[] urisParam) throws RegistrationException {
+    public EtcdRegistryImpl(URI[] urisParam, boolean blobLayoutParam) throws RegistrationException {
         uris = urisParam;
-        etcd = new EtcdClient(uris);
+        blobLayout = blobLayoutParam;
+        etcd = EtcdTransport.acquire(uris);
+        ownsTransport = true;
+        watchers = new ConcurrentHashMap<>();
+        knownDirectories = knownDirectoriesFor(uris);
+        writtenBlobs = new ConcurrentHashMap<>();
+        leaseTtls = new ConcurrentHashMap<>();
         init();
     }
     
+    /** 
+     * a borrowed transport may have been closed when the agent shut down 
+     * (see EtcdTransport.closeUnowned); it is then replaced with a new one.
+     */
+    private EtcdTransport transport() {
+        EtcdTransport t = etcd;
+        if(t.isClosed() && ! ownsTransport) {
+            t = EtcdTransport.forMembers(uris);
+            etcd = t;
+        }
+        return t;
+    }
+    
+    /** 
+     * stops all watchers and releases the etcd clients if this object owns them; 
+     * they are closed once no other registry of this process owns them. 
+     */
+    public void close() {
+        synchronized(watchers) {
+            for(EtcdComponentWatcher watcher : watchers.values()) {
+                watcher.cancel();
+            }
+            watchers.clear();
+        }
+        synchronized(this) {
+            if(! ownsTransport) 
+                return;
+            ownsTransport = false;
+        }
+        etcd.release();
+    }
+    
+    private static Set<String> knownDirectoriesFor(URI[] uris) {
+        String key = EtcdTransport.membersKey(uris);
+        Set<String> known = KNOWN_DIRECTORIES.get(key);
+        if(known == null) {
+            known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> other = KNOWN_DIRECTORIES.putIfAbsent(key, known);
+            if(other != null) 
+                known = other;
+        }
+        return known;
+    }
+    
     private void init() throws RegistrationException {
         String dirName = "/lca";
         createDirectorIfItDoesNotExist(dirName);
-        setPropertyInDirectory(dirName, DESCRIPTION, MAIN_DESCRIPTION);
-        setPropertyInDirectory(dirName, NAME, MAIN_NAME);
+        setPropertiesInDirectory(dirName, DESCRIPTION, MAIN_DESCRIPTION, NAME, MAIN_NAME);
     }
     
     @Override
@@ -72,10 +167,13 @@ final class EtcdRegistryImpl implements LcaRegistry {
      */
     public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RegistrationException {
         String dirName = generateApplicationInstanceDirectory(instId);
+        boolean known = knownDirectories.contains(dirName);
         boolean b = createDirectorIfItDoesNotExist(dirName);
+        if(! b && ! known && removeTombstone(instId)) {
+            b = createDirectorIfItDoesNotExist(dirName);
+        }
         if(b) { // only add properties if this is a new directory //
-            setPropertyInDirectory(dirName, DESCRIPTION, APP_INSTANCE_DESCRIPTION);
-            setPropertyInDirectory(dirName, NAME, name);
+            setPropertiesInDirectory(dirName, DESCRIPTION, APP_INSTANCE_DESCRIPTION, NAME, name);
         }
         return b;
     }
@@ -83,57 +181,731 @@ final class EtcdRegistryImpl implements LcaRegistry {
     @Override
     public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RegistrationException {
         String dirName = generateComponentDirectory(instId, cid);
-        createDirectorIfItDoesNotExist(dirName);
-        setPropertyInDirectory(dirName, DESCRIPTION, COMPONENT_DESCRIPTION);
-        setPropertyInDirectory(dirName, NAME, name);
+        if(createDirectorIfItDoesNotExist(dirName)) {
+            setPropertiesInDirectory(dirName, DESCRIPTION, COMPONENT_DESCRIPTION, NAME, name);
+        }
     }
 
     @Override
     public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId)
             throws RegistrationException {
         String dirName = generateComponentInstanceDirectory(instId, cid, cinstId);
+        if(blobLayout) {
+            await(updateBlobAsync(dirName, Collections.<String, Object>emptyMap(), true));
+            return;
+        }
         createDirectorIfItDoesNotExist(dirName);
         setPropertyInDirectory(dirName, DESCRIPTION, COMPONENT_INSTANCE_DESCRIPTION);
     }
+    
+    /** 
+     * the lease is the TTL of the instance's directory or blob, so that etcd 
+     * itself removes the instance. Such an expiry lowers the number of instances 
+     * and hence changes the version of the component (see componentVersion).
+     */
+    @Override
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) 
+                throws RegistrationException {
+        await(renewComponentInstanceAsync(instId, cid, cinstId, leaseMillis));
+    }
+    
+    private CompletableFuture<Void> renewComponentInstanceAsync(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) {
+        final String dirName = generateComponentInstanceDirectory(instId, cid, cinstId);
+        final Integer ttl = toTtlSeconds(leaseMillis);
+        if(! blobLayout) 
+            return refreshDirectoryAsync(dirName, ttl);
+        leaseTtls.put(dirName, ttl);
+        return updateBlobAsync(dirName, Collections.<String, Object>emptyMap(), false).thenCompose(isBlob -> 
+                    isBlob.booleanValue() ? done() : refreshDirectoryAsync(dirName, ttl));
+    }
+    
+    @Override
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) 
+                throws RegistrationException {
+        return await(removeComponentInstanceAsync(instId, cid, cinstId)).booleanValue();
+    }
+    
+    private CompletableFuture<Boolean> removeComponentInstanceAsync(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) {
+        final String dirName = generateComponentInstanceDirectory(instId, cid, cinstId);
+        return transport().writeAsync(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.delete(dirName).recursive().send();
+                }
+            }).handle((response, failure) -> {
+                if(failure != null && errorCode(failure) != 100) // key not found //
+                    throw failed(failure);
+                forgetDirectory(dirName);
+                writtenBlobs.remove(dirName);
+                leaseTtls.remove(dirName);
+                return Boolean.valueOf(failure == null);
+            });
+    }
+    
+    /** 
+     * sets the TTL of an existing instance directory. etcd creates missing 
+     * directories on every put, so a property written after the lease has 
+     * expired brings back a directory without TTL and without the other 
+     * properties. Such a directory counts as missing: the instance has to 
+     * be added again with all its properties. A directory without TTL that 
+     * has its description is one that has not been renewed yet.
+     */
+    private CompletableFuture<Void> refreshDirectoryAsync(final String dirName, final Integer ttl) {
+        return transport().writeAsync(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.putDir(dirName).ttl(ttl).prevExist(true).send();
+                }
+            }).handle((response, failure) -> {
+                if(failure == null) 
+                    return hasLease(response.prevNode) ? done() : checkDescriptionAsync(dirName);
+                if(errorCode(failure) == 100) { // key not found //
+                    forgetDirectory(dirName);
+                    throw new CompletionException(new RegistrationException("not known: " + dirName, RegistryFutures.unwrap(failure)));
+                }
+                throw failed(failure);
+            }).thenCompose(checked -> checked);
+    }
+    
+    private static boolean hasLease(EtcdNode node) {
+        return node == null || node.expiration != null || (node.ttl != null && node.ttl.longValue() > 0L);
+    }
+    
+    /** fails as not known if the instance directory lacks its description */
+    private CompletableFuture<Void> checkDescriptionAsync(final String dirName) {
+        return transport().readAsync(get(dirName + "/" + DESCRIPTION, false)).handle((response, failure) -> {
+            if(failure == null) 
+                return null;
+            if(errorCode(failure) == 100) { // key not found //
+                forgetDirectory(dirName);
+                throw new CompletionException(new RegistrationException("not known: " + dirName + " has been created again by a write", 
+                            RegistryFutures.unwrap(failure)));
+            }
+            throw failed(failure);
+        });
+    }
+    
+    private static Integer toTtlSeconds(long millis) {
+        return Integer.valueOf((int) Math.max(1L, (millis + 999L) / 1000L));
+    }
 
     @Override
     public void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RegistrationException {
-        String dirName = generateComponentInstanceDirectory(instId, cid, cinstId);
-        setPropertyInDirectory(dirName, property, value.toString());
+        addComponentProperties(instId, cid, cinstId, Collections.singletonMap(property, value));
     }
 
     @Override
-    public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
-        
-        Map<ComponentInstanceId, Map<String, String>> retVal = null;
-        String dirName = generateComponentDirectory(instId, compId);
-        EtcdKeysResponse ccc = null;
-        try {
-            ccc = etcd.getDir(dirName).recursive().sorted().send().get();
-            retVal = dumpFirstLevelKeys(ccc.node);
-            for(Entry<ComponentInstanceId, Map<String, String>> entry : retVal.entrySet()) {
-                ComponentInstanceId id = entry.getKey();
-                String secondLevelDir = generateComponentInstanceDirectory(instId, compId, id); 
-                ccc = etcd.getDir(secondLevelDir).recursive().sorted().send().get();
-                dumpSecondLevelKeys(ccc.node, entry.getValue());
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) throws RegistrationException {
+        addComponentProperties(instId, cid, Collections.singletonMap(cinstId, properties));
+    }
+    
+    /** etcd (v2) does not support transactions over multiple keys. hence, the properties 
+     * are not written atomically, but all requests are sent before waiting for the first 
+     * answer so that the entire batch costs about one round trip. */
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RegistrationException {
+        await(addComponentPropertiesAsync(instId, cid, properties));
+    }
+    
+    private CompletableFuture<Void> addComponentPropertiesAsync(final ApplicationInstanceId instId, final ComponentId cid, 
+                final Map<ComponentInstanceId, ? extends Map<String, ?>> properties) {
+        final Integer grace = toTtlSeconds(InstanceLease.DESTROYED_GRACE_MILLIS);
+        if(blobLayout) {
+            List<CompletableFuture<Void>> updates = new ArrayList<>();
+            for(Entry<ComponentInstanceId, ? extends Map<String, ?>> instance : properties.entrySet()) {
+                final String dirName = generateComponentInstanceDirectory(instId, cid, instance.getKey());
+                final boolean destroyed = InstanceLease.marksDestroyed(instance.getValue());
+                if(destroyed) {
+                    leaseTtls.put(dirName, grace);
+                }
+                updates.add(updateBlobAsync(dirName, instance.getValue(), true).thenCompose(isBlob -> 
+                            isBlob.booleanValue() || ! destroyed ? done() : refreshDirectoryAsync(dirName, grace)));
             }
-        } catch(IOException ioe) {
-            throw new RegistrationException(ioe);
-        } catch (java.util.concurrent.TimeoutException e) {
-            throw new RegistrationException(e);
-        } catch (EtcdException e) {
-            throw new RegistrationException(e);
+            return allOf(updates);
+        }
+        List<EtcdTransport.Request> requests = new ArrayList<>();
+        for(Entry<ComponentInstanceId, ? extends Map<String, ?>> instance : properties.entrySet()) {
+            String dirName = generateComponentInstanceDirectory(instId, cid, instance.getKey());
+            for(Entry<String, ?> property : instance.getValue().entrySet()) {
+                requests.add(put(dirName + "/" + property.getKey(), property.getValue().toString()));
+            }
+        }
+        return transport().writeAllAsync(requests).thenCompose(written -> {
+            List<CompletableFuture<Void>> refreshes = new ArrayList<>();
+            for(Entry<ComponentInstanceId, ? extends Map<String, ?>> instance : properties.entrySet()) {
+                if(InstanceLease.marksDestroyed(instance.getValue())) {
+                    refreshes.add(refreshDirectoryAsync(generateComponentInstanceDirectory(instId, cid, instance.getKey()), grace));
+                }
+            }
+            return allOf(refreshes);
+        });
+    }
+    
+    /** 
+     * merges the properties into the blob of an instance with compare-and-swap 
+     * on its modification index; retries with a fresh copy if another writer 
+     * was faster. As merging the same properties twice does not change the blob, 
+     * a write that is repeated on another etcd member after it has been applied 
+     * merely fails its condition and leads to another round. 
+     * Instances still stored in the key-per-property layout are 
+     * updated in that layout. Every write carries the lease of the instance, if any.
+     * @param create if false, a blob that does not exist is not created
+     * @return a future of false if the instance is stored in the key-per-property layout
+     */
+    private CompletableFuture<Boolean> updateBlobAsync(String instanceKey, Map<String, ?> toAdd, boolean create) {
+        return updateBlobAsync(instanceKey, toAdd, create, writtenBlobs.get(instanceKey), 0);
+    }
+    
+    private CompletableFuture<Boolean> updateBlobAsync(final String instanceKey, final Map<String, ?> toAdd, 
+                final boolean create, InstanceBlob cached, final int attempt) {
+        if(attempt == MAX_BLOB_UPDATES) 
+            return RegistryFutures.failed(new RegistrationException("could not update " + instanceKey + ": too many concurrent updates."));
+        CompletableFuture<InstanceBlob> known = cached != null ? CompletableFuture.completedFuture(cached) : readBlobAsync(instanceKey);
+        return known.thenCompose(previous -> {
+            if(previous == null) // old layout //
+                return addPropertiesInDirectoryAsync(instanceKey, toAdd).thenApply(written -> Boolean.FALSE);
+            if(! previous.exists() && ! create) 
+                throw new CompletionException(new RegistrationException("not known: " + instanceKey));
+            final Map<String, String> merged = previous.merge(toAdd);
+            final String value = InstanceBlob.encode(merged);
+            final Integer ttl = leaseTtls.get(instanceKey);
+            return transport().writeAsync(new EtcdTransport.Request() {
+                    @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                        EtcdKeyPutRequest request = client.put(instanceKey, value);
+                        if(previous.exists()) {
+                            request.prevIndex(previous.getModifiedIndex());
+                        } else {
+                            request.prevExist(false);
+                        }
+                        if(ttl != null) {
+                            request.ttl(ttl);
+                        }
+                        return request.send();
+                    }
+                }).handle((response, failure) -> {
+                    if(failure == null) {
+                        writtenBlobs.put(instanceKey, new InstanceBlob(response.node.modifiedIndex.longValue(), merged));
+                        return CompletableFuture.completedFuture(Boolean.TRUE);
+                    }
+                    int code = errorCode(failure);
+                    if(code == 100) { // expired in the meantime //
+                        forgetDirectory(instanceKey);
+                        writtenBlobs.remove(instanceKey);
+                    }
+                    if(code == 100 && ! create) 
+                        throw new CompletionException(new RegistrationException("not known: " + instanceKey, RegistryFutures.unwrap(failure)));
+                    if(code != 100 && code != 101 && code != 105) // key not found; compare failed; node exists //
+                        throw failed(failure);
+                    return updateBlobAsync(instanceKey, toAdd, create, null, attempt + 1);
+                }).thenCompose(next -> next);
+        });
+    }
+    
+    /** @return a future of the blob of this instance, InstanceBlob.ABSENT if there is 
+     * none, or null if this instance is stored in the key-per-property layout */
+    private CompletableFuture<InstanceBlob> readBlobAsync(String instanceKey) {
+        return transport().readAsync(get(instanceKey, false)).handle((response, failure) -> {
+            if(failure == null) {
+                EtcdNode node = response.node;
+                if(node.dir) 
+                    return null;
+                return new InstanceBlob(node.modifiedIndex.longValue(), InstanceBlob.decode(node.value));
+            }
+            if(errorCode(failure) == 100) // key not found //
+                return InstanceBlob.ABSENT;
+            throw failed(failure);
+        });
+    }
+    
+    private CompletableFuture<Void> addPropertiesInDirectoryAsync(String dirName, Map<String, ?> properties) {
+        List<EtcdTransport.Request> requests = new ArrayList<>();
+        for(Entry<String, ?> property : properties.entrySet()) {
+            requests.add(put(dirName + "/" + property.getKey(), property.getValue().toString()));
         }
+        return transport().writeAllAsync(requests);
+    }
+    
+    /** sends all requests before waiting for the first answer */
+    private void writeAll(List<EtcdTransport.Request> requests) throws RegistrationException {
+        await(transport().writeAllAsync(requests));
+    }
+    
+    private static EtcdTransport.Request put(final String key, final String value) {
+        return new EtcdTransport.Request() {
+            @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                return client.put(key, value).send();
+            }
+        };
+    }
+    
+    /** lists a directory without descending into its subdirectories */
+    private static EtcdTransport.Request list(final String key) {
+        return new EtcdTransport.Request() {
+            @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                return client.getDir(key).sorted().send();
+            }
+        };
+    }
+    
+    private static EtcdTransport.Request get(final String key, final boolean recursiveDir) {
+        return new EtcdTransport.Request() {
+            @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                if(! recursiveDir) 
+                    return client.get(key).send();
+                return client.getDir(key).recursive().sorted().send();
+            }
+        };
+    }
+    
+    /** 
+     * blocking and asynchronous operations share the same implementation, 
+     * so that both behave alike. 
+     */
+    private static <T> T await(CompletableFuture<T> future) throws RegistrationException {
+        return RegistryFutures.await(future);
+    }
+    
+    /** @return a future that fails with a RegistrationException whenever the given one fails */
+    private static <T> CompletableFuture<T> withRegistrationFailures(CompletableFuture<T> future) {
+        final CompletableFuture<T> retVal = new CompletableFuture<>();
+        future.whenComplete((value, failure) -> {
+            if(failure == null) {
+                retVal.complete(value);
+            } else {
+                retVal.completeExceptionally(RegistryFutures.asRegistrationException(failure));
+            }
+        });
         return retVal;
     }
     
+    /** @return the etcd error code of this failure, or -1 if etcd did not answer */
+    private static int errorCode(Throwable failure) {
+        Throwable t = RegistryFutures.unwrap(failure);
+        return t instanceof EtcdException ? ((EtcdException) t).errorCode : -1;
+    }
+    
+    /** @return an exception that lets a dependent stage fail with a RegistrationException */
+    private static CompletionException failed(Throwable failure) {
+        return new CompletionException(RegistryFutures.asRegistrationException(failure));
+    }
+    
+    private static CompletableFuture<Void> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+    
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return await(dumpComponentAsync(instId, compId));
+    }
+    
+    private CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> dumpComponentAsync(ApplicationInstanceId instId, ComponentId compId) {
+        return readComponentDirectoryAsync(instId, compId).thenApply(ccc -> dumpAllKeys(ccc.node));
+    }
+    
+    @Override
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return await(dumpComponentWithVersionAsync(instId, compId));
+    }
+    
+    private CompletableFuture<ComponentDump> dumpComponentWithVersionAsync(ApplicationInstanceId instId, ComponentId compId) {
+        return readComponentDirectoryAsync(instId, compId).thenApply(ccc -> 
+                    new ComponentDump(componentVersion(ccc.node), dumpAllKeys(ccc.node)));
+    }
+    
+    @Override
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return await(snapshotComponentAsync(instId, compId));
+    }
+    
+    private CompletableFuture<ComponentSnapshot> snapshotComponentAsync(ApplicationInstanceId instId, ComponentId compId) {
+        return readComponentDirectoryAsync(instId, compId).thenApply(ccc -> 
+                    ComponentSnapshot.of(componentVersion(ccc.node), dumpAllKeys(ccc.node)));
+    }
+    
+    /** 
+     * etcd does not report which instances have changed, so this costs as much as 
+     * dumpComponentWithVersion and only saves the reader from processing an unchanged dump. 
+     */
+    @Override
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RegistrationException {
+        return await(dumpComponentSinceAsync(instId, compId, sinceVersion));
+    }
+    
+    private CompletableFuture<ComponentDelta> dumpComponentSinceAsync(ApplicationInstanceId instId, ComponentId compId, final long sinceVersion) {
+        return readComponentDirectoryAsync(instId, compId).thenApply(ccc -> {
+            long version = componentVersion(ccc.node);
+            if(version == sinceVersion) 
+                return ComponentDelta.unchanged(sinceVersion);
+            return ComponentDelta.complete(sinceVersion, new ComponentDump(version, dumpAllKeys(ccc.node)));
+        });
+    }
+    
+    /** 
+     * etcd cannot evaluate the query itself; the component is read in a single 
+     * request and only matching instances and selected keys are kept. 
+     */
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RegistrationException {
+        return await(queryComponentAsync(instId, compId, query));
+    }
+    
+    private CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponentAsync(ApplicationInstanceId instId, ComponentId compId, 
+                final ComponentQuery query) {
+        return readComponentDirectoryAsync(instId, compId).thenApply(ccc -> {
+            EtcdNode root = ccc.node;
+            Map<ComponentInstanceId, Map<String, String>> retVal = new HashMap<>();
+            if(root.nodes == null) 
+                return retVal;
+            final int length = root.key.length() + 1;
+            for(EtcdNode node : root.nodes) {
+                String key = node.key.substring(length);
+                if(DESCRIPTION.equals(key) || NAME.equals(key)) 
+                    continue;
+                Map<String, String> map = new HashMap<>();
+                readInstance(node, map);
+                if(query.matches(map)) {
+                    retVal.put(ComponentInstanceId.fromString(key), query.project(map));
+                }
+            }
+            return retVal;
+        });
+    }
+    
+    /** 
+     * etcd (v2) cannot limit the size of an answer. hence, only the instances of 
+     * the component are listed, which includes the content of blobs, and instances 
+     * stored in the key-per-property layout are read one batch at a time until 
+     * the page is full.
+     */
+    @Override
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) 
+                throws RegistrationException {
+        return await(queryComponentPageAsync(instId, compId, query, continuation, pageSize));
+    }
+    
+    private CompletableFuture<ComponentPage> queryComponentPageAsync(ApplicationInstanceId instId, ComponentId compId, 
+                final ComponentQuery query, final String continuation, final int pageSize) {
+        ComponentPage.checkPageSize(pageSize);
+        return transport().readAsync(list(generateComponentDirectory(instId, compId))).thenCompose(listing -> {
+            List<EtcdNode> candidates = new ArrayList<>();
+            if(listing.node.nodes != null) {
+                for(EtcdNode node : listing.node.nodes) {
+                    String name = instanceName(node);
+                    if(! node.dir && (DESCRIPTION.equals(name) || NAME.equals(name))) 
+                        continue;
+                    if(ComponentPage.follows(ComponentInstanceId.fromString(name), continuation)) {
+                        candidates.add(node);
+                    }
+                }
+            }
+            Collections.sort(candidates, new Comparator<EtcdNode>() {
+                @Override public int compare(EtcdNode a, EtcdNode b) {
+                    return instanceName(a).compareTo(instanceName(b));
+                }
+            });
+            return fillPage(candidates, 0, query, pageSize, new LinkedHashMap<ComponentInstanceId, Map<String, String>>());
+        });
+    }
+    
+    /** reads the candidates from the given index on in batches of the free space of the page */
+    private CompletableFuture<ComponentPage> fillPage(final List<EtcdNode> candidates, final int from, final ComponentQuery query, 
+                final int pageSize, final Map<ComponentInstanceId, Map<String, String>> page) {
+        if(from == candidates.size()) 
+            return CompletableFuture.completedFuture(new ComponentPage(page, null));
+        if(page.size() == pageSize) 
+            return CompletableFuture.completedFuture(new ComponentPage(page, instanceName(candidates.get(from - 1))));
+        final int to = Math.min(candidates.size(), from + pageSize - page.size());
+        final List<CompletableFuture<EtcdNode>> reads = new ArrayList<>(to - from);
+        for(int i = from; i < to; i++) {
+            EtcdNode node = candidates.get(i);
+            reads.add(node.dir ? readInstanceDirectoryAsync(node.key) : CompletableFuture.completedFuture(node));
+        }
+        return allOf(reads).thenCompose(done -> {
+            for(CompletableFuture<EtcdNode> read : reads) {
+                EtcdNode node = read.join();
+                if(node == null) // removed since it has been listed //
+                    continue;
+                Map<String, String> map = new HashMap<>();
+                readInstance(node, map);
+                if(query.matches(map)) {
+                    page.put(ComponentInstanceId.fromString(instanceName(node)), query.project(map));
+                }
+            }
+            return fillPage(candidates, to, query, pageSize, page);
+        });
+    }
+    
+    /** @return a future of the instance directory with all properties, or of null if there is none */
+    private CompletableFuture<EtcdNode> readInstanceDirectoryAsync(String dirName) {
+        return transport().readAsync(get(dirName, true)).handle((response, failure) -> {
+            if(failure == null) 
+                return response.node;
+            if(errorCode(failure) == 100) // key not found //
+                return null;
+            throw failed(failure);
+        });
+    }
+    
+    private static String instanceName(EtcdNode node) {
+        return node.key.substring(node.key.lastIndexOf('/') + 1);
+    }
+    
+    /** reads the entire component directory including all instances 
+     * and their properties in a single request. */
+    private CompletableFuture<EtcdKeysResponse> readComponentDirectoryAsync(ApplicationInstanceId instId, ComponentId compId) {
+        return transport().readAsync(get(generateComponentDirectory(instId, compId), true));
+    }
+    
     @Override
     public String getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String property) throws RegistrationException {
-        String dirName = generateComponentInstanceDirectory(appInstId, compId, myId);
-        return readPropertyFromDirectory(dirName, property);
+        return await(getComponentPropertyAsync(appInstId, compId, myId, property));
+    }
+    
+    private CompletableFuture<String> getComponentPropertyAsync(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, 
+                final String property) {
+        final String dirName = generateComponentInstanceDirectory(appInstId, compId, myId);
+        if(!blobLayout) {
+            return readPropertyFromDirectoryAsync(dirName, property).handle((value, failure) -> {
+                if(failure == null) 
+                    return CompletableFuture.completedFuture(value);
+                if(errorCode(failure) != 104) // not a directory, i.e., a blob //
+                    throw failed(failure);
+                return readBlobAsync(dirName).thenApply(blob -> blob == null ? null : blob.getProperties().get(property));
+            }).thenCompose(read -> read);
+        }
+        return readBlobAsync(dirName).thenCompose(blob -> {
+            if(blob == null) 
+                return readPropertyFromDirectoryAsync(dirName, property);
+            return CompletableFuture.completedFuture(blob.getProperties().get(property));
+        });
+    }
+    
+    private CompletableFuture<String> readPropertyFromDirectoryAsync(String dirName, String prop) {
+        return transport().readAsync(get(dirName + "/" + prop, false)).thenApply(ccc -> ccc.node.value);
+    }
+    
+    /** 
+     * all operations share their implementation with the blocking ones, 
+     * but no thread waits for etcd. 
+     */
+    @Override
+    public AsyncLcaRegistry async() {
+        return new AsyncLcaRegistry() {
+            
+            @Override
+            public CompletableFuture<Void> renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) {
+                return withRegistrationFailures(renewComponentInstanceAsync(instId, cid, cinstId, leaseMillis));
+            }
+            
+            @Override
+            public CompletableFuture<Boolean> removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) {
+                return withRegistrationFailures(removeComponentInstanceAsync(instId, cid, cinstId));
+            }
+            
+            @Override
+            public CompletableFuture<Void> addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) {
+                return addComponentProperties(instId, cid, cinstId, Collections.singletonMap(property, value));
+            }
+            
+            @Override
+            public CompletableFuture<Void> addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) {
+                return withRegistrationFailures(addComponentPropertiesAsync(instId, cid, Collections.singletonMap(cinstId, properties)));
+            }
+            
+            @Override
+            public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) {
+                return withRegistrationFailures(dumpComponentAsync(instId, compId));
+            }
+            
+            @Override
+            public CompletableFuture<ComponentDump> dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) {
+                return withRegistrationFailures(dumpComponentWithVersionAsync(instId, compId));
+            }
+            
+            @Override
+            public CompletableFuture<ComponentSnapshot> snapshotComponent(ApplicationInstanceId instId, ComponentId compId) {
+                return withRegistrationFailures(snapshotComponentAsync(instId, compId));
+            }
+            
+            @Override
+            public CompletableFuture<ComponentDelta> dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) {
+                return withRegistrationFailures(dumpComponentSinceAsync(instId, compId, sinceVersion));
+            }
+            
+            @Override
+            public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) {
+                return withRegistrationFailures(queryComponentAsync(instId, compId, query));
+            }
+            
+            @Override
+            public CompletableFuture<ComponentPage> queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) {
+                return withRegistrationFailures(queryComponentPageAsync(instId, compId, query, continuation, pageSize));
+            }
+            
+            @Override
+            public CompletableFuture<String> getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name) {
+                return withRegistrationFailures(getComponentPropertyAsync(appInstId, compId, myId, name));
+            }
+        };
     }
     
 
+    /** reads the entire application instance directory in a single request */
+    @Override
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        final EtcdKeysResponse response;
+        try {
+            response = await(transport().readAsync(get(generateApplicationInstanceDirectory(instId), true)));
+        } catch(RegistrationException re) {
+            if(errorCode(re.getCause()) == 100) // key not found //
+                return null;
+            throw re;
+        }
+        if(response == null || ! response.node.dir) // a tombstone (see forwardApplicationInstance) //
+            return null;
+        EtcdNode root = response.node;
+        final int length = root.key.length() + 1;
+        String name = null;
+        Map<ComponentId, String> componentNames = new HashMap<>();
+        Map<ComponentId, Map<ComponentInstanceId, Map<String, String>>> instances = new HashMap<>();
+        if(root.nodes != null) {
+            for(EtcdNode node : root.nodes) {
+                String key = node.key.substring(length);
+                if(! node.dir) {
+                    if(NAME.equals(key)) 
+                        name = node.value;
+                    continue;
+                }
+                ComponentId cid = ComponentId.fromString(key);
+                componentNames.put(cid, componentName(node));
+                instances.put(cid, dumpAllKeys(node));
+            }
+        }
+        return new ApplicationInstanceExport(instId, null, name, componentNames, instances);
+    }
+    
+    private static String componentName(EtcdNode componentNode) {
+        if(componentNode.nodes == null) 
+            return null;
+        final String nameKey = componentNode.key + "/" + NAME;
+        for(EtcdNode node : componentNode.nodes) {
+            if(! node.dir && nameKey.equals(node.key)) 
+                return node.value;
+        }
+        return null;
+    }
+    
+    @Override
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        final String dirName = generateApplicationInstanceDirectory(instId);
+        boolean removed = await(transport().writeAsync(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.delete(dirName).recursive().send();
+                }
+            }).handle((response, failure) -> {
+                if(failure != null && errorCode(failure) != 100) // key not found //
+                    throw failed(failure);
+                return Boolean.valueOf(failure == null);
+            })).booleanValue();
+        final String prefix = dirName + "/";
+        forgetDirectory(dirName);
+        removeWithPrefix(writtenBlobs.keySet(), prefix);
+        removeWithPrefix(leaseTtls.keySet(), prefix);
+        return removed;
+    }
+    
+    /** 
+     * etcd creates missing directories on every write, so that a writer that 
+     * has not learnt about the move would create the application instance anew. 
+     * Hence, a value (tombstone) takes the place of its directory: writes below 
+     * it fail with 'not a directory', reads with 'key not found' or 'not a directory'. 
+     */
+    @Override
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RegistrationException {
+        final String dirName = generateApplicationInstanceDirectory(instId);
+        writeAll(Collections.singletonList(put(generateForwardingKey(instId), location)));
+        boolean removed = removeApplicationInstance(instId);
+        for(int attempt = 0; attempt < MAX_BLOB_UPDATES; attempt++) {
+            int code = await(transport().writeAsync(new EtcdTransport.Request() {
+                    @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                        return client.put(dirName, location).prevExist(false).send();
+                    }
+                    @Override boolean isRetryable() {
+                        return false;
+                    }
+                }).handle((response, failure) -> Integer.valueOf(failure == null ? 0 : errorCode(failure)))).intValue();
+            if(code == 0) 
+                return removed;
+            if(code != 105) // node exists, i.e., written again in the meantime //
+                throw new RegistrationException("could not leave tombstone for " + instId + ": etcd error " + code);
+            removed |= removeApplicationInstance(instId);
+        }
+        throw new RegistrationException("could not forward " + instId + ": too many concurrent writes.");
+    }
+    
+    @Override
+    public String getForwarding(ApplicationInstanceId instId) throws RegistrationException {
+        return await(transport().readAsync(get(generateForwardingKey(instId), false)).handle((response, failure) -> {
+            if(failure == null) 
+                return response.node.value;
+            if(errorCode(failure) == 100) // key not found //
+                return null;
+            throw failed(failure);
+        }));
+    }
+    
+    /** @return true if a tombstone has been found in place of the application instance's directory and removed */
+    private boolean removeTombstone(ApplicationInstanceId instId) throws RegistrationException {
+        final String dirName = generateApplicationInstanceDirectory(instId);
+        EtcdKeysResponse response = await(transport().readAsync(get(dirName, false)).handle((found, failure) -> {
+            if(failure == null) 
+                return found;
+            if(errorCode(failure) == 100) // key not found //
+                return null;
+            throw failed(failure);
+        }));
+        if(response == null || response.node.dir) 
+            return false;
+        // the forwarding goes first, so that it never names another location while this one is in use //
+        deleteValue(generateForwardingKey(instId));
+        deleteValue(dirName);
+        forgetDirectory(dirName);
+        return true;
+    }
+    
+    private void deleteValue(final String key) throws RegistrationException {
+        await(transport().writeAsync(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.delete(key).send();
+                }
+            }).handle((response, failure) -> {
+                if(failure != null && errorCode(failure) != 100) // key not found //
+                    throw failed(failure);
+                return null;
+            }));
+    }
+    
+    /** 
+     * forgets the directory, everything below it, and its parents, as it is 
+     * unknown which of them has been removed. 
+     */
+    private void forgetDirectory(String dirName) {
+        removeWithPrefix(knownDirectories, dirName + "/");
+        for(String dir = dirName; ! dir.isEmpty(); dir = dir.substring(0, dir.lastIndexOf('/'))) {
+            knownDirectories.remove(dir);
+        }
+    }
+    
+    private static void removeWithPrefix(Set<String> keys, String prefix) {
+        for(Iterator<String> it = keys.iterator(); it.hasNext(); ) {
+            if(it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+    
     @Override
     public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RegistrationException {
         final String dirName = generateApplicationInstanceDirectory(appInstId);
@@ -146,24 +918,68 @@ final class EtcdRegistryImpl implements LcaRegistry {
         return directoryDoesExist(dirName); 
     }
     
+    @Override
+    public boolean addComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        String dirName = generateComponentDirectory(instId, compId);
+        synchronized(watchers) {
+            EtcdComponentWatcher watcher = watchers.get(dirName);
+            if(watcher == null) {
+                watcher = new EtcdComponentWatcher(transport(), dirName, instId, compId);
+                watcher.start();
+                watchers.put(dirName, watcher);
+            }
+            watcher.addListener(listener);
+        }
+        return true;
+    }
+    
+    @Override
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) {
+        String dirName = generateComponentDirectory(instId, compId);
+        synchronized(watchers) {
+            EtcdComponentWatcher watcher = watchers.get(dirName);
+            if(watcher == null) 
+                return;
+            if(watcher.removeListener(listener)) {
+                watcher.cancel();
+                watchers.remove(dirName);
+            }
+        }
+    }
+    
     /**
+     * creates the directory in a single conditional request, so that exactly 
+     * one of several concurrent callers succeeds. The request is not repeated 
+     * on another etcd member if the answer is lost, as this caller could then 
+     * not tell whether it created the directory.
      * @return true if this directory has been created successfully. false if it was already 
      *             contained in the registry.
      */
-    private boolean createDirectorIfItDoesNotExist(String dirName) throws RegistrationException {
-        if(directoryDoesExist(dirName)) 
+    private boolean createDirectorIfItDoesNotExist(final String dirName) throws RegistrationException {
+        if(knownDirectories.contains(dirName)) 
             return false;
         
         try {
-            // EtcdKeysResponse ccc = 
-            etcd.putDir(dirName).send().get();
+            transport().write(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.putDir(dirName).prevExist(false).send();
+                }
+                // a repeated create that has been applied the first time would report 'node exists' //
+                @Override boolean isRetryable() {
+                    return false;
+                }
+            });
         } catch(IOException ioe) {
             throw new RegistrationException(ioe);
         } catch (java.util.concurrent.TimeoutException e) {
             throw new RegistrationException(e);
         } catch (EtcdException e) {
-            throw new RegistrationException(e);
+            if(e.errorCode != 105) // node exists //
+                throw new RegistrationException(e);
+            knownDirectories.add(dirName);
+            return false;
         }
+        knownDirectories.add(dirName);
         return true;
     }
     
@@ -171,10 +987,19 @@ final class EtcdRegistryImpl implements LcaRegistry {
      * @return true if this directory exists. false if it was already 
      *             contained in the registry.
      */
-    private boolean directoryDoesExist(String dirName) throws RegistrationException {
+    private boolean directoryDoesExist(final String dirName) throws RegistrationException {
+        if(knownDirectories.contains(dirName)) 
+            return true;
         try { 
-            EtcdKeysResponse response = etcd.getDir(dirName).send().get(); 
-            return response != null;
+            EtcdKeysResponse response = transport().read(new EtcdTransport.Request() {
+                @Override EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException {
+                    return client.getDir(dirName).send();
+                }
+            }); 
+            if(response == null) 
+                return false;
+            knownDirectories.add(dirName);
+            return true;
         } catch(IOException ioe) {
             throw new RegistrationException(ioe);
         } catch (java.util.concurrent.TimeoutException e) {
@@ -188,25 +1013,26 @@ final class EtcdRegistryImpl implements LcaRegistry {
     
     private void readObject(java.io.ObjectInputStream stream) throws IOException, ClassNotFoundException {
         stream.defaultReadObject();
-        etcd = new EtcdClient(uris);
+        // registries arrive with every deployment context; they share the clients of the agent //
+        etcd = EtcdTransport.forMembers(uris);
+        ownsTransport = false;
+        watchers = new ConcurrentHashMap<>();
+        knownDirectories = knownDirectoriesFor(uris);
+        writtenBlobs = new ConcurrentHashMap<>();
+        leaseTtls = new ConcurrentHashMap<>();
     }
     
-    private String readPropertyFromDirectory(String dirName, String prop) throws RegistrationException {
-        try {
-            EtcdKeysResponse ccc = etcd.get(dirName + "/" + prop).send().get();
-            return ccc.node.value;
-        } catch(IOException ioe) {
-            throw new RegistrationException(ioe);
-        } catch (java.util.concurrent.TimeoutException e) {
-            throw new RegistrationException(e);
-        } catch (EtcdException e) {
-            throw new RegistrationException(e);
-        }
+    /** sends both writes before waiting for the first answer */
+    private void setPropertiesInDirectory(String dirName, String prop1, String value1, String prop2, String value2) throws RegistrationException {
+        List<EtcdTransport.Request> requests = new ArrayList<>();
+        requests.add(put(dirName + "/" + prop1, value1));
+        requests.add(put(dirName + "/" + prop2, value2));
+        writeAll(requests);
     }
     
     private void setPropertyInDirectory(String dirName, String prop, String value) throws RegistrationException {
         try {
-            EtcdKeysResponse ccc = etcd.put(dirName + "/" + prop, value.toString()).send().get();
+            EtcdKeysResponse ccc = transport().write(put(dirName + "/" + prop, value.toString()));
             ccc.toString();
         } catch(IOException ioe) {
             throw new RegistrationException(ioe);
@@ -221,6 +1047,10 @@ final class EtcdRegistryImpl implements LcaRegistry {
         return "/lca/" + instId.toString();
     }
     
+    private final static String generateForwardingKey(ApplicationInstanceId instId) {
+        return FORWARDINGS_DIRECTORY + "/" + instId.toString();
+    }
+    
     private final static String generateComponentDirectory(ApplicationInstanceId instId, ComponentId cid) {
         return generateApplicationInstanceDirectory(instId) + "/" + cid.toString();
     }
@@ -229,6 +1059,40 @@ final class EtcdRegistryImpl implements LcaRegistry {
         return generateComponentDirectory(instId, cid) + "/" + cinstId.toString();
     }
     
+    /** 
+     * etcd does not keep any trace of a removed or expired node, so the highest 
+     * modification index alone may stay the same or even go down when an 
+     * instance disappears. Hence, the version combines it with the number of 
+     * instances: a write raises the index, a removal lowers the number. Two 
+     * reads with the same index and number see the same instances, as a 
+     * component can only lose instances without a write. 
+     * @return the highest modification index shifted left by 16 bits and the 
+     *          number of instances (modulo 2^16) in the lower 16 bits
+     */
+    static long componentVersion(EtcdNode componentNode) {
+        int instances = 0;
+        if(componentNode.nodes != null) {
+            for(EtcdNode node : componentNode.nodes) {
+                String name = instanceName(node);
+                if(node.dir || ! (DESCRIPTION.equals(name) || NAME.equals(name))) {
+                    instances++;
+                }
+            }
+        }
+        return (highestModifiedIndex(componentNode) << 16) | (instances & 0xFFFFL);
+    }
+    
+    /** @return the highest modification index found in the given subtree */
+    static long highestModifiedIndex(EtcdNode node) {
+        long max = node.modifiedIndex == null ? 0L : node.modifiedIndex.longValue();
+        if(node.nodes == null) 
+            return max;
+        for(EtcdNode child : node.nodes) {
+            max = Math.max(max, highestModifiedIndex(child));
+        }
+        return max;
+    }
+    
     private static void fillMapWithValue(String key, String value, Map<String, String> map) {
         if(DESCRIPTION.equals(key))
             return;
@@ -237,17 +1101,20 @@ final class EtcdRegistryImpl implements LcaRegistry {
         map.put(key, value);
     }
     
-    private static Map<ComponentInstanceId, Map<String, String>> dumpFirstLevelKeys(EtcdNode root) {
+    private static Map<ComponentInstanceId, Map<String, String>> dumpAllKeys(EtcdNode root) {
         final String mainDir = root.key;
         Map<ComponentInstanceId, Map<String, String>> retVal = new HashMap<>();
         final int length = mainDir.length() + 1;
+        if(root.nodes == null) 
+            return retVal;
         for(EtcdNode node : root.nodes) {
-            if(! node.dir) 
-                continue;
             String key = node.key.substring(length);
+            if(! node.dir && (DESCRIPTION.equals(key) || NAME.equals(key))) 
+                continue;
             String[] split = key.split("/");
             if(split.length == 1) { // component instance element //
-                createComponentInstanceIfNotExistantAndFillWithMap(key, retVal);
+                Map<String, String> map = createComponentInstanceIfNotExistantAndFillWithMap(key, retVal);
+                readInstance(node, map);
             } else {
                 throw new IllegalStateException("invalid directory structure for key");
                 // Map<String,String> map = createComponentInstanceIfNotExistantAndFillWithMap(split[0], retVal);
@@ -257,9 +1124,20 @@ final class EtcdRegistryImpl implements LcaRegistry {
         return retVal;
     }
     
+    /** reads an instance in either layout: a directory with one key per property or a blob */
+    private static void readInstance(EtcdNode node, Map<String, String> map) {
+        if(node.dir) {
+            dumpSecondLevelKeys(node, map);
+        } else {
+            map.putAll(InstanceBlob.decode(node.value));
+        }
+    }
+    
     private static void dumpSecondLevelKeys(EtcdNode root, Map<String, String> map) {
         final String mainDir = root.key;
         final int length = mainDir.length() + 1;
+        if(root.nodes == null) 
+            return;
         for(EtcdNode node : root.nodes) {
             if(node.dir) 
                 throw new IllegalStateException("unexpected to find directories in component instances");
@@ -0,0 +1,741 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import mousio.client.promises.ResponsePromise;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import mousio.etcd4j.transport.EtcdNettyClient;
+import mousio.etcd4j.transport.EtcdNettyConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+
+/**
+ * sends the requests of the registry to the members of an etcd cluster. Each 
+ * member is accessed through a client of its own and keeps a moving average 
+ * of its latency and of its error rate. Requests go to the fastest healthy 
+ * member first. A read that has not been answered within the 95th percentile 
+ * of the recent read latencies is sent to a second member as well; the first 
+ * answer wins. A member that fails several times in a row is skipped (circuit 
+ * breaker) and only tried again with a single request after a back-off that 
+ * grows with every further failure. All requests complete asynchronously 
+ * on the threads of the etcd clients; the blocking variants only wait for 
+ * the asynchronous ones.
+ * 
+ * Answers that carry an etcd error (e.g. key not found) are successful round 
+ * trips; only I/O errors and time-outs count as failures. Every attempt of a 
+ * write has a time-out of its own, after which the write is repeated on the 
+ * next member. As the first member may still apply it, only requests that 
+ * may be applied twice are repeated: plain writes are, whereas a create that 
+ * has already been applied would fail with 'node exists' when repeated. 
+ * Hence, requests that are not retryable fail after the first ambiguous 
+ * attempt; only a request that could not be sent at all goes to the next member.
+ */
+final class EtcdTransport implements Closeable {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** time after which a read fails if no member has answered */
+    private static final long READ_TIMEOUT_MILLIS = 10000L;
+    /** time after which a single attempt of a write counts as failed */
+    private static final long WRITE_ATTEMPT_TIMEOUT_MILLIS = 5000L;
+    /** hedging delay until enough reads have been observed */
+    private static final long INITIAL_HEDGE_DELAY_MILLIS = 50L;
+    /** lower bound of the hedging delay, so that a fast cluster does not get every read twice */
+    private static final long MIN_HEDGE_DELAY_MILLIS = 2L;
+    private static final int LATENCY_WINDOW = 128;
+    private static final int MIN_LATENCY_SAMPLES = 16;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    
+    /** weight of a new sample in the moving averages */
+    private static final double EWMA_WEIGHT = 0.2;
+    /** how much a member's error rate weighs against its latency when ranking */
+    private static final double ERROR_PENALTY = 4.0;
+    private static final int FAILURE_THRESHOLD = 3;
+    /** largest answer a client accepts. etcd4j drops larger answers without failing 
+     * the request (default: 100 KiB), which a recursive listing of a component 
+     * with a few dozen instances already exceeds */
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+    private static final long BASE_OPEN_MILLIS = 1000L;
+    private static final long MAX_OPEN_MILLIS = 60000L;
+    
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "etcd-hedge-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /** one transport per set of members for the entire process, as every client 
+     * comes with its own event loop and connection pool. Registries created in 
+     * this process own their transport (acquire/release); registries that arrive 
+     * serialised, e.g. with a deployment context, only use it (forMembers). */
+    private static final ConcurrentMap<String, EtcdTransport> SHARED = new ConcurrentHashMap<>();
+    
+    private final String key;
+    private final Endpoint[] endpoints;
+    // guarded by SHARED //
+    private int owners = 0;
+    private volatile boolean closed = false;
+    // guarded by itself //
+    private final long[] readLatencies = new long[LATENCY_WINDOW];
+    private int readCount = 0;
+    
+    private EtcdTransport(String keyParam, URI[] uris) {
+        key = keyParam;
+        endpoints = new Endpoint[uris.length];
+        for(int i = 0; i < uris.length; i++) {
+            endpoints[i] = new Endpoint(uris[i]);
+        }
+    }
+    
+    /** @return the shared transport for this set of members; the order of the members does not matter */
+    static EtcdTransport forMembers(URI[] uris) {
+        final String key = membersKey(uris);
+        EtcdTransport transport = SHARED.get(key);
+        if(transport != null) 
+            return transport;
+        synchronized(SHARED) {
+            transport = SHARED.get(key);
+            if(transport == null) {
+                LOGGER.info("creating etcd clients for " + key);
+                transport = new EtcdTransport(key, uris);
+                SHARED.put(key, transport);
+            }
+            return transport;
+        }
+    }
+    
+    /** @return the shared transport for this set of members, which stays open until every caller has released it */
+    static EtcdTransport acquire(URI[] uris) {
+        synchronized(SHARED) {
+            EtcdTransport transport = forMembers(uris);
+            transport.owners++;
+            return transport;
+        }
+    }
+    
+    /** closes the transport once the last owner has released it */
+    void release() {
+        synchronized(SHARED) {
+            if(owners == 0) 
+                throw new IllegalStateException("transport has no owner: " + key);
+            if(--owners > 0) 
+                return;
+            SHARED.remove(key, this);
+        }
+        closeQuietly();
+    }
+    
+    boolean isClosed() {
+        return closed;
+    }
+    
+    static String membersKey(URI[] uris) {
+        String[] members = new String[uris.length];
+        for(int i = 0; i < uris.length; i++) {
+            members[i] = uris[i].toString();
+        }
+        Arrays.sort(members);
+        return Arrays.toString(members);
+    }
+    
+    /** 
+     * closes the shared transports that no registry of this process owns; 
+     * transports that are owned are closed when their last owner releases them. 
+     * Later calls of forMembers create new transports.
+     */
+    static void closeUnowned() {
+        List<EtcdTransport> unowned = new ArrayList<>();
+        synchronized(SHARED) {
+            for(Iterator<EtcdTransport> it = SHARED.values().iterator(); it.hasNext(); ) {
+                EtcdTransport transport = it.next();
+                if(transport.owners == 0) {
+                    unowned.add(transport);
+                    it.remove();
+                }
+            }
+        }
+        for(EtcdTransport transport : unowned) {
+            transport.closeQuietly();
+        }
+    }
+    
+    private void closeQuietly() {
+        try {
+            close();
+        } catch(IOException ioe) {
+            LOGGER.warn("could not close etcd clients", ioe);
+        }
+    }
+    
+    /** creates the request for the client of a member; may be called for several members */
+    abstract static class Request {
+        abstract EtcdResponsePromise<EtcdKeysResponse> send(EtcdClient client) throws IOException;
+        
+        /** @return false if applying the request twice has another result than applying it once */
+        boolean isRetryable() {
+            return true;
+        }
+    }
+    
+    /** blocks until readAsync has completed */
+    EtcdKeysResponse read(Request request) throws IOException, TimeoutException, EtcdException {
+        return await(readAsync(request));
+    }
+    
+    /** blocks until writeAsync has completed */
+    EtcdKeysResponse write(Request request) throws IOException, TimeoutException, EtcdException {
+        return await(writeAsync(request));
+    }
+    
+    /** blocks until writeAllAsync has completed */
+    void writeAll(List<Request> requests) throws IOException, TimeoutException, EtcdException {
+        await(writeAllAsync(requests));
+    }
+    
+    /** 
+     * sends the request to the best member and hedges it to the second best one if needed. 
+     * The future fails with the EtcdException reported by a member, or with an IOException 
+     * or TimeoutException if no member has answered. No thread waits for the answer.
+     */
+    CompletableFuture<EtcdKeysResponse> readAsync(Request request) {
+        HedgedRead read = new HedgedRead(rank(), request);
+        read.start();
+        return read.result;
+    }
+    
+    /** sends the request to the best member; repeats it on the next one after a failure */
+    CompletableFuture<EtcdKeysResponse> writeAsync(Request request) {
+        CompletableFuture<EtcdKeysResponse> result = new CompletableFuture<>();
+        writeTo(rank(), request, result, null);
+        return result;
+    }
+    
+    /** 
+     * sends all requests to one member before the first answer arrives; 
+     * requests that fail are repeated on the next member. The future fails 
+     * with the first error reported by etcd, if any. All requests have to be retryable.
+     */
+    CompletableFuture<Void> writeAllAsync(List<Request> requests) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        new Batch(rank(), result).writeTo(requests);
+        return result;
+    }
+    
+    /** @return the client of the best member for requests that are not tracked, such as watches */
+    EtcdClient watchClient() {
+        return rank().best().client;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for(Endpoint e : endpoints) {
+            e.client.close();
+        }
+    }
+    
+    private void writeTo(final Members members, final Request request, 
+                final CompletableFuture<EtcdKeysResponse> result, Throwable failure) {
+        final Endpoint e = members.next();
+        if(e == null) {
+            result.completeExceptionally(asTransportFailure(failure));
+            return;
+        }
+        final long start = System.nanoTime();
+        // set by the answer or by the time-out, whichever comes first //
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final ScheduledFuture<?> timeout = TIMER.schedule(new Runnable() {
+            @Override public void run() {
+                if(settled.compareAndSet(false, true)) {
+                    e.recordFailure();
+                    retryOrFail(members, request, result, new TimeoutException("etcd member " + e.uri 
+                                + " did not answer within " + WRITE_ATTEMPT_TIMEOUT_MILLIS + " ms"));
+                }
+            }
+        }, WRITE_ATTEMPT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            request.send(e.client).addListener(new ResponsePromise.IsSimplePromiseResponseHandler<EtcdKeysResponse>() {
+                @Override public void onResponse(ResponsePromise<EtcdKeysResponse> response) {
+                    if(! settled.compareAndSet(false, true)) 
+                        return;
+                    timeout.cancel(false);
+                    Throwable t = response.getException();
+                    if(t != null && !(t instanceof EtcdException)) {
+                        e.recordFailure();
+                        retryOrFail(members, request, result, t);
+                        return;
+                    }
+                    e.recordSuccess(System.nanoTime() - start);
+                    if(t == null) {
+                        result.complete(response.getNow());
+                    } else {
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch(IOException ioe) {
+            if(! settled.compareAndSet(false, true)) 
+                return;
+            timeout.cancel(false);
+            e.recordFailure();
+            // the request has not left this process; hence, any request may go to the next member //
+            writeTo(members, request, result, ioe);
+        }
+    }
+    
+    /** a request that has failed after it was sent may have been applied anyway */
+    private void retryOrFail(Members members, Request request, CompletableFuture<EtcdKeysResponse> result, Throwable failure) {
+        if(request.isRetryable()) {
+            writeTo(members, request, result, failure);
+        } else {
+            result.completeExceptionally(asTransportFailure(failure));
+        }
+    }
+    
+    /** @return the result of a future of this class with the original exception types */
+    static <T> T await(CompletableFuture<T> future) throws IOException, TimeoutException, EtcdException {
+        try {
+            return future.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for etcd", ie);
+        } catch(ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if(t instanceof EtcdException) 
+                throw (EtcdException) t;
+            if(t instanceof TimeoutException) 
+                throw (TimeoutException) t;
+            throw asIOException(t);
+        }
+    }
+    
+    private void recordReadLatency(long nanos) {
+        synchronized(readLatencies) {
+            readLatencies[readCount % LATENCY_WINDOW] = nanos;
+            readCount++;
+        }
+    }
+    
+    private long hedgeDelayNanos() {
+        long[] copy;
+        synchronized(readLatencies) {
+            if(readCount < MIN_LATENCY_SAMPLES) 
+                return TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY_MILLIS);
+            copy = Arrays.copyOf(readLatencies, Math.min(readCount, LATENCY_WINDOW));
+        }
+        Arrays.sort(copy);
+        long p = copy[(int) Math.ceil(HEDGE_PERCENTILE * copy.length) - 1];
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MILLIS), p);
+    }
+    
+    /** 
+     * @return the members that may be used, best first; all members if none may be used. 
+     * Ranking does not use up the trial request of a member whose circuit is open; 
+     * only the member that is actually taken from the result does. 
+     */
+    private Members rank() {
+        final long now = System.nanoTime();
+        List<Ranked> available = new ArrayList<>(endpoints.length);
+        for(Endpoint e : endpoints) {
+            if(e.mayBeTried(now)) {
+                available.add(new Ranked(e));
+            }
+        }
+        final boolean force = available.isEmpty();
+        if(force) {
+            for(Endpoint e : endpoints) {
+                available.add(new Ranked(e));
+            }
+        }
+        // scores are taken once, as they change while sorting //
+        Collections.sort(available, new Comparator<Ranked>() {
+            @Override public int compare(Ranked a, Ranked b) {
+                return Double.compare(a.score, b.score);
+            }
+        });
+        List<Endpoint> retVal = new ArrayList<>(available.size());
+        for(Ranked r : available) {
+            retVal.add(r.endpoint);
+        }
+        return new Members(retVal, force);
+    }
+    
+    private static Throwable asTransportFailure(Throwable failure) {
+        if(failure instanceof TimeoutException) 
+            return failure;
+        return asIOException(failure);
+    }
+    
+    private static IOException asIOException(Throwable failure) {
+        if(failure instanceof IOException) 
+            return (IOException) failure;
+        return new IOException("no etcd member available", failure);
+    }
+    
+    /** 
+     * a read that is sent to the next member when the hedging delay has passed 
+     * without an answer, or when all members asked so far have failed 
+     */
+    private final class HedgedRead {
+        
+        final CompletableFuture<EtcdKeysResponse> result = new CompletableFuture<>();
+        private final Members members;
+        private final Request request;
+        // guarded by this //
+        private int pending = 0;
+        private Throwable failure = null;
+        
+        HedgedRead(Members membersParam, Request requestParam) {
+            members = membersParam;
+            request = requestParam;
+        }
+        
+        void start() {
+            synchronized(this) {
+                sendToNext();
+            }
+            if(result.isDone()) 
+                return;
+            final ScheduledFuture<?> hedge = TIMER.schedule(new Runnable() {
+                @Override public void run() {
+                    synchronized(HedgedRead.this) {
+                        if(! result.isDone() && members.hasMore()) {
+                            sendToNext();
+                        }
+                    }
+                }
+            }, hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+            final ScheduledFuture<?> timeout = TIMER.schedule(new Runnable() {
+                @Override public void run() {
+                    result.completeExceptionally(new TimeoutException("no etcd member answered within " + READ_TIMEOUT_MILLIS + " ms"));
+                }
+            }, READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            result.whenComplete(new BiConsumer<EtcdKeysResponse, Throwable>() {
+                @Override public void accept(EtcdKeysResponse r, Throwable t) {
+                    hedge.cancel(false);
+                    timeout.cancel(false);
+                }
+            });
+        }
+        
+        /** has to be called while holding the lock; fails over until a request could be sent */
+        private void sendToNext() {
+            for(Endpoint e = members.next(); e != null; e = members.next()) {
+                pending++;
+                try {
+                    send(e);
+                    return;
+                } catch(IOException ioe) {
+                    e.recordFailure();
+                    pending--;
+                    failure = ioe;
+                }
+            }
+            if(pending == 0) {
+                result.completeExceptionally(asTransportFailure(failure));
+            }
+        }
+        
+        private void send(final Endpoint e) throws IOException {
+            final long start = System.nanoTime();
+            request.send(e.client).addListener(new ResponsePromise.IsSimplePromiseResponseHandler<EtcdKeysResponse>() {
+                @Override public void onResponse(ResponsePromise<EtcdKeysResponse> response) {
+                    final long latency = System.nanoTime() - start;
+                    Throwable t = response.getException();
+                    if(t == null || t instanceof EtcdException) {
+                        e.recordSuccess(latency);
+                        recordReadLatency(latency);
+                        if(t == null) {
+                            result.complete(response.getNow());
+                        } else {
+                            result.completeExceptionally(t);
+                        }
+                        return;
+                    }
+                    e.recordFailure();
+                    synchronized(HedgedRead.this) {
+                        pending--;
+                        failure = t;
+                        if(pending == 0 && ! result.isDone()) {
+                            sendToNext();
+                        }
+                    }
+                }
+            });
+        }
+    }
+    
+    /** a batch of writes; each round sends the requests that are left to the same member */
+    private static final class Batch {
+        
+        private final Members members;
+        private final CompletableFuture<Void> result;
+        // guarded by this //
+        private EtcdException answer = null;
+        private Throwable failure = null;
+        
+        Batch(Members membersParam, CompletableFuture<Void> resultParam) {
+            members = membersParam;
+            result = resultParam;
+        }
+        
+        void writeTo(List<Request> requests) {
+            final Endpoint e;
+            synchronized(this) {
+                e = requests.isEmpty() ? null : members.next();
+                if(e == null) {
+                    if(answer != null) {
+                        result.completeExceptionally(answer);
+                    } else if(requests.isEmpty()) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(asTransportFailure(failure));
+                    }
+                    return;
+                }
+            }
+            new Round(e, requests).start();
+        }
+        
+        /** 
+         * the requests sent to one member. Requests that have not been answered 
+         * when the time-out of the round expires count as failed; a late answer 
+         * is ignored. 
+         */
+        private final class Round {
+            
+            private final Endpoint endpoint;
+            private final List<Request> requests;
+            private final long start = System.nanoTime();
+            // guarded by Batch.this //
+            private final Set<Request> outstanding = Collections.newSetFromMap(new IdentityHashMap<Request, Boolean>());
+            private final List<Request> failed = new ArrayList<>();
+            private ScheduledFuture<?> timeout;
+            
+            Round(Endpoint endpointParam, List<Request> requestsParam) {
+                endpoint = endpointParam;
+                requests = requestsParam;
+            }
+            
+            void start() {
+                synchronized(Batch.this) {
+                    outstanding.addAll(requests);
+                    timeout = TIMER.schedule(new Runnable() {
+                        @Override public void run() {
+                            expire();
+                        }
+                    }, WRITE_ATTEMPT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for(final Request r : requests) {
+                    try {
+                        r.send(endpoint.client).addListener(new ResponsePromise.IsSimplePromiseResponseHandler<EtcdKeysResponse>() {
+                            @Override public void onResponse(ResponsePromise<EtcdKeysResponse> response) {
+                                done(r, response.getException());
+                            }
+                        });
+                    } catch(IOException ioe) {
+                        done(r, ioe);
+                    }
+                }
+            }
+            
+            private void expire() {
+                List<Request> late;
+                synchronized(Batch.this) {
+                    late = new ArrayList<>(outstanding);
+                }
+                for(Request r : late) {
+                    done(r, new TimeoutException("etcd member " + endpoint.uri + " did not answer within " 
+                                + WRITE_ATTEMPT_TIMEOUT_MILLIS + " ms"));
+                }
+            }
+            
+            private void done(Request r, Throwable t) {
+                List<Request> retry;
+                synchronized(Batch.this) {
+                    // answered after the time-out, or timed out after the answer //
+                    if(! outstanding.remove(r)) 
+                        return;
+                    if(t instanceof EtcdException) {
+                        if(answer == null) 
+                            answer = (EtcdException) t;
+                    } else if(t != null) {
+                        failure = t;
+                        failed.add(r);
+                    }
+                    if(! outstanding.isEmpty()) 
+                        return;
+                    retry = failed;
+                    timeout.cancel(false);
+                }
+                if(retry.size() < requests.size()) {
+                    endpoint.recordSuccess(System.nanoTime() - start);
+                } else {
+                    endpoint.recordFailure();
+                }
+                writeTo(retry);
+            }
+        }
+    }
+    
+    /** 
+     * the members for one request in the order in which they are tried. A member 
+     * whose circuit is open is only taken if its single trial request is due, 
+     * unless all circuits were open when the members were ranked. 
+     */
+    private static final class Members {
+        
+        private final List<Endpoint> ranked;
+        private final boolean force;
+        // guarded by this //
+        private int next = 0;
+        
+        Members(List<Endpoint> rankedParam, boolean forceParam) {
+            ranked = rankedParam;
+            force = forceParam;
+        }
+        
+        /** @return the best member; does not count as an attempt */
+        Endpoint best() {
+            return ranked.get(0);
+        }
+        
+        synchronized boolean hasMore() {
+            return next < ranked.size();
+        }
+        
+        /** @return the next member to send to, or null if there is none */
+        synchronized Endpoint next() {
+            while(next < ranked.size()) {
+                Endpoint e = ranked.get(next++);
+                if(force || e.tryAcquire(System.nanoTime())) 
+                    return e;
+            }
+            return null;
+        }
+    }
+    
+    private static final class Ranked {
+        final Endpoint endpoint;
+        final double score;
+        
+        Ranked(Endpoint endpointParam) {
+            endpoint = endpointParam;
+            score = endpointParam.score();
+        }
+    }
+    
+    /** statistics and circuit breaker of a single member */
+    private static final class Endpoint {
+        
+        final URI uri;
+        final EtcdClient client;
+        // guarded by this //
+        private double latencyMillis = 0.0;
+        private double errorRate = 0.0;
+        private int consecutiveFailures = 0;
+        private int trips = 0;
+        private boolean open = false;
+        private long retryAt;
+        
+        Endpoint(URI uriParam) {
+            uri = uriParam;
+            client = new EtcdClient(new EtcdNettyClient(new EtcdNettyConfig().setMaxFrameSize(MAX_RESPONSE_BYTES), null, uriParam));
+        }
+        
+        /** @return true if the circuit is closed or the trial request is due; changes nothing */
+        synchronized boolean mayBeTried(long now) {
+            return ! open || now - retryAt >= 0;
+        }
+        
+        /** once the circuit has been open long enough, a single request per back-off period is let through */
+        synchronized boolean tryAcquire(long now) {
+            if(! open) 
+                return true;
+            if(now - retryAt < 0) 
+                return false;
+            retryAt = now + openNanos();
+            return true;
+        }
+        
+        synchronized double score() {
+            return latencyMillis * (1.0 + ERROR_PENALTY * errorRate);
+        }
+        
+        synchronized void recordSuccess(long nanos) {
+            latencyMillis += EWMA_WEIGHT * (nanos / 1000000.0 - latencyMillis);
+            errorRate -= EWMA_WEIGHT * errorRate;
+            consecutiveFailures = 0;
+            if(open) {
+                LOGGER.info("etcd member " + uri + " is available again.");
+            }
+            open = false;
+            trips = 0;
+        }
+        
+        synchronized void recordFailure() {
+            errorRate += EWMA_WEIGHT * (1.0 - errorRate);
+            consecutiveFailures++;
+            if(open || consecutiveFailures >= FAILURE_THRESHOLD) {
+                trips++;
+                open = true;
+                retryAt = System.nanoTime() + openNanos();
+                LOGGER.warn("etcd member " + uri + " failed " + consecutiveFailures + " times in a row; skipping it for " 
+                            + TimeUnit.NANOSECONDS.toMillis(openNanos()) + " ms.");
+            }
+        }
+        
+        private long openNanos() {
+            long millis = BASE_OPEN_MILLIS << Math.max(0, Math.min(trips - 1, 16));
+            return TimeUnit.MILLISECONDS.toNanos(Math.min(MAX_OPEN_MILLIS, millis));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/** 
+ * encodes all properties of a component instance into a single etcd value 
+ * (form-encoded key=value pairs), together with the modification index 
+ * the value had when it was read or written. 
+ */
+final class InstanceBlob {
+    
+    private static final String UTF_8 = "UTF-8";
+    
+    /** stands for a blob that does not exist in etcd yet */
+    static final InstanceBlob ABSENT = new InstanceBlob(-1L, new HashMap<String, String>());
+    
+    private final long modifiedIndex;
+    private final Map<String, String> properties;
+    
+    InstanceBlob(long modifiedIndexParam, Map<String, String> propertiesParam) {
+        modifiedIndex = modifiedIndexParam;
+        properties = propertiesParam;
+    }
+    
+    boolean exists() {
+        return modifiedIndex >= 0;
+    }
+    
+    long getModifiedIndex() {
+        return modifiedIndex;
+    }
+    
+    Map<String, String> getProperties() {
+        return properties;
+    }
+    
+    /** @return the properties of this blob with the given ones added or replaced */
+    Map<String, String> merge(Map<String, ?> toAdd) {
+        Map<String, String> merged = new HashMap<>(properties);
+        for(Entry<String, ?> entry : toAdd.entrySet()) {
+            merged.put(entry.getKey(), entry.getValue().toString());
+        }
+        return merged;
+    }
+    
+    static String encode(Map<String, String> properties) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            for(Entry<String, String> entry : properties.entrySet()) {
+                if(builder.length() > 0) {
+                    builder.append('&');
+                }
+                builder.append(URLEncoder.encode(entry.getKey(), UTF_8)).append('=').append(URLEncoder.encode(entry.getValue(), UTF_8));
+            }
+        } catch(UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+        return builder.toString();
+    }
+    
+    static Map<String, String> decode(String value) {
+        Map<String, String> properties = new HashMap<>();
+        if(value == null || value.isEmpty()) 
+            return properties;
+        try {
+            for(String pair : value.split("&")) {
+                int i = pair.indexOf('=');
+                if(i < 0) 
+                    throw new IllegalStateException("invalid instance blob: " + value);
+                properties.put(URLDecoder.decode(pair.substring(0, i), UTF_8), URLDecoder.decode(pair.substring(i + 1), UTF_8));
+            }
+        } catch(UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+        return properties;
+    }
+}
@@ -18,25 +18,48 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
 
+import java.rmi.RemoteException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 
 final class AppInstanceContainer {
 
-    //private final ApplicationId appId;
+    private final ApplicationId appId;
+    private final String name;
     private final ApplicationInstanceId appInstId;
-    private final Map<ComponentId,ComponentInstanceContainer> comps = new HashMap<>();
+    private final RegistryJournal journal;
+    private final ConcurrentMap<ComponentId,ComponentInstanceContainer> comps = new ConcurrentHashMap<>();
     
-    AppInstanceContainer(ApplicationInstanceId instId, @SuppressWarnings("unused") ApplicationId appIdParam, 
-            @SuppressWarnings("unused") String name) { 
-        //appId = _appId; 
+    AppInstanceContainer(ApplicationInstanceId instId, ApplicationId appIdParam, String nameParam, RegistryJournal journalParam) { 
+        appId = appIdParam; 
+        name = nameParam;
         appInstId = instId; 
+        journal = journalParam;
+    }
+    
+    /** installs the state read from the journal; only used before the registry is exported */
+    void restore(RegistryJournal.RestoredApplication restored) {
+        for(Entry<ComponentId, RegistryJournal.RestoredComponent> entry : restored.components.entrySet()) {
+            ComponentInstanceContainer c = new ComponentInstanceContainer(this, entry.getKey(), entry.getValue().name);
+            c.restore(entry.getValue());
+            comps.put(entry.getKey(), c);
+        }
     }
 
     String getComponentProperty(ComponentId compId, ComponentInstanceId myId, String name) {
@@ -54,25 +77,145 @@ final class AppInstanceContainer {
         return c.dumpInstances();
     }
 
-    void addComponentProperty(ComponentId cid, ComponentInstanceId cinstId, String property, Object value) {
+    ComponentDump dumpAllWithVersion(ComponentId compId) {
+        ComponentInstanceContainer c = comps.get(compId);
+        if(c == null) 
+            return new ComponentDump(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap());
+        
+        return c.dumpInstancesWithVersion();
+    }
+
+    ComponentSnapshot snapshot(ComponentId compId) {
+        ComponentInstanceContainer c = comps.get(compId);
+        if(c == null) 
+            return ComponentSnapshot.of(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap());
+        
+        return c.snapshot();
+    }
+
+    ComponentDelta dumpAllSince(ComponentId compId, long sinceVersion) {
+        ComponentInstanceContainer c = comps.get(compId);
+        if(c == null) 
+            return ComponentDelta.complete(sinceVersion, 
+                        new ComponentDump(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap()));
+        
+        return c.dumpInstancesSince(sinceVersion);
+    }
+
+    Map<ComponentInstanceId, Map<String, String>> queryAll(ComponentId compId, ComponentQuery query) {
+        ComponentInstanceContainer c = comps.get(compId);
+        if(c == null) 
+            return Collections.emptyMap();
+        
+        return c.queryInstances(query);
+    }
+    
+    ComponentPage queryPage(ComponentId compId, ComponentQuery query, String continuation, int pageSize) {
+        ComponentInstanceContainer c = comps.get(compId);
+        if(c == null) 
+            return new ComponentPage(Collections.<ComponentInstanceId, Map<String, String>>emptyMap(), null);
+        
+        return c.queryPage(query, continuation, pageSize);
+    }
+
+    void addComponentProperty(ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RemoteException {
         ComponentInstanceContainer c = comps.get(cid);
         if(c == null) 
             throw new IllegalArgumentException("not known: " + cid);
         c.addComponentProperty(cinstId, property, value);
     }
 
-    void addComponent(ComponentId cid, String name) {
-        if(comps.containsKey(cid)) 
+    void addComponentProperties(ComponentId cid, Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RemoteException {
+        ComponentInstanceContainer c = comps.get(cid);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + cid);
+        c.addComponentProperties(properties);
+    }
+
+    void addComponent(ComponentId cid, String compName) throws RemoteException {
+        if(comps.putIfAbsent(cid, new ComponentInstanceContainer(this, cid, compName)) != null) 
             throw new IllegalArgumentException("alread exists: " + cid);
-        comps.put(cid, new ComponentInstanceContainer(this, cid, name));
+        if(journal == null) 
+            return;
+        try {
+            journal.appendComponent(appInstId, cid, compName);
+        } catch(RemoteException re) {
+            comps.remove(cid);
+            throw re;
+        }
     }
 
-    void addComponentInstance(ComponentId cid, ComponentInstanceId cinstId) {
+    void addComponentInstance(ComponentId cid, ComponentInstanceId cinstId) throws RemoteException {
         ComponentInstanceContainer c = comps.get(cid);
         if(c == null) 
             throw new IllegalArgumentException("not known: " + cid);
         c.addComponentInstance(cinstId);
     }
+
+    void renewComponentInstance(ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RemoteException {
+        ComponentInstanceContainer c = comps.get(cid);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + cid);
+        c.renewInstance(cinstId, leaseMillis);
+    }
+
+    boolean removeComponentInstance(ComponentId cid, ComponentInstanceId cinstId) throws RemoteException {
+        ComponentInstanceContainer c = comps.get(cid);
+        if(c == null) 
+            return false;
+        return c.removeInstance(cinstId);
+    }
+    
+    void addComponentListener(ComponentId cid, RmiComponentListener listener) {
+        ComponentInstanceContainer c = comps.get(cid);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + cid);
+        c.addListener(listener);
+    }
+
+    void removeComponentListener(ComponentId cid, RmiComponentListener listener) {
+        ComponentInstanceContainer c = comps.get(cid);
+        if(c == null) 
+            return;
+        c.removeListener(listener);
+    }
+    
+    ApplicationInstanceExport export() {
+        Map<ComponentId, String> names = new HashMap<>();
+        Map<ComponentId, Map<ComponentInstanceId, Map<String, String>>> instances = new HashMap<>();
+        for(ComponentInstanceContainer c : comps.values()) {
+            names.put(c.getComponentId(), c.getName());
+            instances.put(c.getComponentId(), c.dumpInstances());
+        }
+        return new ApplicationInstanceExport(appInstId, appId, name, names, instances);
+    }
+    
+    /** releases the listeners of all components */
+    void close() {
+        for(ComponentInstanceContainer c : comps.values()) {
+            c.close();
+        }
+    }
+    
+    ApplicationInstanceId getApplicationInstanceId() {
+        return appInstId;
+    }
+    
+    ApplicationId getApplicationId() {
+        return appId;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    RegistryJournal getJournal() {
+        return journal;
+    }
+    
+    Collection<ComponentInstanceContainer> getComponents() {
+        return comps.values();
+    }
     
     boolean componentExists(ComponentId cid) {
         return comps.containsKey(cid);
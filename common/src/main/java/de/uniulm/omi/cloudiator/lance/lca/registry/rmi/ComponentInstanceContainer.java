@@ -18,9 +18,20 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
 
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
@@ -30,71 +41,478 @@ import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.InstanceLease;
 
+/**
+ * holds all instances of a component. writers are serialised per component 
+ * and publish a new immutable snapshot with every change, which shares all 
+ * unchanged instances with the previous one (see InstanceMap); readers only 
+ * dereference the current snapshot and hence neither lock nor see partial 
+ * updates. Each snapshot also links to a bounded log of the instances changed 
+ * in the latest versions, so that readers can ask for the changes since the 
+ * version they know. Versions are only comparable within one incarnation 
+ * of a container, i.e. until the registry restarts or the component is 
+ * removed with its application instance. Hence, the upper bits of a version 
+ * identify the incarnation, and a reader that presents a version of another 
+ * incarnation gets a complete delta. If the registry is journaled, every change is appended 
+ * to the journal while holding writeLock and before it is published. 
+ * Only the length of a lease is journaled, whenever it changes; after a 
+ * restart, every leased instance gets a fresh lease of that length, so that 
+ * instances whose owner is gone are reaped one lease later.
+ */
 final class ComponentInstanceContainer {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** number of versions for which the changed instances are remembered */
+    private static final int CHANGE_LOG_LENGTH = 128;
+    
+    /** versions count the changes in their lower bits; above them is the incarnation */
+    private static final int INCARNATION_SHIFT = 32;
+    private static final long CHANGE_MASK = (1L << INCARNATION_SHIFT) - 1;
+    /** 16 bits, so that versions keep within the 48 bits the sharded registry leaves them */
+    private static final int INCARNATIONS = (1 << 16) - 1;
+    /** randomly seeded, so that a restarted registry starts with other incarnations */
+    private static final AtomicInteger NEXT_INCARNATION = new AtomicInteger(new Random().nextInt());
 
     private final AtomicInteger counter = new AtomicInteger(0);
     private final AppInstanceContainer myContainer;
     private final ComponentId cid;
-    private final Map<ComponentInstanceId, Map<String,Object>> instances = new HashMap<>();
+    private final String name;
+    private final RegistryJournal journal;
+    /** the version of the empty container; it carries the incarnation */
+    private final long firstVersion = ((long) (1 + Math.floorMod(NEXT_INCARNATION.getAndIncrement(), INCARNATIONS))) << INCARNATION_SHIFT;
+    private final Object writeLock = new Object();
+    // replaced (never modified) under writeLock //
+    private volatile Snapshot current = new Snapshot(firstVersion, InstanceMap.EMPTY, null);
+    /** the compact snapshot built last; the next one is derived from it */
+    private volatile ComponentSnapshot lastCompact;
+    private final List<ListenerQueue> listeners = new CopyOnWriteArrayList<>();
+    /** deadline (in terms of System.nanoTime) of every instance that holds a lease */
+    private final ConcurrentMap<ComponentInstanceId, Long> leases = new ConcurrentHashMap<>();
+    /** lease length in milliseconds of every instance that holds a lease; modified under writeLock */
+    private final ConcurrentMap<ComponentInstanceId, Long> leaseLengths = new ConcurrentHashMap<>();
     
-    public ComponentInstanceContainer(AppInstanceContainer cnt, ComponentId cidParam, 
-            @SuppressWarnings("unused") String name) { 
+    public ComponentInstanceContainer(AppInstanceContainer cnt, ComponentId cidParam, String nameParam) { 
         myContainer = cnt; 
         cid = cidParam; 
+        name = nameParam;
+        journal = cnt.getJournal();
+    }
+    
+    /** installs the state read from the journal; only used before the registry is exported */
+    void restore(RegistryJournal.RestoredComponent restored) {
+        InstanceMap instances = InstanceMap.EMPTY;
+        int highest = 0;
+        for(Entry<ComponentInstanceId, Map<String,String>> entry : restored.instances.entrySet()) {
+            instances = instances.with(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+            Long leaseMillis = restored.leases.get(entry.getKey());
+            if(leaseMillis != null) {
+                leaseLengths.put(entry.getKey(), leaseMillis);
+            }
+            if(InstanceLease.marksDestroyed(entry.getValue())) {
+                leases.put(entry.getKey(), deadline(InstanceLease.DESTROYED_GRACE_MILLIS));
+            } else if(leaseMillis != null) {
+                leases.put(entry.getKey(), deadline(leaseMillis.longValue()));
+            }
+            try {
+                String nr = entry.getValue().get(LcaRegistryConstants.INSTANCE_NR);
+                highest = nr == null ? highest : Math.max(highest, Integer.parseInt(nr));
+            } catch(NumberFormatException nfe) {
+                LOGGER.warn("unexpected instance number for " + entry.getKey() + ": " + nfe.getMessage());
+            }
+        }
+        synchronized(writeLock) {
+            counter.set(highest);
+            current = new Snapshot(firstVersion | (restored.version & CHANGE_MASK), instances, null);
+        }
+    }
+    
+    ComponentId getComponentId() {
+        return cid;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    Snapshot getSnapshot() {
+        return current;
+    }
+    
+    /** @return the length of the instance's lease in milliseconds or null if it holds none */
+    Long getLeaseMillis(ComponentInstanceId cinstId) {
+        return leaseLengths.get(cinstId);
+    }
+    
+    /** @return the number of changes counted by this version, as stored in the journal */
+    static long changesOf(long version) {
+        return version & CHANGE_MASK;
     }
     
     public String getComponentProperty(ComponentInstanceId myId, String name) {
-        Map<String,Object> props = instances.get(myId);
+        Map<String,String> props = current.instances.get(myId);
         if(props == null) 
             throw new IllegalArgumentException("not known: " + myId);
-        Object old = props.get(name);
-        return old == null ? null : old.toString();
+        return props.get(name);
     }
 
+    /** 
+     * @return the immutable map of the current snapshot; it is copied only when 
+     * it is serialised, so in-process callers have to copy it themselves 
+     */
     public Map<ComponentInstanceId, Map<String,String>> dumpInstances() {
-        Map<ComponentInstanceId, Map<String,String>> copy = new HashMap<>();
-        for(Entry<ComponentInstanceId, Map<String, Object>> entry : instances.entrySet()) {
-            ComponentInstanceId id = entry.getKey();
-            Map<String,Object> content = entry.getValue();
-            Map<String,String> innerCopy = new HashMap<>();
-            for(Entry<String, Object> innerEntry : content.entrySet()) {
-                innerCopy.put(innerEntry.getKey(), innerEntry.getValue().toString());
+        return current.instances;
+    }
+    
+    /** works on the current snapshot; only matching instances are copied */
+    Map<ComponentInstanceId, Map<String,String>> queryInstances(ComponentQuery query) {
+        return query.apply(current.instances);
+    }
+    
+    /** works on the current snapshot; only the instances of the page are copied */
+    ComponentPage queryPage(ComponentQuery query, String continuation, int pageSize) {
+        Snapshot s = current;
+        return ComponentPage.select(s.sortedIds(), s.instances, query, continuation, pageSize);
+    }
+    
+    ComponentDump dumpInstancesWithVersion() {
+        Snapshot s = current;
+        return new ComponentDump(s.version, s.instances);
+    }
+    
+    /** 
+     * all readers of a version share one snapshot, which the first of them 
+     * builds; concurrent first readers wait for it. Unless the change log has 
+     * been cut, it is derived from the last one built and shares the rows of 
+     * all instances that have not changed since. 
+     */
+    ComponentSnapshot snapshot() {
+        Snapshot s = current;
+        ComponentSnapshot c = s.compact;
+        if(c != null) 
+            return c;
+        synchronized(s) {
+            c = s.compact;
+            if(c == null) {
+                ComponentSnapshot base = lastCompact;
+                if(base != null && base.getVersion() < s.version) {
+                    c = base.withDelta(deltaOf(s, base.getVersion()));
+                } else {
+                    c = ComponentSnapshot.of(s.version, s.instances);
+                }
+                s.compact = c;
+            }
+        }
+        lastCompact = c;
+        return c;
+    }
+    
+    /** 
+     * costs are linear in the number of changes since sinceVersion; falls back 
+     * to a complete delta if these changes are no longer in the log or if 
+     * sinceVersion stems from another incarnation. 
+     */
+    ComponentDelta dumpInstancesSince(long sinceVersion) {
+        return deltaOf(current, sinceVersion);
+    }
+    
+    private ComponentDelta deltaOf(Snapshot s, long sinceVersion) {
+        if(sinceVersion == s.version) 
+            return ComponentDelta.unchanged(sinceVersion);
+        if(sinceVersion < firstVersion || sinceVersion > s.version) 
+            return ComponentDelta.complete(sinceVersion, new ComponentDump(s.version, s.instances));
+        
+        Set<ComponentInstanceId> changed = new HashSet<>();
+        long oldest = s.version + 1;
+        for(ChangeRecord r = s.changes; r != null && r.version > sinceVersion; r = r.older) {
+            changed.addAll(r.changed);
+            oldest = r.version;
+        }
+        if(oldest != sinceVersion + 1) 
+            return ComponentDelta.complete(sinceVersion, new ComponentDump(s.version, s.instances));
+        
+        Map<ComponentInstanceId, Map<String,String>> updated = new HashMap<>();
+        Set<ComponentInstanceId> removed = new HashSet<>();
+        for(ComponentInstanceId id : changed) {
+            Map<String,String> props = s.instances.get(id);
+            if(props == null) {
+                removed.add(id);
+            } else {
+                updated.put(id, props);
             }
-            copy.put(id, innerCopy);
         }
-        return copy;
+        return new ComponentDelta(sinceVersion, s.version, updated, removed);
     }
 
-    public void addComponentProperty(ComponentInstanceId cinstId, String property, Object value) {
-        Map<String,Object> props = instances.get(cinstId);
-        if(props == null) 
-            throw new IllegalArgumentException("not known: " + cinstId);
-        Object old = props.put(property, value);
-        if(old != null) { 
-            LOGGER.warn("warning: overriding value!");
+    public void addComponentProperty(ComponentInstanceId cinstId, String property, Object value) throws RemoteException {
+        synchronized(writeLock) {
+            Snapshot s = current;
+            Map<String,String> props = s.instances.get(cinstId);
+            if(props == null) 
+                throw new IllegalArgumentException("not known: " + cinstId);
+            if(props.containsKey(property)) { 
+                LOGGER.warn("warning: overriding value!");
+            }
+            Map<String, Object> toAdd = Collections.singletonMap(property, value);
+            InstanceMap instances = s.instances.with(cinstId, withProperties(props, toAdd));
+            if(journal != null) {
+                journal.appendComponentProperties(myContainer.getApplicationInstanceId(), cid, 
+                        Collections.singletonMap(cinstId, toAdd));
+            }
+            publish(s, instances, Collections.singleton(cinstId));
+            startGracePeriodIfDestroyed(cinstId, toAdd);
         }
-        //FIXME: wake up listeners (?)
-        LOGGER.error("TODO: wake up listeners");
+        notifyListeners();
         
         LOGGER.info("LcaRegistry: added property: " + this + "/" + cinstId + "." + property + "=" + value);
     }
 
-    public void addComponentInstance(ComponentInstanceId cinstId) {
-        if(instances.containsKey(cinstId)) 
-            throw new IllegalArgumentException("alread exists: " + cinstId);
-        Map<String,Object> map = new HashMap<>();
-        Integer i = Integer.valueOf(counter.incrementAndGet());
-        map.put(LcaRegistryConstants.INSTANCE_NR, i);
-        instances.put(cinstId, map);
+    /** sets all properties of all given instances and informs the listeners only once */
+    public void addComponentProperties(Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RemoteException {
+        synchronized(writeLock) {
+            Snapshot s = current;
+            for(ComponentInstanceId cinstId : properties.keySet()) {
+                if(! s.instances.containsKey(cinstId)) 
+                    throw new IllegalArgumentException("not known: " + cinstId);
+            }
+            InstanceMap instances = s.instances;
+            for(Entry<ComponentInstanceId, ? extends Map<String, ?>> entry : properties.entrySet()) {
+                instances = instances.with(entry.getKey(), withProperties(s.instances.get(entry.getKey()), entry.getValue()));
+            }
+            if(journal != null) {
+                journal.appendComponentProperties(myContainer.getApplicationInstanceId(), cid, properties);
+            }
+            publish(s, instances, new HashSet<>(properties.keySet()));
+            for(Entry<ComponentInstanceId, ? extends Map<String, ?>> entry : properties.entrySet()) {
+                startGracePeriodIfDestroyed(entry.getKey(), entry.getValue());
+            }
+        }
+        notifyListeners();
+        LOGGER.info("LcaRegistry: added properties: " + this + "/" + properties);
+    }
+
+    public void addComponentInstance(ComponentInstanceId cinstId) throws RemoteException {
+        synchronized(writeLock) {
+            Snapshot s = current;
+            if(s.instances.containsKey(cinstId)) 
+                throw new IllegalArgumentException("alread exists: " + cinstId);
+            Map<String,String> props = withProperties(Collections.<String,String>emptyMap(), 
+                                    Collections.singletonMap(LcaRegistryConstants.INSTANCE_NR, Integer.valueOf(counter.get() + 1)));
+            if(journal != null) {
+                journal.appendComponentInstance(myContainer.getApplicationInstanceId(), cid, cinstId, props);
+            }
+            counter.incrementAndGet();
+            publish(s, s.instances.with(cinstId, props), Collections.singleton(cinstId));
+        }
+        notifyListeners();
         
         LOGGER.info("LcaRegistry: added component instance: " + this + "/" + cinstId);
     }
     
+    /** 
+     * a destroyed instance keeps its grace period and cannot be renewed. 
+     * Only a renewal that changes the length of the lease is journaled. 
+     */
+    void renewInstance(ComponentInstanceId cinstId, long leaseMillis) throws RemoteException {
+        Map<String,String> props = current.instances.get(cinstId);
+        if(props == null) 
+            throw new IllegalArgumentException("not known: " + cinstId);
+        if(InstanceLease.marksDestroyed(props)) 
+            return;
+        Long length = Long.valueOf(leaseMillis);
+        if(journal != null && !length.equals(leaseLengths.get(cinstId))) {
+            synchronized(writeLock) {
+                if(! current.instances.containsKey(cinstId)) 
+                    throw new IllegalArgumentException("not known: " + cinstId);
+                journal.appendLease(myContainer.getApplicationInstanceId(), cid, cinstId, leaseMillis);
+                leaseLengths.put(cinstId, length);
+            }
+        } else {
+            leaseLengths.put(cinstId, length);
+        }
+        leases.put(cinstId, deadline(leaseMillis));
+    }
+    
+    /** @return false if the instance is not known */
+    boolean removeInstance(ComponentInstanceId cinstId) throws RemoteException {
+        synchronized(writeLock) {
+            Snapshot s = current;
+            if(! s.instances.containsKey(cinstId)) {
+                leases.remove(cinstId);
+                leaseLengths.remove(cinstId);
+                return false;
+            }
+            if(journal != null) {
+                journal.appendComponentInstanceRemoval(myContainer.getApplicationInstanceId(), cid, cinstId);
+            }
+            leases.remove(cinstId);
+            leaseLengths.remove(cinstId);
+            publish(s, s.instances.without(cinstId), Collections.singleton(cinstId));
+        }
+        notifyListeners();
+        
+        LOGGER.info("LcaRegistry: removed component instance: " + this + "/" + cinstId);
+        return true;
+    }
+    
+    /** 
+     * removes all instances whose lease has expired at the given time. 
+     * @return the number of removed instances 
+     */
+    int reapExpiredInstances(long nanoTime) throws RemoteException {
+        int reaped = 0;
+        for(Entry<ComponentInstanceId, Long> lease : leases.entrySet()) {
+            if(nanoTime - lease.getValue().longValue() < 0) 
+                continue;
+            // a concurrent renewal replaces the deadline and hence wins //
+            if(! leases.remove(lease.getKey(), lease.getValue())) 
+                continue;
+            try {
+                if(removeInstance(lease.getKey())) 
+                    reaped++;
+            } catch(RemoteException re) {
+                leases.putIfAbsent(lease.getKey(), lease.getValue());
+                throw re;
+            }
+        }
+        return reaped;
+    }
+    
+    /** has to be called while holding writeLock */
+    private void startGracePeriodIfDestroyed(ComponentInstanceId cinstId, Map<String, ?> properties) {
+        if(InstanceLease.marksDestroyed(properties)) {
+            leases.put(cinstId, deadline(InstanceLease.DESTROYED_GRACE_MILLIS));
+        }
+    }
+    
+    private static Long deadline(long leaseMillis) {
+        return Long.valueOf(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+    }
+    
+    /** has to be called while holding writeLock */
+    private void publish(Snapshot old, InstanceMap instances, Set<ComponentInstanceId> changed) {
+        ChangeRecord record = new ChangeRecord(old.version + 1, changed, old.changes);
+        ChangeRecord last = record;
+        for(int i = 1; i < CHANGE_LOG_LENGTH && last != null; i++) {
+            last = last.older;
+        }
+        if(last != null) {
+            last.older = null;
+        }
+        current = new Snapshot(old.version + 1, instances, record);
+    }
+    
+    private static Map<String,String> withProperties(Map<String,String> old, Map<String, ?> toAdd) {
+        Map<String,String> props = new HashMap<>(old);
+        for(Entry<String, ?> entry : toAdd.entrySet()) {
+            props.put(entry.getKey(), entry.getValue().toString());
+        }
+        return Collections.unmodifiableMap(props);
+    }
+    
+    void addListener(RmiComponentListener listener) {
+        synchronized(listeners) {
+            for(ListenerQueue q : listeners) {
+                if(q.isFor(listener)) 
+                    return;
+            }
+            listeners.add(ListenerQueue.acquire(listener));
+        }
+    }
+    
+    void removeListener(RmiComponentListener listener) {
+        synchronized(listeners) {
+            for(ListenerQueue q : listeners) {
+                if(q.isFor(listener)) {
+                    drop(q);
+                    return;
+                }
+            }
+        }
+    }
+    
+    /** releases all listeners; used when the component is removed from the registry */
+    void close() {
+        synchronized(listeners) {
+            for(ListenerQueue q : listeners) {
+                drop(q);
+            }
+        }
+    }
+    
+    /** only queues the events; the listeners are called asynchronously */
+    private void notifyListeners() {
+        for(ListenerQueue q : listeners) {
+            if(!q.offer(myContainer.getApplicationInstanceId(), cid)) {
+                synchronized(listeners) {
+                    drop(q);
+                }
+            }
+        }
+    }
+    
+    private void drop(ListenerQueue q) {
+        if(listeners.remove(q)) {
+            q.release();
+        }
+    }
+    
     @Override
     public String toString() {
         return myContainer + "/" + cid;
     }
+    
+    /** an immutable state of this component; property maps are unmodifiable */
+    static final class Snapshot {
+        final long version;
+        final InstanceMap instances;
+        /** the change that led to this version; null for the initial snapshot */
+        final ChangeRecord changes;
+        /** created by the first paged read of this snapshot */
+        private volatile List<ComponentInstanceId> sortedIds;
+        /** created by the first compact read of this snapshot (see ComponentInstanceContainer.snapshot) */
+        private volatile ComponentSnapshot compact;
+        
+        Snapshot(long versionParam, InstanceMap instancesParam, ChangeRecord changesParam) {
+            version = versionParam;
+            instances = instancesParam;
+            changes = changesParam;
+        }
+        
+        /** @return the ids of all instances in the order of pages; concurrent first 
+         * readers may each sort, but all get the same content */
+        List<ComponentInstanceId> sortedIds() {
+            List<ComponentInstanceId> ids = sortedIds;
+            if(ids == null) {
+                List<ComponentInstanceId> sorted = new ArrayList<>(instances.keySet());
+                Collections.sort(sorted, ComponentPage.ORDER);
+                ids = Collections.unmodifiableList(sorted);
+                sortedIds = ids;
+            }
+            return ids;
+        }
+    }
+    
+    /** 
+     * the instances changed in one version. Records form a list from the newest 
+     * to the oldest version that is cut off by the writer; a reader that hits the 
+     * cut before reaching its version falls back to a complete delta. 
+     */
+    private static final class ChangeRecord {
+        final long version;
+        final Set<ComponentInstanceId> changed;
+        volatile ChangeRecord older;
+        
+        ChangeRecord(long versionParam, Set<ComponentInstanceId> changedParam, ChangeRecord olderParam) {
+            version = versionParam;
+            changed = changedParam;
+            older = olderParam;
+        }
+    }
 }
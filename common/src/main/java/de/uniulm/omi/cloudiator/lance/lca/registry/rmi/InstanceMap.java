@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * an immutable map from instance ids to their (unmodifiable) properties. A 
+ * changed map shares all unchanged parts with the map it is derived from: 
+ * the map is a hash array mapped trie with up to 32 children per node, and 
+ * with and without copy only the nodes on the path to the changed entry. 
+ * Hence, a write costs O(log n) instead of a copy of all instances.
+ * 
+ * The map is serialised as a HashMap of HashMaps, so that remote readers 
+ * get mutable copies just as before.
+ */
+final class InstanceMap extends AbstractMap<ComponentInstanceId, Map<String,String>> implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    
+    static final InstanceMap EMPTY = new InstanceMap(new Node(0, new Object[0]), 0);
+    
+    private final transient Node root;
+    private final int size;
+    private transient Set<Entry<ComponentInstanceId, Map<String,String>>> entries;
+    
+    private InstanceMap(Node rootParam, int sizeParam) {
+        root = rootParam;
+        size = sizeParam;
+    }
+    
+    static InstanceMap copyOf(Map<ComponentInstanceId, Map<String,String>> map) {
+        InstanceMap retVal = EMPTY;
+        for(Entry<ComponentInstanceId, Map<String,String>> entry : map.entrySet()) {
+            retVal = retVal.with(entry.getKey(), entry.getValue());
+        }
+        return retVal;
+    }
+    
+    /** @return a map that maps the id to these properties and is otherwise equal to this one */
+    InstanceMap with(ComponentInstanceId id, Map<String,String> properties) {
+        Leaf leaf = new Leaf(hash(id), id, properties);
+        boolean[] added = new boolean[1];
+        Node newRoot = root.with(leaf, 0, added);
+        return new InstanceMap(newRoot, added[0] ? size + 1 : size);
+    }
+    
+    /** @return a map that does not contain the id and is otherwise equal to this one */
+    InstanceMap without(ComponentInstanceId id) {
+        if(find(id) == null) 
+            return this;
+        Object newRoot = root.without(hash(id), id, 0);
+        if(!(newRoot instanceof Node)) { // the root is never collapsed //
+            newRoot = newRoot == null ? EMPTY.root : Node.single(newRoot, 0);
+        }
+        return new InstanceMap((Node) newRoot, size - 1);
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+    
+    @Override
+    public Map<String,String> get(Object key) {
+        Leaf leaf = find(key);
+        return leaf == null ? null : leaf.value;
+    }
+    
+    private Leaf find(Object key) {
+        if(key == null) 
+            return null;
+        final int h = hash(key);
+        Object slot = root;
+        for(int shift = 0; slot instanceof Node; shift += BITS) {
+            slot = ((Node) slot).child(h, shift);
+        }
+        if(slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+            return leaf.hash == h && leaf.key.equals(key) ? leaf : null;
+        }
+        if(slot instanceof Collision && ((Collision) slot).hash == h) 
+            return ((Collision) slot).find(key);
+        return null;
+    }
+    
+    @Override
+    public Set<Entry<ComponentInstanceId, Map<String,String>>> entrySet() {
+        Set<Entry<ComponentInstanceId, Map<String,String>>> e = entries;
+        if(e == null) {
+            e = new AbstractSet<Entry<ComponentInstanceId, Map<String,String>>>() {
+                @Override public Iterator<Entry<ComponentInstanceId, Map<String,String>>> iterator() {
+                    return new LeafIterator(root);
+                }
+                @Override public int size() {
+                    return size;
+                }
+            };
+            entries = e;
+        }
+        return e;
+    }
+    
+    private Object writeReplace() {
+        HashMap<ComponentInstanceId, Map<String,String>> copy = new HashMap<>();
+        for(Entry<ComponentInstanceId, Map<String,String>> entry : entrySet()) {
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return copy;
+    }
+    
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+    
+    /** @return the hash of a leaf or collision */
+    private static int hashOf(Object slot) {
+        return slot instanceof Leaf ? ((Leaf) slot).hash : ((Collision) slot).hash;
+    }
+    
+    /** 
+     * an inner node; slots are either nodes, leaves, or collisions, and 
+     * ordered by their index, i.e. the bits of the hash at this level 
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+        
+        Node(int bitmapParam, Object[] slotsParam) {
+            bitmap = bitmapParam;
+            slots = slotsParam;
+        }
+        
+        static Node single(Object slot, int shift) {
+            return new Node(bit(hashOf(slot), shift), new Object[]{slot});
+        }
+        
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+        
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+        
+        /** @return the slot for this hash, or null */
+        Object child(int hash, int shift) {
+            int bit = bit(hash, shift);
+            return (bitmap & bit) == 0 ? null : slots[index(bit)];
+        }
+        
+        Node with(Leaf leaf, int shift, boolean[] added) {
+            int bit = bit(leaf.hash, shift);
+            int idx = index(bit);
+            if((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = leaf;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                added[0] = true;
+                return new Node(bitmap | bit, newSlots);
+            }
+            Object slot = slots[idx];
+            final Object replacement;
+            if(slot instanceof Node) {
+                replacement = ((Node) slot).with(leaf, shift + BITS, added);
+            } else if(hashOf(slot) != leaf.hash) {
+                added[0] = true;
+                replacement = merge(slot, leaf, shift + BITS);
+            } else if(slot instanceof Leaf) {
+                Leaf other = (Leaf) slot;
+                if(other.key.equals(leaf.key)) {
+                    replacement = leaf;
+                } else {
+                    added[0] = true;
+                    replacement = new Collision(leaf.hash, new Leaf[]{other, leaf});
+                }
+            } else {
+                replacement = ((Collision) slot).with(leaf, added);
+            }
+            Object[] newSlots = slots.clone();
+            newSlots[idx] = replacement;
+            return new Node(bitmap, newSlots);
+        }
+        
+        /** @return a node for two slots with different hashes */
+        private static Node merge(Object a, Object b, int shift) {
+            int bitA = bit(hashOf(a), shift);
+            int bitB = bit(hashOf(b), shift);
+            if(bitA == bitB) 
+                return new Node(bitA, new Object[]{merge(a, b, shift + BITS)});
+            // compared unsigned, as the bit of index 31 is the sign bit //
+            return new Node(bitA | bitB, Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[]{a, b} : new Object[]{b, a});
+        }
+        
+        /** 
+         * @return the node without the key; a node that is left with a single leaf 
+         * or collision is replaced by it, and an empty one by null 
+         */
+        Object without(int hash, Object key, int shift) {
+            int bit = bit(hash, shift);
+            int idx = index(bit);
+            Object slot = slots[idx];
+            Object replacement;
+            if(slot instanceof Node) {
+                replacement = ((Node) slot).without(hash, key, shift + BITS);
+            } else if(slot instanceof Leaf) {
+                replacement = null;
+            } else {
+                replacement = ((Collision) slot).without(key);
+            }
+            if(replacement != null) {
+                if(slots.length == 1 && !(replacement instanceof Node)) 
+                    return replacement;
+                Object[] newSlots = slots.clone();
+                newSlots[idx] = replacement;
+                return new Node(bitmap, newSlots);
+            }
+            if(slots.length == 1) 
+                return null;
+            if(slots.length == 2 && !(slots[1 - idx] instanceof Node)) 
+                return slots[1 - idx];
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new Node(bitmap & ~bit, newSlots);
+        }
+    }
+    
+    /** entries whose keys have the same hash */
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+        
+        Collision(int hashParam, Leaf[] leavesParam) {
+            hash = hashParam;
+            leaves = leavesParam;
+        }
+        
+        Leaf find(Object key) {
+            for(Leaf leaf : leaves) {
+                if(leaf.key.equals(key)) 
+                    return leaf;
+            }
+            return null;
+        }
+        
+        Collision with(Leaf leaf, boolean[] added) {
+            for(int i = 0; i < leaves.length; i++) {
+                if(leaves[i].key.equals(leaf.key)) {
+                    Leaf[] newLeaves = leaves.clone();
+                    newLeaves[i] = leaf;
+                    return new Collision(hash, newLeaves);
+                }
+            }
+            Leaf[] newLeaves = new Leaf[leaves.length + 1];
+            System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+            newLeaves[leaves.length] = leaf;
+            added[0] = true;
+            return new Collision(hash, newLeaves);
+        }
+        
+        /** @return the remaining leaf if only one is left */
+        Object without(Object key) {
+            if(leaves.length == 2) 
+                return leaves[0].key.equals(key) ? leaves[1] : leaves[0];
+            Leaf[] newLeaves = new Leaf[leaves.length - 1];
+            int j = 0;
+            for(Leaf leaf : leaves) {
+                if(! leaf.key.equals(key)) {
+                    newLeaves[j++] = leaf;
+                }
+            }
+            return new Collision(hash, newLeaves);
+        }
+    }
+    
+    private static final class Leaf extends SimpleImmutableEntry<ComponentInstanceId, Map<String,String>> {
+        private static final long serialVersionUID = 1L;
+        
+        final int hash;
+        final ComponentInstanceId key;
+        final Map<String,String> value;
+        
+        Leaf(int hashParam, ComponentInstanceId keyParam, Map<String,String> valueParam) {
+            super(keyParam, valueParam);
+            hash = hashParam;
+            key = keyParam;
+            value = valueParam;
+        }
+    }
+    
+    /** walks the trie depth first */
+    private static final class LeafIterator implements Iterator<Entry<ComponentInstanceId, Map<String,String>>> {
+        private final Deque<Object[]> slots = new ArrayDeque<>();
+        private final Deque<Integer> positions = new ArrayDeque<>();
+        private Leaf[] collision;
+        private int collisionPosition;
+        private Leaf next;
+        
+        LeafIterator(Node root) {
+            slots.push(root.slots);
+            positions.push(Integer.valueOf(0));
+            advance();
+        }
+        
+        private void advance() {
+            next = null;
+            if(collision != null) {
+                if(collisionPosition < collision.length) {
+                    next = collision[collisionPosition++];
+                    return;
+                }
+                collision = null;
+            }
+            while(! slots.isEmpty()) {
+                Object[] current = slots.peek();
+                int pos = positions.pop().intValue();
+                if(pos == current.length) {
+                    slots.pop();
+                    continue;
+                }
+                positions.push(Integer.valueOf(pos + 1));
+                Object slot = current[pos];
+                if(slot instanceof Node) {
+                    slots.push(((Node) slot).slots);
+                    positions.push(Integer.valueOf(0));
+                } else if(slot instanceof Leaf) {
+                    next = (Leaf) slot;
+                    return;
+                } else {
+                    collision = ((Collision) slot).leaves;
+                    collisionPosition = 1;
+                    next = collision[0];
+                    return;
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public Entry<ComponentInstanceId, Map<String,String>> next() {
+            if(next == null) 
+                throw new NoSuchElementException();
+            Leaf retVal = next;
+            advance();
+            return retVal;
+        }
+    }
+}
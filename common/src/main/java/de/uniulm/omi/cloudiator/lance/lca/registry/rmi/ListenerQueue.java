@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+
+/**
+ * delivers change events to one remote listener. Events wait in a bounded 
+ * queue and are sent from a pooled thread, so that a slow or unreachable 
+ * listener stalls neither the writers nor the delivery to other listeners. 
+ * An event that is already pending is not queued again. There is one queue 
+ * per remote listener, no matter for how many components it has registered. 
+ * A listener that cannot be reached is tried again with growing delays and 
+ * only dropped after the last attempt has failed.
+ */
+final class ListenerQueue {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** maximum number of pending events per listener */
+    public static final String QUEUE_CAPACITY_KEY = "lca.registry.listener.capacity";
+    private static final int CAPACITY = Integer.getInteger(QUEUE_CAPACITY_KEY, 256).intValue();
+    
+    /** number of failed attempts in a row after which an unreachable listener is dropped */
+    public static final String DELIVERY_ATTEMPTS_KEY = "lca.registry.listener.attempts";
+    private static final int ATTEMPTS = Integer.getInteger(DELIVERY_ATTEMPTS_KEY, 6).intValue();
+    private static final long FIRST_RETRY_MILLIS = 1000L;
+    private static final long MAX_RETRY_MILLIS = 30000L;
+    
+    private static final ExecutorService DELIVERY = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "registry-listener-delivery");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "registry-listener-retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    // guarded by QUEUES //
+    private static final Map<RmiComponentListener, ListenerQueue> QUEUES = new HashMap<>();
+    
+    private final RmiComponentListener listener;
+    // guarded by this //
+    private final Set<Event> pending = new LinkedHashSet<>();
+    private boolean scheduled;
+    private boolean dead;
+    /** failed attempts in a row */
+    private int failures;
+    // guarded by QUEUES //
+    private int registrations;
+    
+    private ListenerQueue(RmiComponentListener listenerParam) {
+        listener = listenerParam;
+    }
+    
+    /** @return the queue of this listener; has to be released once per call */
+    static ListenerQueue acquire(RmiComponentListener listener) {
+        synchronized(QUEUES) {
+            ListenerQueue q = QUEUES.get(listener);
+            if(q == null) {
+                q = new ListenerQueue(listener);
+                QUEUES.put(listener, q);
+            }
+            q.registrations++;
+            return q;
+        }
+    }
+    
+    void release() {
+        synchronized(QUEUES) {
+            registrations--;
+            if(registrations <= 0 && QUEUES.get(listener) == this) {
+                QUEUES.remove(listener);
+            }
+        }
+    }
+    
+    boolean isFor(RmiComponentListener l) {
+        return listener.equals(l);
+    }
+    
+    /** 
+     * never blocks. 
+     * @return false if the listener could not be reached before and shall be dropped 
+     */
+    boolean offer(ApplicationInstanceId instId, ComponentId compId) {
+        synchronized(this) {
+            if(dead) 
+                return false;
+            Event e = new Event(instId, compId);
+            if(!pending.contains(e)) {
+                if(pending.size() >= CAPACITY) {
+                    LOGGER.warn("listener queue full; dropping change event for " + e + ": " + listener);
+                    return true;
+                }
+                pending.add(e);
+            }
+            if(scheduled) 
+                return true;
+            scheduled = true;
+        }
+        DELIVERY.execute(new Runnable() {
+            @Override public void run() {
+                deliver();
+            }
+        });
+        return true;
+    }
+    
+    private void deliver() {
+        // true once the delivery has been handed on or ended regularly //
+        boolean handedOn = false;
+        try {
+            while(true) {
+                Event e;
+                synchronized(this) {
+                    Iterator<Event> it = pending.iterator();
+                    if(!it.hasNext()) {
+                        scheduled = false;
+                        handedOn = true;
+                        return;
+                    }
+                    e = it.next();
+                    it.remove();
+                }
+                try {
+                    listener.componentChanged(e.instId, e.compId);
+                    synchronized(this) {
+                        failures = 0;
+                    }
+                } catch(RemoteException re) {
+                    retryLater(e, re);
+                    handedOn = true;
+                    return;
+                } catch(RuntimeException re) {
+                    // the listener has been reached, but failed; only this event is lost //
+                    LOGGER.warn("listener failed to handle change event for " + e + ": " + listener, re);
+                }
+            }
+        } finally {
+            if(!handedOn) {
+                synchronized(this) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+    
+    /** keeps the event and delivers again after a delay; drops the listener after the last attempt */
+    private void retryLater(Event e, RemoteException re) {
+        final long delay;
+        synchronized(this) {
+            failures++;
+            if(failures < ATTEMPTS) {
+                pending.add(e);
+                delay = Math.min(MAX_RETRY_MILLIS, FIRST_RETRY_MILLIS << Math.min(failures - 1, 16));
+            } else {
+                dead = true;
+                pending.clear();
+                scheduled = false;
+                delay = -1L;
+            }
+        }
+        if(delay < 0) {
+            LOGGER.warn("could not reach listener " + ATTEMPTS + " times; dropping it: " + listener, re);
+            synchronized(QUEUES) {
+                if(QUEUES.get(listener) == this) {
+                    QUEUES.remove(listener);
+                }
+            }
+            return;
+        }
+        LOGGER.info("could not reach listener; trying again in " + delay + " ms: " + listener + ": " + re.getMessage());
+        RETRIES.schedule(new Runnable() {
+            @Override public void run() {
+                DELIVERY.execute(new Runnable() {
+                    @Override public void run() {
+                        deliver();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public String toString() {
+        return "ListenerQueue: " + listener;
+    }
+    
+    private static final class Event {
+        
+        final ApplicationInstanceId instId;
+        final ComponentId compId;
+        
+        Event(ApplicationInstanceId instIdParam, ComponentId compIdParam) {
+            instId = instIdParam;
+            compId = compIdParam;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Event)) 
+                return false;
+            Event that = (Event) o;
+            return instId.equals(that.instId) && compId.equals(that.compId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * instId.hashCode() + compId.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return instId + "/" + compId;
+        }
+    }
+}
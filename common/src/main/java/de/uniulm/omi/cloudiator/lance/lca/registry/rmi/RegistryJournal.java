@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * append-only journal of all changes to the RMI registry. Every change is 
+ * written to the journal before it becomes visible. From time to time the 
+ * journal is compacted into a snapshot of the entire registry. On start, 
+ * the registry is rebuilt from the snapshot and the remaining journal. 
+ * 
+ * Both files consist of a header (magic number and generation) followed by 
+ * records that are protected by a checksum. A record that has only been 
+ * written partially when the process died ends the replay; the journal is 
+ * cut off at this point. A journal whose generation does not match the one 
+ * of the snapshot has already been compacted and is ignored.
+ * 
+ * The length of an instance's lease is written when it is granted or 
+ * changed, but renewals are not, as they would flood the journal. 
+ */
+final class RegistryJournal {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** directory for journal and snapshot; no journal is written if unset */
+    public static final String JOURNAL_DIR_KEY = "lca.registry.journal.dir";
+    /** if true, every change is forced to disk before it is acknowledged */
+    public static final String JOURNAL_SYNC_KEY = "lca.registry.journal.sync";
+    /** size in bytes above which the journal is compacted into a snapshot */
+    public static final String COMPACTION_SIZE_KEY = "lca.registry.journal.compaction";
+    
+    private static final long DEFAULT_COMPACTION_SIZE = 16L * 1024L * 1024L;
+    
+    private static final String SNAPSHOT_FILE = "registry.snapshot";
+    private static final String SNAPSHOT_TMP_FILE = "registry.snapshot.tmp";
+    private static final String JOURNAL_FILE = "registry.journal";
+    
+    private static final int MAGIC = 0x4c434a31;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 8;
+    
+    private static final byte OP_APPLICATION = 1;
+    private static final byte OP_COMPONENT = 2;
+    private static final byte OP_INSTANCE = 3;
+    private static final byte OP_PROPERTIES = 4;
+    private static final byte OP_REMOVE = 5;
+    private static final byte OP_REMOVE_APPLICATION = 6;
+    private static final byte OP_LEASE = 7;
+    
+    private final Path dir;
+    private final boolean sync;
+    private final long compactionSize;
+    // guarded by this //
+    private FileChannel journal;
+    private long generation;
+    private volatile long journalSize;
+    
+    private RegistryJournal(Path dirParam, boolean syncParam, long compactionSizeParam) {
+        dir = dirParam;
+        sync = syncParam;
+        compactionSize = compactionSizeParam;
+    }
+    
+    /** @return null if no journal directory has been configured */
+    static RegistryJournal fromSystemProperties() throws IOException {
+        String value = System.getProperty(JOURNAL_DIR_KEY);
+        if(value == null || value.trim().isEmpty()) 
+            return null;
+        return inDirectory(Paths.get(value.trim()), Boolean.getBoolean(JOURNAL_SYNC_KEY), 
+                    Long.getLong(COMPACTION_SIZE_KEY, DEFAULT_COMPACTION_SIZE).longValue());
+    }
+    
+    static RegistryJournal inDirectory(Path dirParam, boolean syncParam, long compactionSizeParam) throws IOException {
+        Files.createDirectories(dirParam);
+        return new RegistryJournal(dirParam, syncParam, compactionSizeParam);
+    }
+    
+    /** 
+     * reads snapshot and journal and opens the journal for appending. 
+     * has to be called once before any change is appended.
+     */
+    synchronized Map<ApplicationInstanceId, RestoredApplication> replay() throws IOException {
+        final long start = System.currentTimeMillis();
+        Map<ApplicationInstanceId, RestoredApplication> state = new LinkedHashMap<>();
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        Long snapshotGeneration = null;
+        if(Files.exists(snapshot)) {
+            try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                long gen = readFile(ch, null, state, null);
+                if(gen >= 0) {
+                    snapshotGeneration = Long.valueOf(gen);
+                } else {
+                    LOGGER.warn("ignoring registry snapshot without valid header: " + snapshot);
+                }
+            }
+        }
+        
+        journal = FileChannel.open(dir.resolve(JOURNAL_FILE), StandardOpenOption.CREATE, 
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long[] end = new long[1];
+        long journalGeneration = readFile(journal, snapshotGeneration, state, end);
+        if(journalGeneration < 0 || (snapshotGeneration != null && journalGeneration != snapshotGeneration.longValue())) {
+            // missing, corrupt, or already contained in the snapshot //
+            generation = snapshotGeneration == null ? 0L : snapshotGeneration.longValue();
+            resetJournal();
+        } else {
+            generation = journalGeneration;
+            journal.truncate(end[0]);
+            journal.position(end[0]);
+            journalSize = end[0];
+        }
+        LOGGER.info("restored registry from " + dir + " in " + (System.currentTimeMillis() - start) + " ms.");
+        return state;
+    }
+    
+    boolean needsCompaction() {
+        return journalSize > compactionSize;
+    }
+    
+    boolean isEmpty() {
+        return journalSize <= HEADER_SIZE;
+    }
+    
+    void appendApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_APPLICATION);
+            w.writeString(instId.toString());
+            w.writeString(appId == null ? null : appId.toString());
+            w.writeString(name);
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_COMPONENT);
+            writeComponent(w, instId, cid, name, 0L);
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, 
+                Map<String, String> properties) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_INSTANCE);
+            writeInstance(w, instId, cid, cinstId, properties);
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendComponentInstanceRemoval(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_REMOVE);
+            w.writeString(instId.toString());
+            w.writeString(cid.toString());
+            w.writeString(cinstId.toString());
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendLease(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_LEASE);
+            writeLease(w, instId, cid, cinstId, leaseMillis);
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendApplicationInstanceRemoval(ApplicationInstanceId instId) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_REMOVE_APPLICATION);
+            w.writeString(instId.toString());
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    void appendComponentProperties(ApplicationInstanceId instId, ComponentId cid, 
+                Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RemoteException {
+        try {
+            RecordWriter w = new RecordWriter(OP_PROPERTIES);
+            w.writeString(instId.toString());
+            w.writeString(cid.toString());
+            w.out.writeInt(properties.size());
+            for(Entry<ComponentInstanceId, ? extends Map<String, ?>> entry : properties.entrySet()) {
+                w.writeString(entry.getKey().toString());
+                w.writeProperties(entry.getValue());
+            }
+            append(w);
+        } catch(IOException ioe) {
+            throw new RemoteException("cannot write registry journal", ioe);
+        }
+    }
+    
+    /** 
+     * writes the given state as a new snapshot and empties the journal. 
+     * No change must be applied or appended while this method runs.
+     */
+    synchronized void compact(Iterable<AppInstanceContainer> apps) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long next = generation + 1;
+        Path tmp = dir.resolve(SNAPSHOT_TMP_FILE);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024);
+            out.write(header(next).array());
+            for(AppInstanceContainer app : apps) {
+                RecordWriter w = new RecordWriter(OP_APPLICATION);
+                w.writeString(app.getApplicationInstanceId().toString());
+                w.writeString(app.getApplicationId() == null ? null : app.getApplicationId().toString());
+                w.writeString(app.getName());
+                w.writeTo(out);
+                for(ComponentInstanceContainer comp : app.getComponents()) {
+                    ComponentInstanceContainer.Snapshot s = comp.getSnapshot();
+                    for(Entry<ComponentInstanceId, Map<String, String>> entry : s.instances.entrySet()) {
+                        w = new RecordWriter(OP_INSTANCE);
+                        writeInstance(w, app.getApplicationInstanceId(), comp.getComponentId(), entry.getKey(), entry.getValue());
+                        w.writeTo(out);
+                        Long lease = comp.getLeaseMillis(entry.getKey());
+                        if(lease != null) {
+                            w = new RecordWriter(OP_LEASE);
+                            writeLease(w, app.getApplicationInstanceId(), comp.getComponentId(), entry.getKey(), lease.longValue());
+                            w.writeTo(out);
+                        }
+                    }
+                    // after the instances, so that its version replaces the one counted for them //
+                    w = new RecordWriter(OP_COMPONENT);
+                    writeComponent(w, app.getApplicationInstanceId(), comp.getComponentId(), comp.getName(), 
+                                ComponentInstanceContainer.changesOf(s.version));
+                    w.writeTo(out);
+                }
+            }
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        resetJournal();
+        LOGGER.info("compacted registry journal in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+    
+    synchronized void close() throws IOException {
+        if(journal != null) {
+            journal.close();
+        }
+    }
+    
+    private synchronized void append(RecordWriter w) throws IOException {
+        ByteBuffer buffer = w.toBuffer();
+        while(buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        if(sync) {
+            journal.force(false);
+        }
+        journalSize = journal.position();
+    }
+    
+    private void resetJournal() throws IOException {
+        journal.truncate(0);
+        journal.position(0);
+        ByteBuffer header = header(generation);
+        while(header.hasRemaining()) {
+            journal.write(header);
+        }
+        journal.force(true);
+        journalSize = journal.position();
+    }
+    
+    private static ByteBuffer header(long gen) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(gen);
+        header.flip();
+        return header;
+    }
+    
+    private static void writeComponent(RecordWriter w, ApplicationInstanceId instId, ComponentId cid, 
+                String name, long version) throws IOException {
+        w.writeString(instId.toString());
+        w.writeString(cid.toString());
+        w.writeString(name);
+        w.out.writeLong(version);
+    }
+    
+    private static void writeInstance(RecordWriter w, ApplicationInstanceId instId, ComponentId cid, 
+                ComponentInstanceId cinstId, Map<String, ?> properties) throws IOException {
+        w.writeString(instId.toString());
+        w.writeString(cid.toString());
+        w.writeString(cinstId.toString());
+        w.writeProperties(properties);
+    }
+    
+    private static void writeLease(RecordWriter w, ApplicationInstanceId instId, ComponentId cid, 
+                ComponentInstanceId cinstId, long leaseMillis) throws IOException {
+        w.writeString(instId.toString());
+        w.writeString(cid.toString());
+        w.writeString(cinstId.toString());
+        w.out.writeLong(leaseMillis);
+    }
+    
+    /** 
+     * applies all valid records of the file to state. 
+     * @param generation if not null, the file is only applied if it has this generation
+     * @param end receives the position after the last valid record if not null
+     * @return the generation of the file or -1 if the file has no valid header
+     */
+    private static long readFile(FileChannel ch, Long generation, Map<ApplicationInstanceId, RestoredApplication> state, 
+                long[] end) throws IOException {
+        final long size = ch.size();
+        if(size < HEADER_SIZE) 
+            return -1L;
+        MappedByteBuffer buffer = ch.map(MapMode.READ_ONLY, 0, size);
+        if(buffer.getInt() != MAGIC) 
+            return -1L;
+        long gen = buffer.getLong();
+        if(generation != null && generation.longValue() != gen) 
+            return gen;
+        CRC32 crc = new CRC32();
+        while(buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int recordStart = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length <= 0 || length > buffer.remaining()) {
+                buffer.position(recordStart);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if((int) crc.getValue() != checksum) {
+                buffer.position(recordStart);
+                break;
+            }
+            apply(ByteBuffer.wrap(payload), state);
+        }
+        if(buffer.hasRemaining()) {
+            LOGGER.warn("ignoring " + buffer.remaining() + " bytes of incomplete records in registry journal.");
+        }
+        if(end != null) {
+            end[0] = buffer.position();
+        }
+        return gen;
+    }
+    
+    private static void apply(ByteBuffer in, Map<ApplicationInstanceId, RestoredApplication> state) {
+        byte op = in.get();
+        ApplicationInstanceId instId = ApplicationInstanceId.fromString(readString(in));
+        if(op == OP_REMOVE_APPLICATION) {
+            state.remove(instId);
+            return;
+        }
+        RestoredApplication app = state.get(instId);
+        if(app == null) {
+            app = new RestoredApplication();
+            state.put(instId, app);
+        }
+        if(op == OP_APPLICATION) {
+            String appId = readString(in);
+            app.appId = appId == null ? null : ApplicationId.fromString(appId);
+            app.name = readString(in);
+            return;
+        }
+        RestoredComponent comp = app.getComponent(ComponentId.fromString(readString(in)));
+        switch(op) {
+            case OP_COMPONENT: 
+                comp.name = readString(in);
+                comp.version = Math.max(comp.version, in.getLong());
+                return;
+            case OP_INSTANCE: 
+                ComponentInstanceId cinstId = ComponentInstanceId.fromString(readString(in));
+                comp.getInstance(cinstId).putAll(readProperties(in));
+                comp.version++;
+                return;
+            case OP_PROPERTIES: 
+                int count = in.getInt();
+                for(int i = 0; i < count; i++) {
+                    ComponentInstanceId id = ComponentInstanceId.fromString(readString(in));
+                    comp.getInstance(id).putAll(readProperties(in));
+                }
+                comp.version++;
+                return;
+            case OP_REMOVE: 
+                ComponentInstanceId removed = ComponentInstanceId.fromString(readString(in));
+                comp.instances.remove(removed);
+                comp.leases.remove(removed);
+                comp.version++;
+                return;
+            case OP_LEASE: // does not change the content of the component //
+                ComponentInstanceId leased = ComponentInstanceId.fromString(readString(in));
+                if(comp.instances.containsKey(leased)) {
+                    comp.leases.put(leased, Long.valueOf(in.getLong()));
+                }
+                return;
+            default:
+                throw new IllegalStateException("unknown journal record: " + op);
+        }
+    }
+    
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if(length < 0) 
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static Map<String, String> readProperties(ByteBuffer in) {
+        int count = in.getInt();
+        Map<String, String> props = new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            props.put(readString(in), readString(in));
+        }
+        return props;
+    }
+    
+    /** the state of an application instance as read from disk */
+    static final class RestoredApplication {
+        ApplicationId appId;
+        String name;
+        final Map<ComponentId, RestoredComponent> components = new LinkedHashMap<>();
+        
+        private RestoredComponent getComponent(ComponentId cid) {
+            RestoredComponent comp = components.get(cid);
+            if(comp == null) {
+                comp = new RestoredComponent();
+                components.put(cid, comp);
+            }
+            return comp;
+        }
+    }
+    
+    /** the state of a component as read from disk */
+    static final class RestoredComponent {
+        String name;
+        long version;
+        final Map<ComponentInstanceId, Map<String, String>> instances = new HashMap<>();
+        /** the lease length in milliseconds of the instances that hold a lease */
+        final Map<ComponentInstanceId, Long> leases = new HashMap<>();
+        
+        private Map<String, String> getInstance(ComponentInstanceId cinstId) {
+            Map<String, String> props = instances.get(cinstId);
+            if(props == null) {
+                props = new HashMap<>();
+                instances.put(cinstId, props);
+            }
+            return props;
+        }
+    }
+    
+    private static final class RecordWriter {
+        
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        
+        RecordWriter(byte op) throws IOException {
+            out.writeByte(op);
+        }
+        
+        void writeString(String s) throws IOException {
+            if(s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+        
+        void writeProperties(Map<String, ?> properties) throws IOException {
+            Map<String, ?> props = properties == null ? Collections.<String, Object>emptyMap() : properties;
+            out.writeInt(props.size());
+            for(Entry<String, ?> entry : props.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue() == null ? null : entry.getValue().toString());
+            }
+        }
+        
+        ByteBuffer toBuffer() throws IOException {
+            out.flush();
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+            buffer.flip();
+            return buffer;
+        }
+        
+        void writeTo(OutputStream os) throws IOException {
+            ByteBuffer buffer = toBuffer();
+            os.write(buffer.array(), 0, buffer.limit());
+        }
+    }
+}
@@ -18,10 +18,19 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,14 +40,86 @@ import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 
+/** 
+ * no global lock is used: application instances and components are kept in 
+ * concurrent maps, writes are serialised per component, and reads work on 
+ * immutable snapshots of a component (see ComponentInstanceContainer). 
+ * Writers only share a read lock that keeps them from running while the 
+ * journal (if any) is compacted. A background thread removes the instances 
+ * whose lease has expired.
+ */
 public final class RemoteRegistryImpl implements RmiLcaRegistry {
     
     private final static Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
-    private final Map<ApplicationInstanceId,AppInstanceContainer> apps = new HashMap<>();
+    private final ConcurrentMap<ApplicationInstanceId,AppInstanceContainer> apps = new ConcurrentHashMap<>();
+    /** where forwarded application instances live now; not journaled, so that after a restart 
+     * they fail like any unknown application instance */
+    private final ConcurrentMap<ApplicationInstanceId,String> forwardings = new ConcurrentHashMap<>();
+    private final RegistryJournal journal;
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    
+    /** period in which expired instances are looked for */
+    private static final long REAPER_PERIOD_SECONDS = 5L;
+    
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lca-registry-reaper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    public RemoteRegistryImpl() {
+        journal = null;
+        startReaper();
+    }
+    
+    /** restores the state stored in the journal */
+    RemoteRegistryImpl(RegistryJournal journalParam) throws IOException {
+        journal = journalParam;
+        for(Entry<ApplicationInstanceId, RegistryJournal.RestoredApplication> entry : journal.replay().entrySet()) {
+            RegistryJournal.RestoredApplication restored = entry.getValue();
+            AppInstanceContainer c = new AppInstanceContainer(entry.getKey(), restored.appId, restored.name, journal);
+            c.restore(restored);
+            apps.put(entry.getKey(), c);
+        }
+        if(!journal.isEmpty()) {
+            journal.compact(apps.values());
+        }
+        LOGGER.info("restored " + apps.size() + " application instances from journal.");
+        startReaper();
+    }
+    
+    private void startReaper() {
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    reapExpiredInstances();
+                } catch(RuntimeException re) {
+                    LOGGER.warn("could not reap expired component instances.", re);
+                }
+            }
+        }, REAPER_PERIOD_SECONDS, REAPER_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    /** 
+     * @return a registry that is restored from and journaled to the directory 
+     * given by RegistryJournal.JOURNAL_DIR_KEY if set; an in-memory registry otherwise
+     */
+    public static RemoteRegistryImpl create() throws IOException {
+        RegistryJournal journal = RegistryJournal.fromSystemProperties();
+        return journal == null ? new RemoteRegistryImpl() : new RemoteRegistryImpl(journal);
+    }
     
     @Override
-    public synchronized Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
+    public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
         AppInstanceContainer c = apps.get(instId);
         if(c == null) 
             return Collections.emptyMap();
@@ -46,43 +127,169 @@ public final class RemoteRegistryImpl implements RmiLcaRegistry {
         return c.dumpAll(compId);
     }
     
+    @Override
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return new ComponentDump(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap());
+        
+        return c.dumpAllWithVersion(compId);
+    }
+    
+    @Override
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return ComponentDelta.complete(sinceVersion, 
+                        new ComponentDump(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap()));
+        
+        return c.dumpAllSince(compId, sinceVersion);
+    }
+    
+    @Override
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return ComponentSnapshot.of(0L, Collections.<ComponentInstanceId, Map<String, String>>emptyMap());
+        
+        return c.snapshot(compId);
+    }
+    
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return Collections.emptyMap();
+        
+        return c.queryAll(compId, query);
+    }
+    
+    @Override
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) throws RemoteException {
+        ComponentPage.checkPageSize(pageSize);
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return new ComponentPage(Collections.<ComponentInstanceId, Map<String, String>>emptyMap(), null);
+        
+        return c.queryPage(compId, query, continuation, pageSize);
+    }
+    
     @Override
     /**
      * @return true if this application instance has been added successfully. false if it was already contained
              in the registry.
      */
-    public synchronized boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RemoteException {
-        if(apps.containsKey(instId)) {
-            LOGGER.info("application instance '" + instId + "' already exists.");
-            return false;
+    public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RemoteException {
+        compactionLock.readLock().lock();
+        try {
+            if(apps.putIfAbsent(instId, new AppInstanceContainer(instId, appId, name, journal)) != null) {
+                LOGGER.info("application instance '" + instId + "' already exists.");
+                return false;
+            }
+            forwardings.remove(instId);
+            if(journal != null) {
+                try {
+                    journal.appendApplicationInstance(instId, appId, name);
+                } catch(RemoteException re) {
+                    apps.remove(instId);
+                    throw re;
+                }
+            }
+        } finally {
+            compactionLock.readLock().unlock();
         }
-        apps.put(instId, new AppInstanceContainer(instId, appId, name));
+        compactIfNeeded();
         return true;
     }
     
     @Override
-    public synchronized void addComponent(ApplicationInstanceId instId, ComponentId cid, String name)  throws RemoteException {
+    public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name)  throws RemoteException {
         AppInstanceContainer c = apps.get(instId);
         if(c == null) 
             throw new IllegalArgumentException("not known: " + instId);
-        c.addComponent(cid, name);
+        compactionLock.readLock().lock();
+        try {
+            c.addComponent(cid, name);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
     }
 
     @Override
-    public synchronized void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) 
+    public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) 
                 throws RemoteException {
         AppInstanceContainer c = apps.get(instId);
         if(c == null) 
             throw new IllegalArgumentException("not known: " + instId);
-        c.addComponentInstance(cid, cinstId);
+        compactionLock.readLock().lock();
+        try {
+            c.addComponentInstance(cid, cinstId);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
     }
 
     @Override
-    public synchronized void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RemoteException {
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) 
+                throws RemoteException {
         AppInstanceContainer c = apps.get(instId);
         if(c == null) 
             throw new IllegalArgumentException("not known: " + instId);
-        c.addComponentProperty(cid, cinstId, property, value);
+        // renewals only append to the journal if the length of the lease changes //
+        compactionLock.readLock().lock();
+        try {
+            c.renewComponentInstance(cid, cinstId, leaseMillis);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) 
+                throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return false;
+        boolean removed;
+        compactionLock.readLock().lock();
+        try {
+            removed = c.removeComponentInstance(cid, cinstId);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
+        return removed;
+    }
+
+    @Override
+    public void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + instId);
+        compactionLock.readLock().lock();
+        try {
+            c.addComponentProperty(cid, cinstId, property, value);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
+    }
+    
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, 
+                Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + instId);
+        compactionLock.readLock().lock();
+        try {
+            c.addComponentProperties(cid, properties);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
     }
     
     @Override
@@ -107,4 +314,105 @@ public final class RemoteRegistryImpl implements RmiLcaRegistry {
         return c != null && c.componentExists(compId);
     }
 
+    @Override
+    public void addComponentListener(ApplicationInstanceId instId, ComponentId compId, RmiComponentListener listener) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            throw new IllegalArgumentException("not known: " + instId);
+        c.addComponentListener(compId, listener);
+    }
+
+    @Override
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, RmiComponentListener listener) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return;
+        c.removeComponentListener(compId, listener);
+    }
+    
+    @Override
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RemoteException {
+        AppInstanceContainer c = apps.get(instId);
+        if(c == null) 
+            return null;
+        return c.export();
+    }
+    
+    @Override
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RemoteException {
+        AppInstanceContainer c;
+        compactionLock.readLock().lock();
+        try {
+            c = apps.remove(instId);
+            if(c == null) 
+                return false;
+            if(journal != null) {
+                try {
+                    journal.appendApplicationInstanceRemoval(instId);
+                } catch(RemoteException re) {
+                    apps.putIfAbsent(instId, c);
+                    throw re;
+                }
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        c.close();
+        compactIfNeeded();
+        LOGGER.info("LcaRegistry: removed application instance: " + instId);
+        return true;
+    }
+    
+    /** operations on a removed application instance fail as not known anyway */
+    @Override
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RemoteException {
+        forwardings.put(instId, location);
+        return removeApplicationInstance(instId);
+    }
+    
+    @Override
+    public String getForwarding(ApplicationInstanceId instId) throws RemoteException {
+        return forwardings.get(instId);
+    }
+    
+    /** removes the instances whose lease has expired or whose grace period after destruction is over */
+    void reapExpiredInstances() {
+        final long now = System.nanoTime();
+        int reaped = 0;
+        for(AppInstanceContainer app : apps.values()) {
+            for(ComponentInstanceContainer comp : app.getComponents()) {
+                compactionLock.readLock().lock();
+                try {
+                    reaped += comp.reapExpiredInstances(now);
+                } catch(RemoteException re) {
+                    // the instance remains; the next run tries again //
+                    LOGGER.warn("could not remove expired instances of " + comp, re);
+                } finally {
+                    compactionLock.readLock().unlock();
+                }
+            }
+        }
+        if(reaped > 0) {
+            LOGGER.info("removed " + reaped + " expired component instances.");
+            compactIfNeeded();
+        }
+    }
+    
+    /** writes a snapshot of the registry once the journal has grown too large */
+    private void compactIfNeeded() {
+        if(journal == null || !journal.needsCompaction()) 
+            return;
+        compactionLock.writeLock().lock();
+        try {
+            if(journal.needsCompaction()) {
+                journal.compact(apps.values());
+            }
+        } catch(IOException ioe) {
+            // the journal is still complete; hence, we can continue //
+            LOGGER.warn("could not compact registry journal.", ioe);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
 }
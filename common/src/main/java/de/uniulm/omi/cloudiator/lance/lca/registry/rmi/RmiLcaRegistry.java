@@ -26,15 +26,35 @@ import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 
 public interface RmiLcaRegistry extends Remote {
     public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RemoteException;
     public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RemoteException;
     public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RemoteException;
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RemoteException;
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RemoteException;
     void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RemoteException;
+    void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RemoteException;
     public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RemoteException;
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RemoteException;
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RemoteException;
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RemoteException;
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RemoteException;
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) throws RemoteException;
     public String getComponentProperty(ApplicationInstanceId appInstId,
             ComponentId compId, ComponentInstanceId myId, String name) throws RemoteException;
     public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RemoteException;
     public boolean applicationComponentExists(ApplicationInstanceId appInstId, ComponentId compId) throws RemoteException;
+    public void addComponentListener(ApplicationInstanceId instId, ComponentId compId, RmiComponentListener listener) throws RemoteException;
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, RmiComponentListener listener) throws RemoteException;
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RemoteException;
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RemoteException;
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RemoteException;
+    public String getForwarding(ApplicationInstanceId instId) throws RemoteException;
 }
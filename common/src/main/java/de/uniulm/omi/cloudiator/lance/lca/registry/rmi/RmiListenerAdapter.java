@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+
+/** 
+ * the exported callback of one local listener. Only passes on events of 
+ * components the listener is currently registered for. 
+ */
+final class RmiListenerAdapter implements RmiComponentListener {
+
+    private final ComponentChangeListener listener;
+    private final Set<String> registrations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    RmiListenerAdapter(ComponentChangeListener listenerParam) {
+        listener = listenerParam;
+    }
+    
+    /** @return true if the listener had not been registered for this component before */
+    boolean register(ApplicationInstanceId instId, ComponentId compId) {
+        return registrations.add(key(instId, compId));
+    }
+    
+    /** @return true if the listener had been registered for this component */
+    boolean unregister(ApplicationInstanceId instId, ComponentId compId) {
+        return registrations.remove(key(instId, compId));
+    }
+    
+    boolean hasRegistrations() {
+        return !registrations.isEmpty();
+    }
+    
+    @Override
+    public void componentChanged(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
+        if(registrations.contains(key(instId, compId))) {
+            listener.componentChanged(instId, compId);
+        }
+    }
+    
+    private static String key(ApplicationInstanceId instId, ComponentId compId) {
+        return instId + "/" + compId;
+    }
+}
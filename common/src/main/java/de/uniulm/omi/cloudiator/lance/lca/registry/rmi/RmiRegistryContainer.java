@@ -18,6 +18,7 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
@@ -27,7 +28,7 @@ import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryContainer;
 
 public final class RmiRegistryContainer implements RegistryContainer {
 
-    private final RemoteRegistryImpl reg = new RemoteRegistryImpl();
+    private final RemoteRegistryImpl reg;
     private final RmiLcaRegistry exportedRegistry;
     private final RmiWrapper wrapper;
     
@@ -38,7 +39,8 @@ public final class RmiRegistryContainer implements RegistryContainer {
         return re;
     }
     
-    private RmiRegistryContainer() throws RemoteException {
+    private RmiRegistryContainer(RemoteRegistryImpl regParam) throws RemoteException {
+        reg = regParam;
         exportedRegistry = initComponentRegistry();
         wrapper = new RmiWrapper(exportedRegistry);
     }
@@ -48,11 +50,17 @@ public final class RmiRegistryContainer implements RegistryContainer {
         return wrapper;
     }
     
+    /** 
+     * restores the registry from its journal if a journal directory has 
+     * been configured (see RegistryJournal.JOURNAL_DIR_KEY). 
+     */
     public static RegistryContainer create() throws RegistrationException {
         try { 
-            return new RmiRegistryContainer(); 
+            return new RmiRegistryContainer(RemoteRegistryImpl.create()); 
         } catch(RemoteException re) {
             throw new RegistrationException("cannot create registry", re);
+        } catch(IOException ioe) {
+            throw new RegistrationException("cannot restore registry from journal", ioe);
         }
     }
 }
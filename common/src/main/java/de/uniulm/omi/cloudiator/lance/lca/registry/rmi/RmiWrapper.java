@@ -18,21 +18,52 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
 
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
-import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.AsyncLcaRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.MigratableRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ExecutorAsyncRegistry;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
 
-public final class RmiWrapper implements LcaRegistry {
+public final class RmiWrapper implements MigratableRegistry {
     
     private static final long serialVersionUID = 1L;
     
+    /** number of threads that wait for remote calls on behalf of all asynchronous callers of a process */
+    public static final String ASYNC_THREADS_KEY = "lca.registry.rmi.async.threads";
+    
+    private static final ExecutorService ASYNC_EXECUTOR = Executors.newFixedThreadPool(
+                Integer.getInteger(ASYNC_THREADS_KEY, 8).intValue(), new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lca-registry-rmi-call");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
     private final RmiLcaRegistry delegate;
+    // exported callbacks; these only live on the side that registered them. 
+    // A listener is exported once, no matter for how many components it registers //
+    private transient Map<ComponentChangeListener, RmiListenerAdapter> exportedListeners;
     
     RmiWrapper(RmiLcaRegistry delegateParam) {
         delegate = delegateParam;
@@ -69,6 +100,24 @@ public final class RmiWrapper implements LcaRegistry {
         }
     }
 
+    @Override
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RegistrationException {
+        try { 
+            delegate.renewComponentInstance(instId, cid, cinstId, leaseMillis); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException {
+        try { 
+            return delegate.removeComponentInstance(instId, cid, cinstId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
     @Override
     public void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property,
             Object value) throws RegistrationException {
@@ -79,6 +128,22 @@ public final class RmiWrapper implements LcaRegistry {
         }
     }
 
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, 
+            Map<String, ?> properties) throws RegistrationException {
+        addComponentProperties(instId, cid, Collections.singletonMap(cinstId, properties));
+    }
+
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, 
+            Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RegistrationException {
+        try { 
+            delegate.addComponentProperties(instId, cid, new HashMap<>(properties)); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
     @Override
     public Map<ComponentInstanceId, Map<String, String>> dumpComponent(
             ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
@@ -89,6 +154,52 @@ public final class RmiWrapper implements LcaRegistry {
         }
     }
 
+    @Override
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        try { 
+            return delegate.dumpComponentWithVersion(instId, compId);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RegistrationException {
+        try { 
+            return delegate.dumpComponentSince(instId, compId, sinceVersion);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        try { 
+            return delegate.snapshotComponent(instId, compId);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RegistrationException {
+        try { 
+            return delegate.queryComponent(instId, compId, query);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) 
+                throws RegistrationException {
+        try { 
+            return delegate.queryComponentPage(instId, compId, query, continuation, pageSize);  
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
     @Override
     public String getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name)
             throws RegistrationException {
@@ -99,6 +210,42 @@ public final class RmiWrapper implements LcaRegistry {
          }
     }
 
+    @Override
+    public ApplicationInstanceExport exportApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return delegate.exportApplicationInstance(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean removeApplicationInstance(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return delegate.removeApplicationInstance(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public boolean forwardApplicationInstance(ApplicationInstanceId instId, String location) throws RegistrationException {
+        try { 
+            return delegate.forwardApplicationInstance(instId, location); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
+    @Override
+    public String getForwarding(ApplicationInstanceId instId) throws RegistrationException {
+        try { 
+            return delegate.getForwarding(instId); 
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        }
+    }
+
     @Override
     public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RegistrationException {
         try { 
@@ -116,4 +263,66 @@ public final class RmiWrapper implements LcaRegistry {
             throw new RegistrationException("operation failed.", re);
         }
     }
+
+    @Override
+    public synchronized boolean addComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        RmiListenerAdapter adapter = getExportedListeners().get(listener);
+        try { 
+            if(adapter == null) {
+                adapter = new RmiListenerAdapter(listener);
+                UnicastRemoteObject.exportObject(adapter, 0);
+                getExportedListeners().put(listener, adapter);
+            }
+            if(adapter.register(instId, compId)) {
+                delegate.addComponentListener(instId, compId, (RmiComponentListener) UnicastRemoteObject.toStub(adapter));
+            }
+        } catch(RemoteException re){
+            adapter.unregister(instId, compId);
+            releaseIfUnused(listener, adapter);
+            throw new RegistrationException("operation failed.", re);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        RmiListenerAdapter adapter = getExportedListeners().get(listener);
+        if(adapter == null || !adapter.unregister(instId, compId)) 
+            return;
+        try { 
+            delegate.removeComponentListener(instId, compId, (RmiComponentListener) UnicastRemoteObject.toStub(adapter));
+        } catch(RemoteException re){
+            throw new RegistrationException("operation failed.", re);
+        } finally {
+            releaseIfUnused(listener, adapter);
+        }
+    }
+
+    /** RMI calls block; they run on a bounded pool of threads shared by all callers */
+    @Override
+    public AsyncLcaRegistry async() {
+        return new ExecutorAsyncRegistry(this, ASYNC_EXECUTOR);
+    }
+    
+    private void releaseIfUnused(ComponentChangeListener listener, RmiListenerAdapter adapter) {
+        if(adapter == null || adapter.hasRegistrations()) 
+            return;
+        getExportedListeners().remove(listener);
+        unexport(adapter);
+    }
+    
+    private Map<ComponentChangeListener, RmiListenerAdapter> getExportedListeners() {
+        if(exportedListeners == null) {
+            exportedListeners = new HashMap<>();
+        }
+        return exportedListeners;
+    }
+    
+    private static void unexport(RmiListenerAdapter adapter) {
+        try {
+            UnicastRemoteObject.unexportObject(adapter, true);
+        } catch(NoSuchObjectException nso) {
+            // not exported; nothing to do //
+        }
+    }
 }
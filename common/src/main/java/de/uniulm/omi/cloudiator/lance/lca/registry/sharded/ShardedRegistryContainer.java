@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.sharded;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFactory;
+import de.uniulm.omi.cloudiator.lance.lca.registry.embedded.EmbeddedRegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.etcd.EtcdRegistryContainer;
+
+public final class ShardedRegistryContainer implements RegistryContainer {
+
+    /** the shards separated by ';'; each one is either a list of etcd hosts 
+     * (<hostname1>:<port1>,<hostname2>:<port2>,...) or 'embeddedregistry' 
+     * for the registry of this process */
+    public static final String LCA_REGISTRY_CONFIG_SHARDS_KEY = "lca.client.config.registry.shards";
+    /** application instances that do not live in the shard their id hashes to: 
+     * <applicationInstanceId>=<shard number>,... */
+    public static final String LCA_REGISTRY_CONFIG_SHARD_OVERRIDES_KEY = "lca.client.config.registry.shards.overrides";
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistryContainer.class);
+    
+    private final ShardedRegistryImpl impl;
+    
+    private ShardedRegistryContainer(ShardedRegistryImpl implParam) {
+        impl = implParam;
+    }
+    
+    @Override 
+    public LcaRegistry getRegistry() { 
+        return impl; 
+    }
+    
+    public static ShardedRegistryContainer create() throws RegistrationException {
+        LOGGER.info("checking for registry shards configuration: " + LCA_REGISTRY_CONFIG_SHARDS_KEY);
+        String value = System.getProperty(LCA_REGISTRY_CONFIG_SHARDS_KEY);
+        if(value == null || value.trim().isEmpty()) 
+            throw new RegistrationException("no registry shards configured; please provide: <etcd hosts of shard 0>;<etcd hosts of shard 1>;...");
+        
+        List<LcaRegistry> shards = new ArrayList<>();
+        for(String shard : value.split(";")) {
+            shards.add(createShard(shard.trim()));
+        }
+        Map<ApplicationInstanceId, Integer> overrides = parseOverrides(System.getProperty(LCA_REGISTRY_CONFIG_SHARD_OVERRIDES_KEY));
+        LOGGER.info("using " + shards.size() + " registry shards with " + overrides.size() + " overrides.");
+        try {
+            return new ShardedRegistryContainer(new ShardedRegistryImpl(shards, overrides));
+        } catch(IllegalArgumentException iae) {
+            throw new RegistrationException("invalid registry shards configuration", iae);
+        }
+    }
+    
+    private static LcaRegistry createShard(String shard) throws RegistrationException {
+        if(RegistryFactory.LCA_REGISTRY_CONFIG_EMBEDDED_VALUE.equals(shard)) 
+            return EmbeddedRegistryContainer.create().getRegistry();
+        return EtcdRegistryContainer.createForHosts(shard).getRegistry();
+    }
+    
+    private static Map<ApplicationInstanceId, Integer> parseOverrides(String value) throws RegistrationException {
+        Map<ApplicationInstanceId, Integer> overrides = new HashMap<>();
+        if(value == null) 
+            return overrides;
+        for(String entry : value.split(",")) {
+            if(entry.trim().isEmpty()) 
+                continue;
+            int eq = entry.indexOf('=');
+            if(eq <= 0) 
+                throw new RegistrationException("invalid shard override, expected <applicationInstanceId>=<shard>: " + entry);
+            try {
+                overrides.put(ApplicationInstanceId.fromString(entry.substring(0, eq).trim()), 
+                                Integer.valueOf(entry.substring(eq + 1).trim()));
+            } catch(IllegalArgumentException iae) {
+                throw new RegistrationException("invalid shard override: " + entry, iae);
+            }
+        }
+        return overrides;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.sharded;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.AsyncLcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ApplicationInstanceExport;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentPage;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.MigratableRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
+
+/**
+ * spreads application instances over several registries (shards), so that a 
+ * busy application instance only slows down the shard it lives in. All data 
+ * of an application instance lives in one shard: the one its id hashes to, 
+ * unless the override table names another one. The override table is part 
+ * of this object and hence travels with every deployment context. Copies 
+ * that have been made before a migration learn about it from the shard they 
+ * still use: a migration leaves a forwarding there before it removes the 
+ * application instance, and an operation that fails on a shard is repeated 
+ * on the shard that the forwarding names. 
+ * Versions of components are tagged with the shard, so that a delta is never 
+ * computed against a version read from another shard.
+ */
+public final class ShardedRegistryImpl implements LcaRegistry {
+
+    private static final long serialVersionUID = 1L;
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(LcaRegistry.class);
+    
+    /** shard numbers are kept in the bits above this one of every version */
+    private static final int SHARD_SHIFT = 48;
+    private static final long VERSION_MASK = (1L << SHARD_SHIFT) - 1;
+    
+    private final List<LcaRegistry> shards;
+    private final ConcurrentMap<ApplicationInstanceId, Integer> overrides;
+    private transient ConcurrentMap<ApplicationInstanceId, List<ListenerRegistration>> listeners;
+    private transient AsyncLcaRegistry async;
+    
+    /** 
+     * @param shardsParam the registries to spread the application instances over; their 
+     * order must be the same in all processes
+     * @param overridesParam application instances that do not live in the shard their id hashes to
+     */
+    public ShardedRegistryImpl(List<? extends LcaRegistry> shardsParam, Map<ApplicationInstanceId, Integer> overridesParam) {
+        if(shardsParam.isEmpty()) 
+            throw new IllegalArgumentException("at least one shard is required");
+        shards = new ArrayList<>(shardsParam);
+        overrides = new ConcurrentHashMap<>();
+        for(Map.Entry<ApplicationInstanceId, Integer> entry : overridesParam.entrySet()) {
+            overrides.put(entry.getKey(), Integer.valueOf(checkShard(entry.getValue().intValue())));
+        }
+        init();
+    }
+    
+    private void init() {
+        listeners = new ConcurrentHashMap<>();
+        async = new ShardedAsyncRegistry();
+    }
+    
+    private void readObject(java.io.ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        init();
+    }
+    
+    public int getShardCount() {
+        return shards.size();
+    }
+    
+    /** @return the number of the shard that holds the application instance */
+    public int shardOf(ApplicationInstanceId instId) {
+        Integer override = overrides.get(instId);
+        if(override != null) 
+            return override.intValue();
+        // String.hashCode is the same in every JVM, unlike the hash of some ids //
+        return Math.floorMod(instId.toString().hashCode(), shards.size());
+    }
+    
+    private LcaRegistry shardFor(ApplicationInstanceId instId) {
+        return shards.get(shardOf(instId));
+    }
+    
+    private int checkShard(int shard) {
+        if(shard < 0 || shard >= shards.size()) 
+            throw new IllegalArgumentException("no such shard: " + shard + "; there are " + shards.size());
+        return shard;
+    }
+    
+    private interface ShardCall<T> {
+        T call(LcaRegistry shard) throws RegistrationException;
+    }
+    
+    /** 
+     * runs the call on the shard that holds the application instance; if it fails 
+     * there and the shard has forwarded the application instance, it is repeated 
+     * on the shard the forwarding names. 
+     */
+    private <T> T route(ApplicationInstanceId instId, ShardCall<T> call) throws RegistrationException {
+        for(int hops = 0; ; hops++) {
+            int shard = shardOf(instId);
+            try {
+                return call.call(shards.get(shard));
+            } catch(RegistrationException | RuntimeException e) {
+                if(hops == shards.size() || ! follow(instId, shard)) 
+                    throw e;
+            }
+        }
+    }
+    
+    private <T> CompletableFuture<T> routeAsync(ApplicationInstanceId instId, Function<AsyncLcaRegistry, CompletableFuture<T>> call) {
+        return routeAsync(instId, call, 0);
+    }
+    
+    private <T> CompletableFuture<T> routeAsync(final ApplicationInstanceId instId, final Function<AsyncLcaRegistry, CompletableFuture<T>> call, final int hops) {
+        final int shard = shardOf(instId);
+        return call.apply(shards.get(shard).async()).handle((value, failure) -> {
+            if(failure == null) 
+                return CompletableFuture.completedFuture(value);
+            if(hops == shards.size()) 
+                return RegistryFutures.<T>failed(failure);
+            // reading the forwarding blocks; the thread that has completed the call must not wait for it //
+            return CompletableFuture.supplyAsync(() -> Boolean.valueOf(follow(instId, shard))).thenCompose(moved -> 
+                        moved.booleanValue() ? routeAsync(instId, call, hops + 1) : RegistryFutures.<T>failed(failure));
+        }).thenCompose(next -> next);
+    }
+    
+    /** @return true if another shard holds the application instance now */
+    private boolean followForwardings(ApplicationInstanceId instId) {
+        boolean moved = false;
+        for(int hops = 0; hops < shards.size() && follow(instId, shardOf(instId)); hops++) {
+            moved = true;
+        }
+        return moved;
+    }
+    
+    /** 
+     * directs all further operations on the application instance to the shard 
+     * that the given one has forwarded it to, if any.
+     * @return true if another shard than the given one holds the application instance now 
+     */
+    private boolean follow(ApplicationInstanceId instId, int shard) {
+        LcaRegistry from = shards.get(shard);
+        if(!(from instanceof MigratableRegistry)) 
+            return false;
+        final int target;
+        try {
+            String location = ((MigratableRegistry) from).getForwarding(instId);
+            if(location == null) 
+                return false;
+            target = checkShard(Integer.parseInt(location));
+        } catch(RegistrationException | IllegalArgumentException e) {
+            LOGGER.warn("cannot read where application instance " + instId + " has moved from shard " + shard, e);
+            return false;
+        }
+        synchronized(overrides) {
+            if(shardOf(instId) != shard) 
+                return true;
+            if(target == shard) 
+                return false;
+            overrides.put(instId, Integer.valueOf(target));
+            try {
+                moveListeners(instId, from, shards.get(target));
+            } catch(RegistrationException re) {
+                LOGGER.warn("cannot move listeners of application instance " + instId + " to shard " + target, re);
+            }
+        }
+        LOGGER.info("application instance " + instId + " has moved from shard " + shard + " to shard " + target);
+        return true;
+    }
+    
+    /**
+     * copies the application instance to the target shard, directs all further 
+     * operations of this object there, and replaces it by a forwarding in its 
+     * former shard. The forwarding is written before the application instance 
+     * is removed, so that every copy of this object that fails to find it there 
+     * finds the forwarding instead. Listeners registered through this object are 
+     * moved and informed, so that they re-read. Changes made to the application 
+     * instance while the migration runs may be lost; hence, it should be quiet. 
+     * A migration that has failed can be repeated.
+     * @throws RegistrationException if a shard involved does not support migration or fails
+     */
+    public void migrateApplicationInstance(ApplicationInstanceId instId, int targetShard) throws RegistrationException {
+        synchronized(overrides) {
+            final int source = shardOf(instId);
+            final int target = checkShard(targetShard);
+            if(source == target) 
+                return;
+            if(shards.get(source) == shards.get(target)) {
+                // both numbers name the same store; there is nothing to move //
+                overrides.put(instId, Integer.valueOf(target));
+                return;
+            }
+            MigratableRegistry from = migratable(source);
+            ApplicationInstanceExport export = from.exportApplicationInstance(instId);
+            if(export != null) {
+                export.importInto(shards.get(target));
+            }
+            // this object moves last, so that a failed migration is repeated from the source //
+            from.forwardApplicationInstance(instId, String.valueOf(target));
+            overrides.put(instId, Integer.valueOf(target));
+            moveListeners(instId, from, shards.get(target));
+            LOGGER.info("moved application instance " + instId + " from shard " + source + " to shard " + target);
+        }
+    }
+    
+    private MigratableRegistry migratable(int shard) throws RegistrationException {
+        LcaRegistry reg = shards.get(shard);
+        if(!(reg instanceof MigratableRegistry)) 
+            throw new RegistrationException("shard " + shard + " does not support migration: " + reg);
+        return (MigratableRegistry) reg;
+    }
+    
+    private void moveListeners(ApplicationInstanceId instId, LcaRegistry from, LcaRegistry to) throws RegistrationException {
+        List<ListenerRegistration> registrations = listeners.get(instId);
+        if(registrations == null) 
+            return;
+        for(ListenerRegistration r : registrations) {
+            from.removeComponentListener(instId, r.compId, r.listener);
+            to.addComponentListener(instId, r.compId, r.listener);
+            r.listener.componentChanged(instId, r.compId);
+        }
+    }
+    
+    /** @return a map from the shard numbers to the application instances that override their default */
+    public Map<ApplicationInstanceId, Integer> getOverrides() {
+        return new ConcurrentHashMap<>(overrides);
+    }
+    
+    private long tag(ApplicationInstanceId instId, long version) {
+        return ((long) (shardOf(instId) + 1) << SHARD_SHIFT) | (version & VERSION_MASK);
+    }
+    
+    /** @return the version as known to the shard; negative if it has been read from another shard */
+    private long untag(ApplicationInstanceId instId, long version) {
+        if(version >>> SHARD_SHIFT != shardOf(instId) + 1) 
+            return -1L;
+        return version & VERSION_MASK;
+    }
+    
+    private ComponentDump tag(ApplicationInstanceId instId, ComponentDump dump) {
+        return new ComponentDump(tag(instId, dump.getVersion()), dump.getInstances());
+    }
+    
+    private ComponentDelta tag(ApplicationInstanceId instId, long sinceVersion, ComponentDelta delta) {
+        if(delta.isComplete()) 
+            return ComponentDelta.complete(sinceVersion, new ComponentDump(tag(instId, delta.getVersion()), delta.getUpdated()));
+        return new ComponentDelta(sinceVersion, tag(instId, delta.getVersion()), delta.getUpdated(), delta.getRemoved());
+    }
+    
+    @Override
+    public boolean addApplicationInstance(ApplicationInstanceId instId, ApplicationId appId, String name) throws RegistrationException {
+        // a copy that has not learnt about a migration would add it anew to the former shard //
+        followForwardings(instId);
+        return route(instId, shard -> shard.addApplicationInstance(instId, appId, name));
+    }
+
+    @Override
+    public void addComponent(ApplicationInstanceId instId, ComponentId cid, String name) throws RegistrationException {
+        route(instId, shard -> {
+            shard.addComponent(instId, cid, name);
+            return null;
+        });
+    }
+
+    @Override
+    public void addComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException {
+        route(instId, shard -> {
+            shard.addComponentInstance(instId, cid, cinstId);
+            return null;
+        });
+    }
+
+    @Override
+    public void renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) throws RegistrationException {
+        route(instId, shard -> {
+            shard.renewComponentInstance(instId, cid, cinstId, leaseMillis);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) throws RegistrationException {
+        return route(instId, shard -> shard.removeComponentInstance(instId, cid, cinstId));
+    }
+
+    @Override
+    public void addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) throws RegistrationException {
+        route(instId, shard -> {
+            shard.addComponentProperty(instId, cid, cinstId, property, value);
+            return null;
+        });
+    }
+
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) throws RegistrationException {
+        route(instId, shard -> {
+            shard.addComponentProperties(instId, cid, cinstId, properties);
+            return null;
+        });
+    }
+
+    @Override
+    public void addComponentProperties(ApplicationInstanceId instId, ComponentId cid, Map<ComponentInstanceId, ? extends Map<String, ?>> properties) throws RegistrationException {
+        route(instId, shard -> {
+            shard.addComponentProperties(instId, cid, properties);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return route(instId, shard -> shard.dumpComponent(instId, compId));
+    }
+
+    @Override
+    public ComponentDump dumpComponentWithVersion(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return route(instId, shard -> tag(instId, shard.dumpComponentWithVersion(instId, compId)));
+    }
+
+    @Override
+    public ComponentDelta dumpComponentSince(ApplicationInstanceId instId, ComponentId compId, long sinceVersion) throws RegistrationException {
+        return route(instId, shard -> {
+            long version = untag(instId, sinceVersion);
+            if(version < 0) 
+                return ComponentDelta.complete(sinceVersion, tag(instId, shard.dumpComponentWithVersion(instId, compId)));
+            return tag(instId, sinceVersion, shard.dumpComponentSince(instId, compId, version));
+        });
+    }
+
+    @Override
+    public ComponentSnapshot snapshotComponent(ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        return route(instId, shard -> {
+            ComponentSnapshot snapshot = shard.snapshotComponent(instId, compId);
+            return snapshot.withVersion(tag(instId, snapshot.getVersion()));
+        });
+    }
+
+    @Override
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) throws RegistrationException {
+        return route(instId, shard -> shard.queryComponent(instId, compId, query));
+    }
+
+    @Override
+    public ComponentPage queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) throws RegistrationException {
+        return route(instId, shard -> shard.queryComponentPage(instId, compId, query, continuation, pageSize));
+    }
+
+    @Override
+    public String getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name) throws RegistrationException {
+        return route(appInstId, shard -> shard.getComponentProperty(appInstId, compId, myId, name));
+    }
+
+    @Override
+    public boolean applicationInstanceExists(ApplicationInstanceId appInstId) throws RegistrationException {
+        // the former shard does not fail, but merely answers false //
+        if(route(appInstId, shard -> shard.applicationInstanceExists(appInstId))) 
+            return true;
+        return followForwardings(appInstId) && route(appInstId, shard -> shard.applicationInstanceExists(appInstId));
+    }
+
+    @Override
+    public boolean applicationComponentExists(ApplicationInstanceId appInstId, ComponentId compId) throws RegistrationException {
+        if(route(appInstId, shard -> shard.applicationComponentExists(appInstId, compId))) 
+            return true;
+        return followForwardings(appInstId) && route(appInstId, shard -> shard.applicationComponentExists(appInstId, compId));
+    }
+
+    @Override
+    public boolean addComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        synchronized(overrides) {
+            boolean notifies = route(instId, shard -> shard.addComponentListener(instId, compId, listener));
+            if(notifies) {
+                List<ListenerRegistration> registrations = listeners.get(instId);
+                if(registrations == null) {
+                    registrations = new CopyOnWriteArrayList<>();
+                    listeners.put(instId, registrations);
+                }
+                registrations.add(new ListenerRegistration(compId, listener));
+            }
+            return notifies;
+        }
+    }
+
+    @Override
+    public void removeComponentListener(ApplicationInstanceId instId, ComponentId compId, ComponentChangeListener listener) throws RegistrationException {
+        synchronized(overrides) {
+            shardFor(instId).removeComponentListener(instId, compId, listener);
+            List<ListenerRegistration> registrations = listeners.get(instId);
+            if(registrations == null) 
+                return;
+            for(ListenerRegistration r : registrations) {
+                if(r.compId.equals(compId) && r.listener == listener) {
+                    registrations.remove(r);
+                    break;
+                }
+            }
+            if(registrations.isEmpty()) {
+                listeners.remove(instId);
+            }
+        }
+    }
+
+    @Override
+    public AsyncLcaRegistry async() {
+        return async;
+    }
+    
+    @Override
+    public String toString() {
+        return "ShardedRegistry: " + shards + ", overrides=" + overrides;
+    }
+    
+    private static final class ListenerRegistration {
+        
+        final ComponentId compId;
+        final ComponentChangeListener listener;
+        
+        ListenerRegistration(ComponentId compIdParam, ComponentChangeListener listenerParam) {
+            compId = compIdParam;
+            listener = listenerParam;
+        }
+    }
+    
+    /** routes every call to the asynchronous view of the shard that holds the application instance */
+    private final class ShardedAsyncRegistry implements AsyncLcaRegistry {
+        
+        @Override
+        public CompletableFuture<Void> renewComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, long leaseMillis) {
+            return routeAsync(instId, shard -> shard.renewComponentInstance(instId, cid, cinstId, leaseMillis));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> removeComponentInstance(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId) {
+            return routeAsync(instId, shard -> shard.removeComponentInstance(instId, cid, cinstId));
+        }
+
+        @Override
+        public CompletableFuture<Void> addComponentProperty(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, String property, Object value) {
+            return routeAsync(instId, shard -> shard.addComponentProperty(instId, cid, cinstId, property, value));
+        }
+
+        @Override
+        public CompletableFuture<Void> addComponentProperties(ApplicationInstanceId instId, ComponentId cid, ComponentInstanceId cinstId, Map<String, ?> properties) {
+            return routeAsync(instId, shard -> shard.addComponentProperties(instId, cid, cinstId, properties));
+        }
+
+        @Override
+        public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> dumpComponent(ApplicationInstanceId instId, ComponentId compId) {
+            return routeAsync(instId, shard -> shard.dumpComponent(instId, compId));
+        }
+
+        @Override
+        public CompletableFuture<ComponentDump> dumpComponentWithVersion(final ApplicationInstanceId instId, ComponentId compId) {
+            return routeAsync(instId, shard -> shard.dumpComponentWithVersion(instId, compId)).thenApply(dump -> tag(instId, dump));
+        }
+
+        @Override
+        public CompletableFuture<ComponentDelta> dumpComponentSince(final ApplicationInstanceId instId, ComponentId compId, final long sinceVersion) {
+            return routeAsync(instId, shard -> {
+                long version = untag(instId, sinceVersion);
+                if(version < 0) 
+                    return shard.dumpComponentWithVersion(instId, compId).thenApply(dump -> ComponentDelta.complete(sinceVersion, tag(instId, dump)));
+                return shard.dumpComponentSince(instId, compId, version).thenApply(delta -> tag(instId, sinceVersion, delta));
+            });
+        }
+
+        @Override
+        public CompletableFuture<ComponentSnapshot> snapshotComponent(final ApplicationInstanceId instId, ComponentId compId) {
+            return routeAsync(instId, shard -> shard.snapshotComponent(instId, compId)).thenApply(snapshot -> 
+                        snapshot.withVersion(tag(instId, snapshot.getVersion())));
+        }
+
+        @Override
+        public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponent(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query) {
+            return routeAsync(instId, shard -> shard.queryComponent(instId, compId, query));
+        }
+
+        @Override
+        public CompletableFuture<ComponentPage> queryComponentPage(ApplicationInstanceId instId, ComponentId compId, ComponentQuery query, String continuation, int pageSize) {
+            return routeAsync(instId, shard -> shard.queryComponentPage(instId, compId, query, continuation, pageSize));
+        }
+
+        @Override
+        public CompletableFuture<String> getComponentProperty(ApplicationInstanceId appInstId, ComponentId compId, ComponentInstanceId myId, String name) {
+            return routeAsync(appInstId, shard -> shard.getComponentProperty(appInstId, compId, myId, name));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.DeploymentContext;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * measures what a burst of deployments costs an agent. Every deployment 
+ * deserialises a DeploymentContext, as the agent does for deployComponent, 
+ * and registers one instance with a few properties through the registry 
+ * that came with it. With shared clients, all these registries use the 
+ * agent's one transport. For comparison, the old behaviour is emulated by 
+ * sending the same requests through a new etcd4j client per deployment 
+ * that is never closed, as EtcdRegistryImpl.readObject used to create one. 
+ * Reported are the threads and file descriptors (sockets, selectors) the 
+ * burst left behind, the most connections to etcd open at a time during the 
+ * burst, and the latency of the deployments. etcd4j opens a connection per 
+ * request, so that no connections remain afterwards in either case. File 
+ * descriptors and connections are read from /proc, i.e. on Linux only. 
+ * 
+ * Not a unit test; run it from the test classpath with 
+ * java de.uniulm.omi.cloudiator.lance.lca.registry.etcd.EtcdDeploymentBurstBenchmark [deployments] [parallel]
+ */
+public final class EtcdDeploymentBurstBenchmark {
+    
+    private static final int PROPERTIES = 5;
+    
+    private EtcdDeploymentBurstBenchmark() {
+        // 
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final int deployments = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int parallel = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        System.out.println(deployments + " deployments, " + parallel + " at a time");
+        System.out.println(String.format("%-18s %8s %6s %10s %10s %10s %10s", "clients", "+threads", "+fds", "peak conn", "total ms", "p50", "p95"));
+        try (LocalEtcd etcd = new LocalEtcd()) {
+            EtcdRegistryImpl owner = new EtcdRegistryImpl(new URI[] {etcd.uri()}, false);
+            ApplicationInstanceId instId = new ApplicationInstanceId();
+            ComponentId compId = new ComponentId();
+            owner.addApplicationInstance(instId, new ApplicationId(), "burst");
+            owner.addComponent(instId, compId, "component");
+            byte[] context = serialise(new DeploymentContext(new ApplicationId(), instId, owner));
+            // warm-up //
+            run(etcd, context, compId, 50, parallel, true);
+            System.out.println(run(etcd, context, compId, deployments, parallel, true));
+            System.out.println(run(etcd, context, compId, deployments, parallel, false));
+            owner.close();
+        }
+        System.exit(0);
+    }
+    
+    private static String run(final LocalEtcd etcd, final byte[] context, final ComponentId compId, int deployments, int parallel, 
+                final boolean shared) throws Exception {
+        final int threadsBefore = clientThreads();
+        final int fdsBefore = fileDescriptors();
+        final int port = etcd.uri().getPort();
+        final int[] peak = new int[1];
+        Thread sampler = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    while(! Thread.currentThread().isInterrupted()) {
+                        peak[0] = Math.max(peak[0], connections(port));
+                        Thread.sleep(5L);
+                    }
+                } catch(InterruptedException ie) {
+                    // done //
+                } catch(IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        }, "pool-sampler");
+        sampler.start();
+        final List<EtcdClient> clients = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallel);
+        List<Future<Long>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int i = 0; i < deployments; i++) {
+            results.add(pool.submit(new Callable<Long>() {
+                @Override public Long call() throws Exception {
+                    long begin = System.nanoTime();
+                    DeploymentContext ctx = deserialise(context);
+                    if(shared) {
+                        deploy(ctx.getRegistry(), ctx.getApplicationInstanceId(), compId);
+                    } else {
+                        EtcdClient client = new EtcdClient(etcd.uri());
+                        synchronized(clients) {
+                            clients.add(client);
+                        }
+                        deploy(client, ctx.getApplicationInstanceId(), compId);
+                    }
+                    return Long.valueOf(System.nanoTime() - begin);
+                }
+            }));
+        }
+        long[] micros = new long[deployments];
+        for(int i = 0; i < deployments; i++) {
+            micros[i] = results.get(i).get().longValue() / 1000L;
+        }
+        long totalMillis = (System.nanoTime() - start) / 1000000L;
+        sampler.interrupt();
+        sampler.join();
+        pool.shutdown();
+        pool.awaitTermination(1L, TimeUnit.MINUTES);
+        String line = String.format("%-18s %8d %6d %10d %10d %10s %10s", shared ? "shared" : "one per context", 
+                    Integer.valueOf(clientThreads() - threadsBefore), Integer.valueOf(fileDescriptors() - fdsBefore), Integer.valueOf(peak[0]), 
+                    Long.valueOf(totalMillis), millis(percentile(micros, 0.5)), millis(percentile(micros, 0.95)));
+        for(EtcdClient client : clients) {
+            client.close();
+        }
+        return line;
+    }
+    
+    /** what the agent does with the registry of a new deployment */
+    private static void deploy(LcaRegistry registry, ApplicationInstanceId instId, ComponentId compId) throws Exception {
+        ComponentInstanceId cinstId = new ComponentInstanceId();
+        registry.addComponentInstance(instId, compId, cinstId);
+        registry.addComponentProperties(instId, compId, cinstId, properties());
+    }
+    
+    /** the same requests as above, sent through a client of its own */
+    private static void deploy(EtcdClient client, ApplicationInstanceId instId, ComponentId compId) throws Exception {
+        String dirName = "/lca/" + instId + "/" + compId + "/" + new ComponentInstanceId();
+        client.putDir(dirName).prevExist(Boolean.FALSE).send().get();
+        client.put(dirName + "/Description", "Component Instance Directory with all properties of this component instances").send().get();
+        List<EtcdResponsePromise<EtcdKeysResponse>> promises = new ArrayList<>();
+        for(Map.Entry<String, Object> property : properties().entrySet()) {
+            promises.add(client.put(dirName + "/" + property.getKey(), property.getValue().toString()).send());
+        }
+        for(EtcdResponsePromise<EtcdKeysResponse> promise : promises) {
+            promise.get();
+        }
+    }
+    
+    private static Map<String, Object> properties() {
+        Map<String, Object> properties = new HashMap<>();
+        for(int i = 0; i < PROPERTIES; i++) {
+            properties.put("ACCESS_PUBLIC_PORT" + i, Integer.valueOf(30000 + i));
+        }
+        return properties;
+    }
+    
+    private static byte[] serialise(DeploymentContext ctx) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(ctx);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static DeploymentContext deserialise(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (DeploymentContext) in.readObject();
+        }
+    }
+    
+    /** @return the live threads, without those of LocalEtcd and of the burst itself */
+    private static int clientThreads() {
+        int n = 0;
+        for(Thread t : Thread.getAllStackTraces().keySet()) {
+            String name = t.getName();
+            if(! name.startsWith("local-etcd") && ! name.startsWith("HTTP-Dispatcher") && ! name.startsWith("pool-")) 
+                n++;
+        }
+        return n;
+    }
+    
+    private static int fileDescriptors() throws IOException {
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+            int n = 0;
+            for(Iterator<Path> it = fds.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+            return n;
+        }
+    }
+    
+    /** @return the established connections of this process to the given port */
+    private static int connections(int port) throws IOException {
+        String remote = String.format(":%04X ", Integer.valueOf(port));
+        int n = 0;
+        for(String table : new String[] {"/proc/net/tcp", "/proc/net/tcp6"}) {
+            for(String line : Files.readAllLines(Paths.get(table))) {
+                String[] fields = line.trim().split("\\s+");
+                // fields: sl local_address rem_address st ... //
+                if(fields.length > 3 && (fields[2] + " ").endsWith(remote) && "01".equals(fields[3])) 
+                    n++;
+            }
+        }
+        return n;
+    }
+    
+    private static long percentile(long[] values, double p) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+    
+    private static String millis(long micros) {
+        return String.format("%.1f ms", Double.valueOf(micros / 1000.0));
+    }
+}
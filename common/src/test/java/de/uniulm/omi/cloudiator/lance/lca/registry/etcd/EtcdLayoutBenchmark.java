@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * compares the one-key-per-property layout with the one-value-per-instance 
+ * layout (blob) for a component of 1,000 instances. Every instance carries 
+ * the properties of an instance with 5 ports on 3 hierarchy levels. Reported 
+ * are the keys and bytes in etcd, the changes a watch sees while the instances 
+ * are registered, and the latency of dumping the component. etcd is the 
+ * in-memory LocalEtcd, so the latencies include a local HTTP round trip and 
+ * JSON parsing, but no disk or network. 
+ * 
+ * Not a unit test; run it from the test classpath with 
+ * java de.uniulm.omi.cloudiator.lance.lca.registry.etcd.EtcdLayoutBenchmark [instances] [dumps]
+ */
+public final class EtcdLayoutBenchmark {
+    
+    private static final String[] PORTS = {"HTTP", "HTTPS", "ADMIN", "METRICS", "DB"};
+    private static final String[] LEVELS = {"PUBLIC", "CLOUD", "CONTAINER"};
+    
+    private EtcdLayoutBenchmark() {
+        // 
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final int instances = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int dumps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        System.out.println(instances + " instances, " + properties(0).size() + " properties each, " + dumps + " dumps");
+        System.out.println(String.format("%6s %8s %10s %9s %10s %10s %10s %10s", "layout", "keys", "bytes", "changes", "fill ms", "dump p50", "dump p95", "snap p50"));
+        // warm-up //
+        run(false, 100, 20);
+        run(true, 100, 20);
+        System.out.println(run(false, instances, dumps));
+        System.out.println(run(true, instances, dumps));
+        EtcdTransport.closeUnowned();
+        System.exit(0);
+    }
+    
+    private static String run(boolean blobLayout, int instances, int dumps) throws Exception {
+        try (LocalEtcd etcd = new LocalEtcd()) {
+            EtcdRegistryImpl registry = new EtcdRegistryImpl(new URI[] {etcd.uri()}, blobLayout);
+            try {
+                ApplicationInstanceId instId = new ApplicationInstanceId();
+                ComponentId compId = new ComponentId();
+                registry.addApplicationInstance(instId, new ApplicationId(), "benchmark");
+                registry.addComponent(instId, compId, "component");
+                long changesBefore = etcd.changeCount();
+                long start = System.nanoTime();
+                for(int i = 0; i < instances; i++) {
+                    ComponentInstanceId cinstId = new ComponentInstanceId();
+                    registry.addComponentInstance(instId, compId, cinstId);
+                    registry.addComponentProperties(instId, compId, cinstId, properties(i));
+                }
+                long fillMillis = (System.nanoTime() - start) / 1000000L;
+                long changes = etcd.changeCount() - changesBefore;
+                
+                long[] dumpMicros = new long[dumps];
+                long[] snapshotMicros = new long[dumps];
+                for(int i = 0; i < dumps; i++) {
+                    start = System.nanoTime();
+                    int size = registry.dumpComponent(instId, compId).size();
+                    dumpMicros[i] = (System.nanoTime() - start) / 1000L;
+                    start = System.nanoTime();
+                    registry.snapshotComponent(instId, compId);
+                    snapshotMicros[i] = (System.nanoTime() - start) / 1000L;
+                    if(size != instances) 
+                        throw new IllegalStateException("dump has " + size + " instances instead of " + instances);
+                }
+                return String.format("%6s %8d %10d %9d %10d %10s %10s %10s", blobLayout ? "blob" : "keys", 
+                            Integer.valueOf(etcd.nodeCount()), Long.valueOf(etcd.storeBytes()), Long.valueOf(changes), Long.valueOf(fillMillis), 
+                            millis(percentile(dumpMicros, 0.5)), millis(percentile(dumpMicros, 0.95)), millis(percentile(snapshotMicros, 0.5)));
+            } finally {
+                registry.close();
+            }
+        }
+    }
+    
+    /** the properties an instance with 5 ports on 3 hierarchy levels registers */
+    private static Map<String, Object> properties(int instance) {
+        Map<String, Object> properties = new HashMap<>();
+        for(String level : LEVELS) {
+            properties.put("HOST_" + level + "_IP", "10." + (instance >> 8 & 255) + "." + (instance & 255) + "." + level.length());
+            for(int p = 0; p < PORTS.length; p++) {
+                properties.put("ACCESS_" + level + "_" + PORTS[p], Integer.valueOf(30000 + p));
+            }
+        }
+        properties.put(LcaRegistryConstants.CONTAINER_STATUS, "READY");
+        properties.put(LcaRegistryConstants.COMPONENT_INSTANCE_STATUS, "STARTED");
+        properties.put(LcaRegistryConstants.INSTANCE_NR, Integer.valueOf(instance));
+        properties.put(LcaRegistryConstants.HOST_PUBLIC_IP, "134.60.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.HOST_INTERNAL_IP, "10.0.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.LOCAL_IP, "172.17.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.CLOUD_PROVIDER_ID, "openstack");
+        return properties;
+    }
+    
+    private static long percentile(long[] values, double p) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+    
+    private static String millis(long micros) {
+        return String.format("%.1f ms", Double.valueOf(micros / 1000.0));
+    }
+}
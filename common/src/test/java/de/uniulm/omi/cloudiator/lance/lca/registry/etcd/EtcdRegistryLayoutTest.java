@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
+
+public class EtcdRegistryLayoutTest {
+    
+    private final ApplicationInstanceId instId = new ApplicationInstanceId();
+    private final ComponentId compId = new ComponentId();
+    private final ComponentInstanceId keysInstance = new ComponentInstanceId();
+    private final ComponentInstanceId blobInstance = new ComponentInstanceId();
+    private LocalEtcd etcd;
+    private EtcdRegistryImpl keys;
+    private EtcdRegistryImpl blob;
+    
+    @Before
+    public void startEtcd() throws Exception {
+        etcd = new LocalEtcd();
+        keys = new EtcdRegistryImpl(new URI[] {etcd.uri()}, false);
+        blob = new EtcdRegistryImpl(new URI[] {etcd.uri()}, true);
+        keys.addApplicationInstance(instId, new ApplicationId(), "app");
+        keys.addComponent(instId, compId, "component");
+        keys.addComponentInstance(instId, compId, keysInstance);
+        keys.addComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP", Integer.valueOf(80));
+        blob.addComponentInstance(instId, compId, blobInstance);
+        blob.addComponentProperty(instId, compId, blobInstance, "ACCESS_PUBLIC_HTTP", Integer.valueOf(8080));
+    }
+    
+    @After
+    public void stopEtcd() {
+        keys.close();
+        blob.close();
+        etcd.close();
+    }
+    
+    @Test
+    public void bothLayoutsReadBothLayouts() throws Exception {
+        Map<ComponentInstanceId, Map<String, String>> expected = new HashMap<>();
+        expected.put(keysInstance, singleProperty("80"));
+        expected.put(blobInstance, singleProperty("8080"));
+        assertEquals(expected, keys.dumpComponent(instId, compId));
+        assertEquals(expected, blob.dumpComponent(instId, compId));
+        assertEquals("8080", keys.getComponentProperty(instId, compId, blobInstance, "ACCESS_PUBLIC_HTTP"));
+        assertEquals("80", blob.getComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP"));
+    }
+    
+    @Test
+    public void oldInstancesKeepTheirLayoutWhenUpdated() throws Exception {
+        blob.addComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP", Integer.valueOf(81));
+        assertEquals(singleProperty("81"), keys.dumpComponent(instId, compId).get(keysInstance));
+        assertEquals("81", keys.getComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP"));
+    }
+    
+    @Test
+    public void renewalRejectsDirectoryCreatedAgainByAWrite() throws Exception {
+        keys.renewComponentInstance(instId, compId, keysInstance, 1000L);
+        Thread.sleep(2100L);
+        // a status write that arrives after the lease has expired //
+        keys.addComponentProperty(instId, compId, keysInstance, "Instance_Status", "START");
+        try {
+            keys.renewComponentInstance(instId, compId, keysInstance, 1000L);
+            fail("renewed an instance that has lost its properties");
+        } catch(RegistrationException expected) {
+            assertTrue(RegistryFutures.isNotKnown(expected));
+        }
+        keys.addComponentInstance(instId, compId, keysInstance);
+        keys.renewComponentInstance(instId, compId, keysInstance, 10000L);
+        keys.addComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP", Integer.valueOf(80));
+        assertEquals("80", keys.getComponentProperty(instId, compId, keysInstance, "ACCESS_PUBLIC_HTTP"));
+    }
+    
+    private static Map<String, String> singleProperty(String port) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ACCESS_PUBLIC_HTTP", port);
+        return properties;
+    }
+}
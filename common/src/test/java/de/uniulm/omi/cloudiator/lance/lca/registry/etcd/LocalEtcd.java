@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * a single etcd member in memory that speaks as much of the v2 keys API as the 
+ * registry uses: get (recursive, sorted, wait and waitIndex), put (value, dir, 
+ * ttl, prevExist and prevIndex) and delete (recursive). Keys with a ttl expire 
+ * lazily, i.e. on the next request after their time is up. Only meant for tests 
+ * and benchmarks; watches see the last 1000 changes, like etcd's. 
+ */
+public final class LocalEtcd implements Closeable {
+    
+    private static final String PREFIX = "/v2/keys";
+    private static final int HISTORY = 1000;
+    
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Node root = new Node("/", null, true, 0L);
+    /** expiries of nodes with a ttl, the earliest first; may refer to nodes that have been removed or refreshed since */
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(11, (a, b) -> Long.compare(a.at, b.at));
+    private final Deque<Event> history = new ArrayDeque<>();
+    // guarded by this //
+    private long index = 0L;
+    private boolean closed = false;
+    private long requests = 0L;
+    
+    public LocalEtcd() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "local-etcd");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(PREFIX, new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                LocalEtcd.this.handle(exchange);
+            }
+        });
+        server.start();
+    }
+    
+    /** @return the host:port of this member, as expected by EtcdRegistryContainer.createForHosts */
+    public String hostAndPort() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+    
+    public URI uri() {
+        return URI.create("http://" + hostAndPort());
+    }
+    
+    /** @return the number of keys and directories, without the root */
+    public synchronized int nodeCount() {
+        expire(System.currentTimeMillis());
+        return root.count() - 1;
+    }
+    
+    /** @return the bytes of all keys and values, a rough measure of the size of the store */
+    public synchronized long storeBytes() {
+        expire(System.currentTimeMillis());
+        return root.bytes();
+    }
+    
+    public synchronized long requestCount() {
+        return requests;
+    }
+    
+    /** @return the number of changes so far, i.e. the events a recursive watch on the root would have seen */
+    public synchronized long changeCount() {
+        return index;
+    }
+    
+    @Override
+    public void close() {
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String key = normalise(URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(PREFIX.length()), "UTF-8"));
+            Map<String, String> params = parse(exchange.getRequestURI().getRawQuery());
+            if("PUT".equals(exchange.getRequestMethod()) || "POST".equals(exchange.getRequestMethod())) {
+                params.putAll(parse(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8)));
+            }
+            Answer answer;
+            switch(exchange.getRequestMethod()) {
+                case "GET": 
+                    answer = "true".equals(params.get("wait")) ? await(key, params) : get(key, params);
+                    break;
+                case "PUT": 
+                    answer = put(key, params);
+                    break;
+                case "DELETE": 
+                    answer = delete(key, params);
+                    break;
+                default: 
+                    answer = null;
+            }
+            if(answer == null) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = answer.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("X-Etcd-Index", Long.toString(answer.index));
+            exchange.sendResponseHeaders(answer.status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private synchronized Answer get(String key, Map<String, String> params) {
+        requests++;
+        expire(System.currentTimeMillis());
+        Node node = find(key);
+        if(node == null) 
+            return notFound(key);
+        boolean recursive = "true".equals(params.get("recursive"));
+        return answer(200, "{\"action\":\"get\",\"node\":" + node.toJson(recursive ? Integer.MAX_VALUE : 1) + "}");
+    }
+    
+    private synchronized Answer await(String key, Map<String, String> params) throws InterruptedException {
+        requests++;
+        boolean recursive = "true".equals(params.get("recursive"));
+        String waitIndex = params.get("waitIndex");
+        long from = waitIndex == null ? index + 1 : Long.parseLong(waitIndex);
+        while(true) {
+            expire(System.currentTimeMillis());
+            if(! history.isEmpty() && from < history.peekFirst().index) 
+                return error(401, "The event in requested index is outdated and cleared", key);
+            for(Event e : history) {
+                if(e.index >= from && e.matches(key, recursive)) 
+                    return answer(200, e.json);
+            }
+            if(closed) 
+                return error(300, "Raft Internal Error", key);
+            from = Math.max(from, index + 1);
+            // wake up for the next expiry, if any //
+            Expiry next = expiries.peek();
+            long wait = next == null ? 0L : Math.max(1L, next.at - System.currentTimeMillis());
+            wait(wait);
+        }
+    }
+    
+    private synchronized Answer put(String key, Map<String, String> params) {
+        requests++;
+        long now = System.currentTimeMillis();
+        expire(now);
+        if("/".equals(key)) 
+            return error(107, "Root is read only", key);
+        boolean dir = "true".equals(params.get("dir"));
+        String prevExist = params.get("prevExist");
+        String prevIndex = params.get("prevIndex");
+        Node previous = find(key);
+        if(previous == null && ("true".equals(prevExist) || prevIndex != null)) 
+            return notFound(key);
+        if(previous != null && "false".equals(prevExist)) 
+            return error(105, "Key already exists", key);
+        if(previous != null && prevIndex != null && previous.modified != Long.parseLong(prevIndex)) 
+            return error(101, "Compare failed", "[" + prevIndex + " != " + previous.modified + "]");
+        if(previous != null && previous.dir && ! (dir && "true".equals(prevExist))) 
+            return error(102, "Not a file", key);
+        if(previous != null && ! previous.dir && dir) 
+            return error(104, "Not a directory", key);
+        
+        Node parent = root;
+        String[] parts = key.substring(1).split("/");
+        StringBuilder path = new StringBuilder();
+        for(int i = 0; i < parts.length - 1; i++) {
+            path.append('/').append(parts[i]);
+            Node child = parent.children.get(path.toString());
+            if(child == null) {
+                child = new Node(path.toString(), null, true, ++index);
+                parent.add(child);
+            } else if(! child.dir) {
+                return error(104, "Not a directory", child.key);
+            }
+            parent = child;
+        }
+        
+        long modified = ++index;
+        String previousJson = previous == null ? null : previous.toJson(0);
+        Node node;
+        if(previous != null && previous.dir) {
+            node = previous;
+            node.modified = modified;
+        } else {
+            node = new Node(key, dir ? null : nullToEmpty(params.get("value")), dir, previous == null ? modified : previous.created);
+            node.modified = modified;
+            if(previous != null) 
+                parent.children.remove(key);
+            parent.add(node);
+        }
+        String ttl = params.get("ttl");
+        if(ttl == null || ttl.isEmpty()) {
+            node.ttl = 0L;
+            node.expiresAt = 0L;
+        } else {
+            node.ttl = Long.parseLong(ttl);
+            node.expiresAt = now + TimeUnit.SECONDS.toMillis(node.ttl);
+            expiries.add(new Expiry(node, node.expiresAt));
+        }
+        String action = prevIndex != null ? "compareAndSwap" : "false".equals(prevExist) ? "create" : "true".equals(prevExist) ? "update" : "set";
+        String json = "{\"action\":\"" + action + "\",\"node\":" + node.toJson(0) + (previousJson == null ? "" : ",\"prevNode\":" + previousJson) + "}";
+        record(modified, key, json);
+        return answer(previous == null ? 201 : 200, json);
+    }
+    
+    private synchronized Answer delete(String key, Map<String, String> params) {
+        requests++;
+        expire(System.currentTimeMillis());
+        if("/".equals(key)) 
+            return error(107, "Root is read only", key);
+        Node node = find(key);
+        if(node == null) 
+            return notFound(key);
+        if(node.dir && ! "true".equals(params.get("recursive"))) {
+            if(! "true".equals(params.get("dir"))) 
+                return error(102, "Not a file", key);
+            if(! node.children.isEmpty()) 
+                return error(108, "Directory not empty", key);
+        }
+        String json = remove(node, "delete");
+        return answer(200, json);
+    }
+    
+    /** removes a node with all its children and records the change */
+    private String remove(Node node, String action) {
+        find(parentOf(node.key)).children.remove(node.key);
+        long modified = ++index;
+        String json = "{\"action\":\"" + action + "\",\"node\":{\"key\":\"" + escape(node.key) + "\"" + (node.dir ? ",\"dir\":true" : "") 
+                    + ",\"modifiedIndex\":" + modified + ",\"createdIndex\":" + node.created + "},\"prevNode\":" + node.toJson(0) + "}";
+        record(modified, node.key, json);
+        return json;
+    }
+    
+    private void expire(long now) {
+        while(! expiries.isEmpty() && expiries.peek().at <= now) {
+            Expiry expiry = expiries.poll();
+            // skip nodes that have been removed or refreshed since //
+            if(expiry.node.expiresAt == expiry.at && find(expiry.node.key) == expiry.node) 
+                remove(expiry.node, "expire");
+        }
+    }
+    
+    private void record(long eventIndex, String key, String json) {
+        history.addLast(new Event(eventIndex, key, json));
+        while(history.size() > HISTORY) {
+            history.removeFirst();
+        }
+        notifyAll();
+    }
+    
+    /** like etcd, reports a path that runs through a value as 'not a directory' */
+    private Answer notFound(String key) {
+        for(String k = parentOf(key); ! "/".equals(k); k = parentOf(k)) {
+            Node node = find(k);
+            if(node != null) 
+                return node.dir ? error(100, "Key not found", key) : error(104, "Not a directory", k);
+        }
+        return error(100, "Key not found", key);
+    }
+    
+    private Node find(String key) {
+        if("/".equals(key)) 
+            return root;
+        Node parent = find(parentOf(key));
+        if(parent == null || ! parent.dir) 
+            return null;
+        return parent.children.get(key);
+    }
+    
+    private static String parentOf(String key) {
+        int i = key.lastIndexOf('/');
+        return i == 0 ? "/" : key.substring(0, i);
+    }
+    
+    private static String normalise(String key) {
+        String k = key.replaceAll("/+", "/");
+        if(k.isEmpty()) 
+            return "/";
+        if(k.charAt(0) != '/') 
+            k = "/" + k;
+        if(k.length() > 1 && k.endsWith("/")) 
+            k = k.substring(0, k.length() - 1);
+        return k;
+    }
+    
+    private Answer answer(int status, String json) {
+        return new Answer(status, index, json);
+    }
+    
+    private Answer error(int code, String message, String cause) {
+        int status = code == 100 ? 404 : code == 101 || code == 105 ? 412 : code == 401 ? 400 : code == 300 ? 500 : 403;
+        return new Answer(status, index, "{\"errorCode\":" + code + ",\"message\":\"" + escape(message) 
+                    + "\",\"cause\":\"" + escape(cause) + "\",\"index\":" + index + "}");
+    }
+    
+    private static Map<String, String> parse(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if(query == null || query.isEmpty()) 
+            return params;
+        for(String pair : query.split("&")) {
+            int i = pair.indexOf('=');
+            if(i < 0) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+    
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+    
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 8);
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if(c < 0x20) {
+                b.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+    
+    private static final class Answer {
+        final int status;
+        final long index;
+        final String body;
+        
+        Answer(int statusParam, long indexParam, String bodyParam) {
+            status = statusParam;
+            index = indexParam;
+            body = bodyParam;
+        }
+    }
+    
+    private static final class Event {
+        final long index;
+        final String key;
+        final String json;
+        
+        Event(long indexParam, String keyParam, String jsonParam) {
+            index = indexParam;
+            key = keyParam;
+            json = jsonParam;
+        }
+        
+        boolean matches(String watched, boolean recursive) {
+            if(key.equals(watched)) 
+                return true;
+            return recursive && ("/".equals(watched) || key.startsWith(watched + "/"));
+        }
+    }
+    
+    private static final class Expiry {
+        final Node node;
+        final long at;
+        
+        Expiry(Node nodeParam, long atParam) {
+            node = nodeParam;
+            at = atParam;
+        }
+    }
+    
+    private static final class Node {
+        final String key;
+        final String value;
+        final boolean dir;
+        final long created;
+        long modified;
+        long ttl = 0L;
+        long expiresAt = 0L;
+        /** ordered by key, which gives etcd's sorted listings */
+        final TreeMap<String, Node> children = new TreeMap<>();
+        
+        Node(String keyParam, String valueParam, boolean dirParam, long createdParam) {
+            key = keyParam;
+            value = valueParam;
+            dir = dirParam;
+            created = createdParam;
+            modified = createdParam;
+        }
+        
+        void add(Node child) {
+            children.put(child.key, child);
+        }
+        
+        int count() {
+            int n = 1;
+            for(Node child : children.values()) {
+                n += child.count();
+            }
+            return n;
+        }
+        
+        long bytes() {
+            long n = key.length() + (value == null ? 0 : value.length());
+            for(Node child : children.values()) {
+                n += child.bytes();
+            }
+            return n;
+        }
+        
+        /** @param depth levels of children to include; 0 for none */
+        String toJson(int depth) {
+            StringBuilder b = new StringBuilder();
+            appendJson(b, depth);
+            return b.toString();
+        }
+        
+        private void appendJson(StringBuilder b, int depth) {
+            b.append('{');
+            if(! "/".equals(key)) {
+                b.append("\"key\":\"").append(escape(key)).append("\",");
+            }
+            if(dir) {
+                b.append("\"dir\":true");
+            } else {
+                b.append("\"value\":\"").append(escape(value)).append('"');
+            }
+            if(ttl > 0L) {
+                b.append(",\"ttl\":").append(Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(expiresAt - System.currentTimeMillis() + 999L)));
+            }
+            if(dir && depth > 0 && ! children.isEmpty()) {
+                b.append(",\"nodes\":[");
+                Iterator<Node> it = children.values().iterator();
+                while(it.hasNext()) {
+                    it.next().appendJson(b, depth - 1);
+                    if(it.hasNext()) 
+                        b.append(',');
+                }
+                b.append(']');
+            }
+            if(! "/".equals(key)) {
+                b.append(",\"modifiedIndex\":").append(modified).append(",\"createdIndex\":").append(created);
+            }
+            b.append('}');
+        }
+    }
+}
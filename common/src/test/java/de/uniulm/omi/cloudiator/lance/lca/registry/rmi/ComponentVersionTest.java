@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDelta;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentDump;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+
+public class ComponentVersionTest {
+    
+    private final ApplicationInstanceId instId = new ApplicationInstanceId();
+    private final ComponentId compId = new ComponentId();
+    
+    private RemoteRegistryImpl createRegistry() throws Exception {
+        RemoteRegistryImpl registry = new RemoteRegistryImpl();
+        registry.addApplicationInstance(instId, new ApplicationId(), "app");
+        registry.addComponent(instId, compId, "comp");
+        return registry;
+    }
+    
+    @Test
+    public void deltaContainsOnlyChangedInstances() throws Exception {
+        RemoteRegistryImpl registry = createRegistry();
+        ComponentInstanceId first = new ComponentInstanceId();
+        ComponentInstanceId second = new ComponentInstanceId();
+        registry.addComponentInstance(instId, compId, first);
+        registry.addComponentInstance(instId, compId, second);
+        long version = registry.dumpComponentWithVersion(instId, compId).getVersion();
+        
+        registry.addComponentProperty(instId, compId, second, "key", "value");
+        ComponentDelta delta = registry.dumpComponentSince(instId, compId, version);
+        assertFalse(delta.isComplete());
+        assertEquals(1, delta.getUpdated().size());
+        assertEquals("value", delta.getUpdated().get(second).get("key"));
+        
+        assertTrue(registry.dumpComponentSince(instId, compId, delta.getVersion()).isEmpty());
+    }
+    
+    @Test
+    public void snapshotsDerivedFromEarlierOnesMatchTheComponent() throws Exception {
+        RemoteRegistryImpl registry = createRegistry();
+        ComponentInstanceId first = new ComponentInstanceId();
+        ComponentInstanceId second = new ComponentInstanceId();
+        registry.addComponentInstance(instId, compId, first);
+        registry.addComponentInstance(instId, compId, second);
+        assertSnapshotMatches(registry);
+        registry.addComponentProperty(instId, compId, first, "port", "80");
+        assertSnapshotMatches(registry);
+        registry.addComponentProperty(instId, compId, second, "port", "8080");
+        ComponentSnapshot snapshot = assertSnapshotMatches(registry);
+        assertEquals(8080, snapshot.getNumber(snapshot.indexOf(second), snapshot.indexOfKey("port")));
+        registry.addComponentProperty(instId, compId, first, "port", "81");
+        snapshot = assertSnapshotMatches(registry);
+        assertEquals(81, snapshot.getNumber(snapshot.indexOf(first), snapshot.indexOfKey("port")));
+        registry.addComponentInstance(instId, compId, new ComponentInstanceId());
+        assertSnapshotMatches(registry);
+        registry.removeComponentInstance(instId, compId, second);
+        assertSnapshotMatches(registry);
+    }
+    
+    private ComponentSnapshot assertSnapshotMatches(RemoteRegistryImpl registry) throws Exception {
+        ComponentDump dump = registry.dumpComponentWithVersion(instId, compId);
+        ComponentSnapshot snapshot = registry.snapshotComponent(instId, compId);
+        assertEquals(dump.getVersion(), snapshot.getVersion());
+        assertEquals(dump.getInstances(), snapshot.toMap());
+        return snapshot;
+    }
+    
+    @Test
+    public void versionOfAnotherIncarnationGetsCompleteDelta() throws Exception {
+        RemoteRegistryImpl before = createRegistry();
+        for(int i = 0; i < 3; i++) {
+            before.addComponentInstance(instId, compId, new ComponentInstanceId());
+        }
+        long oldVersion = before.dumpComponentWithVersion(instId, compId).getVersion();
+        
+        // a restart without journal starts counting changes from scratch //
+        RemoteRegistryImpl after = createRegistry();
+        ComponentInstanceId survivor = new ComponentInstanceId();
+        for(int i = 0; i < 5; i++) {
+            after.addComponentInstance(instId, compId, i == 0 ? survivor : new ComponentInstanceId());
+        }
+        ComponentDelta delta = after.dumpComponentSince(instId, compId, oldVersion);
+        assertTrue(delta.isComplete());
+        assertEquals(5, delta.getUpdated().size());
+        assertTrue(delta.getUpdated().containsKey(survivor));
+    }
+    
+    @Test
+    public void recreatedComponentGetsAnotherIncarnation() throws Exception {
+        RemoteRegistryImpl registry = createRegistry();
+        registry.addComponentInstance(instId, compId, new ComponentInstanceId());
+        long oldVersion = registry.dumpComponentWithVersion(instId, compId).getVersion();
+        
+        registry.removeApplicationInstance(instId);
+        registry.addApplicationInstance(instId, new ApplicationId(), "app");
+        registry.addComponent(instId, compId, "comp");
+        registry.addComponentInstance(instId, compId, new ComponentInstanceId());
+        registry.addComponentInstance(instId, compId, new ComponentInstanceId());
+        
+        ComponentDelta delta = registry.dumpComponentSince(instId, compId, oldVersion);
+        assertTrue(delta.isComplete());
+        assertEquals(2, delta.getUpdated().size());
+    }
+}
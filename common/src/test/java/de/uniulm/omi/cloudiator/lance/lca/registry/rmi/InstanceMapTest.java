@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+public class InstanceMapTest {
+    
+    /** @return ids of which every third has the same hash code as the one before */
+    private static List<ComponentInstanceId> createIds(int count, Random random) {
+        List<ComponentInstanceId> ids = new ArrayList<>();
+        long msb = 0L;
+        long lsb = 0L;
+        for(int i = 0; i < count; i++) {
+            if(i % 3 == 2) { // UUID.hashCode only depends on msb ^ lsb //
+                long flip = random.nextLong();
+                msb ^= flip;
+                lsb ^= flip;
+            } else {
+                msb = random.nextLong();
+                lsb = random.nextLong();
+            }
+            ids.add(ComponentInstanceId.fromString(new UUID(msb, lsb).toString()));
+        }
+        return ids;
+    }
+    
+    private static Map<String, String> properties(int i) {
+        return Collections.singletonMap("nr", Integer.toString(i));
+    }
+    
+    private static void assertSameContent(Map<ComponentInstanceId, Map<String, String>> expected, InstanceMap actual, 
+                List<ComponentInstanceId> ids) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        for(ComponentInstanceId id : ids) {
+            assertEquals(expected.get(id), actual.get(id));
+            assertEquals(Boolean.valueOf(expected.containsKey(id)), Boolean.valueOf(actual.containsKey(id)));
+        }
+    }
+    
+    @Test
+    public void behavesLikeHashMap() {
+        Random random = new Random(42L);
+        List<ComponentInstanceId> ids = createIds(2000, random);
+        Map<ComponentInstanceId, Map<String, String>> expected = new HashMap<>();
+        InstanceMap actual = InstanceMap.EMPTY;
+        for(int i = 0; i < 50000; i++) {
+            ComponentInstanceId id = ids.get(random.nextInt(ids.size()));
+            if(random.nextInt(3) == 0) {
+                expected.remove(id);
+                actual = actual.without(id);
+            } else {
+                expected.put(id, properties(i));
+                actual = actual.with(id, properties(i));
+            }
+            if(i % 5000 == 0) {
+                assertSameContent(expected, actual, ids);
+            }
+        }
+        assertSameContent(expected, actual, ids);
+        for(ComponentInstanceId id : ids) {
+            actual = actual.without(id);
+        }
+        assertEquals(0, actual.size());
+        assertFalse(actual.entrySet().iterator().hasNext());
+    }
+    
+    @Test
+    public void changesLeaveOlderMapsUntouched() {
+        List<ComponentInstanceId> ids = createIds(500, new Random(7L));
+        List<InstanceMap> versions = new ArrayList<>();
+        List<Map<ComponentInstanceId, Map<String, String>>> expected = new ArrayList<>();
+        Map<ComponentInstanceId, Map<String, String>> current = new HashMap<>();
+        InstanceMap map = InstanceMap.EMPTY;
+        for(int i = 0; i < ids.size(); i++) {
+            map = map.with(ids.get(i), properties(i));
+            current.put(ids.get(i), properties(i));
+            if(i % 50 == 0) {
+                map = map.without(ids.get(i / 2));
+                current.remove(ids.get(i / 2));
+                versions.add(map);
+                expected.add(new HashMap<>(current));
+            }
+        }
+        for(int i = 0; i < versions.size(); i++) {
+            assertSameContent(expected.get(i), versions.get(i), ids);
+        }
+    }
+    
+    @Test
+    public void removingAnUnknownIdReturnsTheSameMap() {
+        List<ComponentInstanceId> ids = createIds(3, new Random(3L));
+        InstanceMap map = InstanceMap.EMPTY.with(ids.get(0), properties(0));
+        assertTrue(map == map.without(ids.get(1)));
+        assertNull(map.get(ids.get(2)));
+    }
+    
+    @Test
+    public void isSerialisedAsMutableCopy() throws Exception {
+        List<ComponentInstanceId> ids = createIds(20, new Random(5L));
+        InstanceMap map = InstanceMap.EMPTY;
+        for(int i = 0; i < ids.size(); i++) {
+            map = map.with(ids.get(i), Collections.unmodifiableMap(new HashMap<>(properties(i))));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(map);
+        }
+        Object read;
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = in.readObject();
+        }
+        assertEquals(HashMap.class, read.getClass());
+        assertEquals(map, read);
+        @SuppressWarnings("unchecked")
+        Map<ComponentInstanceId, Map<String, String>> copy = (Map<ComponentInstanceId, Map<String, String>>) read;
+        copy.get(ids.get(0)).put("other", "value");
+        assertEquals(HashMap.class, copy.get(ids.get(0)).getClass());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+
+public class ListenerQueueTest {
+    
+    /** fails the first calls with the given exceptions and records the components of all later ones */
+    private static final class FailingListener implements RmiComponentListener {
+        final BlockingQueue<ComponentId> received = new LinkedBlockingQueue<>();
+        final AtomicInteger calls = new AtomicInteger();
+        private final Exception[] failures;
+        
+        FailingListener(Exception... failuresParam) {
+            failures = failuresParam;
+        }
+        
+        @Override
+        public void componentChanged(ApplicationInstanceId instId, ComponentId compId) throws RemoteException {
+            int call = calls.getAndIncrement();
+            if(call < failures.length) {
+                if(failures[call] instanceof RemoteException) 
+                    throw (RemoteException) failures[call];
+                throw (RuntimeException) failures[call];
+            }
+            received.add(compId);
+        }
+    }
+    
+    @Test
+    public void failingListenerKeepsGettingEvents() throws Exception {
+        FailingListener listener = new FailingListener(new IllegalStateException("listener bug"));
+        ListenerQueue q = ListenerQueue.acquire(listener);
+        try {
+            ApplicationInstanceId instId = new ApplicationInstanceId();
+            ComponentId first = new ComponentId();
+            ComponentId second = new ComponentId();
+            assertTrue(q.offer(instId, first));
+            // the first event is lost with the failure; the delivery goes on //
+            assertTrue(q.offer(instId, second));
+            assertEquals(second, listener.received.poll(5, TimeUnit.SECONDS));
+        } finally {
+            q.release();
+        }
+    }
+    
+    @Test
+    public void unreachableListenerIsRetried() throws Exception {
+        FailingListener listener = new FailingListener(new RemoteException("down"), new RemoteException("still down"));
+        ListenerQueue q = ListenerQueue.acquire(listener);
+        try {
+            ApplicationInstanceId instId = new ApplicationInstanceId();
+            ComponentId compId = new ComponentId();
+            assertTrue(q.offer(instId, compId));
+            assertEquals(compId, listener.received.poll(10, TimeUnit.SECONDS));
+            assertEquals(3, listener.calls.get());
+            assertTrue(q.offer(instId, compId));
+            assertEquals(compId, listener.received.poll(5, TimeUnit.SECONDS));
+        } finally {
+            q.release();
+        }
+    }
+}
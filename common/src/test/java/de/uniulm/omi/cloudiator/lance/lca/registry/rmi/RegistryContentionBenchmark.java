@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/**
+ * measures the throughput of the RMI registry for a growing number of agents. 
+ * Every agent is a thread that sets properties of its own component instance; 
+ * a reader per agent dumps the component at the same time. The agents either 
+ * share one component or each has a component of its own. For comparison, the 
+ * same load runs with every call serialised on one monitor, as the registry 
+ * did before it used a lock per component. Each column shows thousands of 
+ * writes and reads per second. Scaling needs several cores: on a single core, 
+ * lock-free readers merely take CPU time from the writers. 
+ * 
+ * Not a unit test; run it from the test classpath with 
+ * java de.uniulm.omi.cloudiator.lance.lca.registry.rmi.RegistryContentionBenchmark [seconds per run]
+ */
+public final class RegistryContentionBenchmark {
+    
+    private static final int[] AGENTS = {1, 2, 4, 8, 16, 32, 64};
+    
+    private RegistryContentionBenchmark() {
+        // 
+    }
+    
+    private interface Call {
+        void run() throws RemoteException;
+    }
+    
+    /** runs a call either directly or serialised on one monitor for the entire registry */
+    private static final class Gate {
+        private final boolean global;
+        
+        Gate(boolean globalParam) {
+            global = globalParam;
+        }
+        
+        void pass(Call call) throws RemoteException {
+            if(! global) {
+                call.run();
+                return;
+            }
+            synchronized(this) {
+                call.run();
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2L;
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors() + ", " + seconds + " s per run");
+        System.out.println(String.format("%6s %18s %18s %18s %18s", "agents", "shared/global", "shared/striped", "own/global", "own/striped"));
+        System.out.println(String.format("%6s %18s %18s %18s %18s", "", "w/r", "w/r", "w/r", "w/r"));
+        // warm-up //
+        run(8, true, false, 1L);
+        run(8, false, true, 1L);
+        for(int agents : AGENTS) {
+            System.out.println(String.format("%6d %18s %18s %18s %18s", Integer.valueOf(agents), 
+                        run(agents, true, true, seconds), run(agents, true, false, seconds), 
+                        run(agents, false, true, seconds), run(agents, false, false, seconds)));
+        }
+        System.exit(0);
+    }
+    
+    /** @return thousands of writes and reads per second of all agents together */
+    private static String run(int agents, boolean sharedComponent, boolean globalLock, long seconds) throws Exception {
+        final RemoteRegistryImpl registry = new RemoteRegistryImpl();
+        final Gate gate = new Gate(globalLock);
+        final ApplicationInstanceId instId = new ApplicationInstanceId();
+        registry.addApplicationInstance(instId, new ApplicationId(), "benchmark");
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] writes = new long[agents];
+        final long[] reads = new long[agents];
+        List<Thread> threads = new ArrayList<>();
+        ComponentId shared = new ComponentId();
+        registry.addComponent(instId, shared, "shared");
+        for(int i = 0; i < agents; i++) {
+            final int agent = i;
+            final ComponentId compId = sharedComponent ? shared : new ComponentId();
+            if(! sharedComponent) {
+                registry.addComponent(instId, compId, "component" + i);
+            }
+            final ComponentInstanceId cinstId = new ComponentInstanceId();
+            registry.addComponentInstance(instId, compId, cinstId);
+            threads.add(new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        while(! stop.get()) {
+                            final long value = n;
+                            gate.pass(new Call() {
+                                @Override public void run() throws RemoteException {
+                                    registry.addComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_PORT_" + (value % 8), Long.valueOf(value));
+                                }
+                            });
+                            n++;
+                        }
+                        writes[agent] = n;
+                    } catch(Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        while(! stop.get()) {
+                            gate.pass(new Call() {
+                                @Override public void run() throws RemoteException {
+                                    registry.dumpComponentWithVersion(instId, compId);
+                                }
+                            });
+                            n++;
+                        }
+                        reads[agent] = n;
+                    } catch(Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        TimeUnit.SECONDS.sleep(seconds);
+        stop.set(true);
+        for(Thread t : threads) {
+            t.join();
+        }
+        long written = 0;
+        long read = 0;
+        for(int i = 0; i < agents; i++) {
+            written += writes[i];
+            read += reads[i];
+        }
+        return String.format("%.0f/%.0f", Double.valueOf(written / 1000.0 / seconds), Double.valueOf(read / 1000.0 / seconds));
+    }
+}
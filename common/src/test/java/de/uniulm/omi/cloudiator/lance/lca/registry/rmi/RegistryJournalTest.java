@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+public class RegistryJournalTest {
+    
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+    
+    private final ApplicationInstanceId instId = new ApplicationInstanceId();
+    private final ComponentId compId = new ComponentId();
+    private final ComponentInstanceId first = new ComponentInstanceId();
+    private final ComponentInstanceId second = new ComponentInstanceId();
+    private final List<RegistryJournal> journals = new ArrayList<>();
+    private Path dir;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("registry-journal");
+    }
+    
+    @After
+    public void deleteDirectory() throws IOException {
+        for(RegistryJournal journal : journals) {
+            journal.close();
+        }
+        for(Path p : Files.newDirectoryStream(dir)) {
+            Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+    
+    /** opens the registry as after a restart of the process */
+    private RemoteRegistryImpl restart(long compactionSize) throws IOException {
+        RegistryJournal journal = RegistryJournal.inDirectory(dir, false, compactionSize);
+        journals.add(journal);
+        return new RemoteRegistryImpl(journal);
+    }
+    
+    /** the last journal record sets the property of the second instance */
+    private RemoteRegistryImpl fill() throws Exception {
+        RemoteRegistryImpl registry = restart(NO_COMPACTION);
+        registry.addApplicationInstance(instId, new ApplicationId(), "app");
+        registry.addComponent(instId, compId, "comp");
+        registry.addComponentInstance(instId, compId, first);
+        registry.addComponentInstance(instId, compId, second);
+        registry.addComponentProperty(instId, compId, second, "key", "value");
+        return registry;
+    }
+    
+    private Path journalFile() {
+        return dir.resolve("registry.journal");
+    }
+    
+    private void assertOnlyLastRecordLost(RemoteRegistryImpl registry) throws Exception {
+        Map<ComponentInstanceId, Map<String, String>> instances = registry.dumpComponent(instId, compId);
+        assertEquals(2, instances.size());
+        assertNull(instances.get(second).get("key"));
+        assertEquals("2", instances.get(second).get(LcaRegistryConstants.INSTANCE_NR));
+    }
+    
+    @Test
+    public void restoresAllChanges() throws Exception {
+        long version = fill().dumpComponentWithVersion(instId, compId).getVersion();
+        
+        RemoteRegistryImpl restored = restart(NO_COMPACTION);
+        assertEquals("value", restored.getComponentProperty(instId, compId, second, "key"));
+        long restoredVersion = restored.dumpComponentWithVersion(instId, compId).getVersion();
+        assertEquals(ComponentInstanceContainer.changesOf(version), ComponentInstanceContainer.changesOf(restoredVersion));
+    }
+    
+    @Test
+    public void tornLastRecordIsCutOff() throws Exception {
+        fill();
+        long size = Files.size(journalFile());
+        byte[] content = Files.readAllBytes(journalFile());
+        byte[] torn = new byte[content.length - 3];
+        System.arraycopy(content, 0, torn, 0, torn.length);
+        Files.write(journalFile(), torn);
+        
+        RemoteRegistryImpl restored = restart(NO_COMPACTION);
+        assertOnlyLastRecordLost(restored);
+        assertTrue(Files.size(journalFile()) < size);
+        
+        // appending after the cut must yield a readable journal //
+        restored.addComponentProperty(instId, compId, first, "other", "value");
+        assertEquals("value", restart(NO_COMPACTION).getComponentProperty(instId, compId, first, "other"));
+    }
+    
+    @Test
+    public void recordWithBadChecksumIsIgnored() throws Exception {
+        fill();
+        byte[] content = Files.readAllBytes(journalFile());
+        content[content.length - 1] ^= 0x5a;
+        Files.write(journalFile(), content);
+        
+        assertOnlyLastRecordLost(restart(NO_COMPACTION));
+    }
+    
+    @Test
+    public void crashWhileWritingSnapshotKeepsJournal() throws Exception {
+        fill();
+        // the temporary file of a compaction that did not finish //
+        Files.write(dir.resolve("registry.snapshot.tmp"), new byte[] {0x4c, 0x43, 0x4a});
+        
+        RemoteRegistryImpl restored = restart(NO_COMPACTION);
+        assertEquals(2, restored.dumpComponent(instId, compId).size());
+        assertEquals("value", restored.getComponentProperty(instId, compId, second, "key"));
+    }
+    
+    @Test
+    public void crashAfterSnapshotRenameDoesNotApplyJournalTwice() throws Exception {
+        long version = fill().dumpComponentWithVersion(instId, compId).getVersion();
+        Path saved = dir.resolve("journal.saved");
+        Files.copy(journalFile(), saved);
+        
+        // restoring compacts the journal into the snapshot //
+        restart(NO_COMPACTION);
+        assertTrue(Files.exists(dir.resolve("registry.snapshot")));
+        // as if the process died after the rename, but before the journal was reset //
+        Files.move(saved, journalFile(), StandardCopyOption.REPLACE_EXISTING);
+        
+        RemoteRegistryImpl restored = restart(NO_COMPACTION);
+        assertEquals(2, restored.dumpComponent(instId, compId).size());
+        long restoredVersion = restored.dumpComponentWithVersion(instId, compId).getVersion();
+        assertEquals(ComponentInstanceContainer.changesOf(version), ComponentInstanceContainer.changesOf(restoredVersion));
+        
+        ComponentInstanceId third = new ComponentInstanceId();
+        restored.addComponentInstance(instId, compId, third);
+        assertEquals("3", restored.getComponentProperty(instId, compId, third, LcaRegistryConstants.INSTANCE_NR));
+    }
+    
+    @Test
+    public void leaseSurvivesCompactionAndRestart() throws Exception {
+        RemoteRegistryImpl registry = fill();
+        registry.renewComponentInstance(instId, compId, first, 100L);
+        
+        // the first restart compacts, the second one reads the lease from the snapshot //
+        restart(NO_COMPACTION);
+        RemoteRegistryImpl restored = restart(NO_COMPACTION);
+        assertEquals(2, restored.dumpComponent(instId, compId).size());
+        Thread.sleep(200L);
+        restored.reapExpiredInstances();
+        Map<ComponentInstanceId, Map<String, String>> instances = restored.dumpComponent(instId, compId);
+        assertFalse(instances.containsKey(first));
+        assertTrue(instances.containsKey(second));
+    }
+    
+    @Test
+    public void renewalsWithSameLengthAreNotJournaled() throws Exception {
+        RemoteRegistryImpl registry = fill();
+        registry.renewComponentInstance(instId, compId, first, 60000L);
+        long size = Files.size(journalFile());
+        for(int i = 0; i < 10; i++) {
+            registry.renewComponentInstance(instId, compId, first, 60000L);
+        }
+        assertEquals(size, Files.size(journalFile()));
+    }
+}
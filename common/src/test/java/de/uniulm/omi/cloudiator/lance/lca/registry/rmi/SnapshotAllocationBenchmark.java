@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.registry.rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ContainerStatus;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+
+/**
+ * measures the bytes allocated by one poll of a component's downstream 
+ * ports, once through nested maps (dumpComponent) and once through a 
+ * ComponentSnapshot. A poll reads the component and extracts, for every 
+ * ready instance, the port and host of each of 3 hierarchy levels, as 
+ * PortRegistryTranslator does. 'local' calls the registry in the same 
+ * process; 'remote' adds serialising and deserialising the result, as RMI 
+ * does between the registry and an agent (both sides are counted). 
+ * 'unchanged' polls a component that did not change since the last poll; 
+ * 'changed' sets a property of one instance before every poll (the write 
+ * itself is not counted). Allocations are read from the JVM's per-thread 
+ * counter (com.sun.management.ThreadMXBean). 
+ * 
+ * Not a unit test; run it from the test classpath with 
+ * java de.uniulm.omi.cloudiator.lance.lca.registry.rmi.SnapshotAllocationBenchmark [polls]
+ */
+public final class SnapshotAllocationBenchmark {
+    
+    private static final int[] INSTANCES = {10, 100, 1000};
+    private static final String[] LEVELS = {"PUBLIC", "CLOUD", "CONTAINER"};
+    private static final String[] PORTS = {"HTTP", "HTTPS", "ADMIN", "METRICS", "DB"};
+    private static final String READY = ContainerStatus.READY.toString();
+    
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    
+    private final RemoteRegistryImpl registry = new RemoteRegistryImpl();
+    private final ApplicationInstanceId instId = new ApplicationInstanceId();
+    private final ComponentId compId = new ComponentId();
+    private final ComponentInstanceId[] ids;
+    private final String[] portKeys = new String[LEVELS.length];
+    private final String[] hostKeys = new String[LEVELS.length];
+    private long sink = 0L;
+    private int writes = 0;
+    
+    private SnapshotAllocationBenchmark(int instances) throws Exception {
+        registry.addApplicationInstance(instId, new ApplicationId(), "benchmark");
+        registry.addComponent(instId, compId, "component");
+        ids = new ComponentInstanceId[instances];
+        for(int i = 0; i < instances; i++) {
+            ids[i] = new ComponentInstanceId();
+            registry.addComponentInstance(instId, compId, ids[i]);
+            registry.addComponentProperties(instId, compId, Collections.singletonMap(ids[i], properties(i)));
+        }
+        for(int l = 0; l < LEVELS.length; l++) {
+            portKeys[l] = "ACCESS_" + LEVELS[l] + "_HTTP";
+            hostKeys[l] = "HOST_" + LEVELS[l] + "_IP";
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final int polls = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        System.out.println("bytes allocated per poll, average of " + polls + " polls");
+        System.out.println(String.format("%9s %10s %14s %14s %8s", "instances", "call", "maps", "snapshot", "ratio"));
+        for(int instances : INSTANCES) {
+            SnapshotAllocationBenchmark b = new SnapshotAllocationBenchmark(instances);
+            for(String call : new String[] {"local", "remote"}) {
+                for(boolean changed : new boolean[] {false, true}) {
+                    boolean remote = "remote".equals(call);
+                    // warm-up //
+                    b.measure(false, remote, changed, polls);
+                    b.measure(true, remote, changed, polls);
+                    long maps = b.measure(false, remote, changed, polls);
+                    long snapshots = b.measure(true, remote, changed, polls);
+                    System.out.println(String.format("%9d %10s %14d %14d %8.1f", Integer.valueOf(instances), call + (changed ? "/changed" : "/unchanged"), 
+                                Long.valueOf(maps), Long.valueOf(snapshots), Double.valueOf(maps / (double) Math.max(1L, snapshots))));
+                }
+            }
+        }
+        System.exit(0);
+    }
+    
+    /** @return the average bytes allocated per poll */
+    private long measure(boolean snapshot, boolean remote, boolean changed, int polls) throws Exception {
+        final long thread = Thread.currentThread().getId();
+        long allocated = 0L;
+        for(int i = 0; i < polls; i++) {
+            if(changed) {
+                registry.addComponentProperty(instId, compId, ids[writes++ % ids.length], "ACCESS_PUBLIC_METRICS", Integer.valueOf(writes));
+            }
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            if(snapshot) {
+                ComponentSnapshot s = registry.snapshotComponent(instId, compId);
+                pollSnapshot(remote ? transfer(s) : s);
+            } else {
+                Map<ComponentInstanceId, Map<String, String>> dump = registry.dumpComponent(instId, compId);
+                pollMaps(remote ? transfer(dump) : dump);
+            }
+            allocated += THREADS.getThreadAllocatedBytes(thread) - before;
+        }
+        return allocated / polls;
+    }
+    
+    private void pollMaps(Map<ComponentInstanceId, Map<String, String>> dump) {
+        for(Entry<ComponentInstanceId, Map<String, String>> instance : dump.entrySet()) {
+            Map<String, String> properties = instance.getValue();
+            if(! READY.equals(properties.get(LcaRegistryConstants.CONTAINER_STATUS))) 
+                continue;
+            for(int l = 0; l < LEVELS.length; l++) {
+                Integer port = Integer.valueOf(properties.get(portKeys[l]));
+                sink += port.intValue() + properties.get(hostKeys[l]).length() + instance.getKey().hashCode();
+            }
+        }
+    }
+    
+    private void pollSnapshot(ComponentSnapshot snapshot) {
+        for(int row = 0; row < snapshot.size(); row++) {
+            if(snapshot.getContainerStatus(row) != ContainerStatus.READY) 
+                continue;
+            for(int l = 0; l < LEVELS.length; l++) {
+                int port = snapshot.getNumber(row, snapshot.indexOfKey(portKeys[l]));
+                sink += port + snapshot.getValue(row, snapshot.indexOfKey(hostKeys[l])).length() + snapshot.getId(row).hashCode();
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T transfer(T result) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(result);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+    
+    /** the properties an instance with 5 ports on 3 hierarchy levels registers */
+    private static Map<String, Object> properties(int instance) {
+        Map<String, Object> properties = new HashMap<>();
+        for(String level : LEVELS) {
+            properties.put("HOST_" + level + "_IP", "10." + (instance >> 8 & 255) + "." + (instance & 255) + "." + level.length());
+            for(int p = 0; p < PORTS.length; p++) {
+                properties.put("ACCESS_" + level + "_" + PORTS[p], Integer.valueOf(30000 + p));
+            }
+        }
+        properties.put(LcaRegistryConstants.CONTAINER_STATUS, READY);
+        properties.put(LcaRegistryConstants.COMPONENT_INSTANCE_STATUS, "START");
+        properties.put(LcaRegistryConstants.INSTANCE_NR, Integer.valueOf(instance));
+        properties.put(LcaRegistryConstants.HOST_PUBLIC_IP, "134.60.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.HOST_INTERNAL_IP, "10.0.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.LOCAL_IP, "172.17.0." + (instance & 255));
+        properties.put(LcaRegistryConstants.CLOUD_PROVIDER_ID, "openstack");
+        return properties;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.uniulm.omi.cloudiator.lance.lca.registry.sharded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationId;
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.LcaRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.MigratableRegistry;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.etcd.EtcdRegistryContainer;
+import de.uniulm.omi.cloudiator.lance.lca.registry.etcd.LocalEtcd;
+
+public class ShardedRegistryTest {
+    
+    private final ApplicationInstanceId instId = new ApplicationInstanceId();
+    private final ComponentId compId = new ComponentId();
+    private final ComponentInstanceId cinstId = new ComponentInstanceId();
+    private final List<LocalEtcd> etcds = new ArrayList<>();
+    private final List<EtcdRegistryContainer> containers = new ArrayList<>();
+    private final List<MigratableRegistry> shards = new ArrayList<>();
+    private ShardedRegistryImpl registry;
+    private int source;
+    private int target;
+    
+    @Before
+    public void startShards() throws Exception {
+        for(int i = 0; i < 2; i++) {
+            LocalEtcd etcd = new LocalEtcd();
+            EtcdRegistryContainer container = EtcdRegistryContainer.createForHosts(etcd.hostAndPort());
+            etcds.add(etcd);
+            containers.add(container);
+            shards.add((MigratableRegistry) container.getRegistry());
+        }
+        registry = new ShardedRegistryImpl(shards, Collections.<ApplicationInstanceId, Integer>emptyMap());
+        source = registry.shardOf(instId);
+        target = 1 - source;
+        registry.addApplicationInstance(instId, new ApplicationId(), "app");
+        registry.addComponent(instId, compId, "component");
+        registry.addComponentInstance(instId, compId, cinstId);
+        registry.addComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP", Integer.valueOf(80));
+    }
+    
+    @After
+    public void stopShards() {
+        for(EtcdRegistryContainer container : containers) {
+            container.close();
+        }
+        EtcdRegistryContainer.closeSharedClients();
+        for(LocalEtcd etcd : etcds) {
+            etcd.close();
+        }
+    }
+    
+    @Test
+    public void migrationMovesTheApplicationInstance() throws Exception {
+        registry.migrateApplicationInstance(instId, target);
+        assertEquals(target, registry.shardOf(instId));
+        assertEquals("80", registry.getComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP"));
+        assertEquals("80", shards.get(target).getComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP"));
+        assertNull(shards.get(source).exportApplicationInstance(instId));
+        assertEquals(String.valueOf(target), shards.get(source).getForwarding(instId));
+    }
+    
+    @Test
+    public void copiesMadeBeforeTheMigrationFollowIt() throws Exception {
+        ShardedRegistryImpl reader = copy(registry);
+        ShardedRegistryImpl writer = copy(registry);
+        ShardedRegistryImpl asyncReader = copy(registry);
+        registry.migrateApplicationInstance(instId, target);
+        
+        assertEquals("80", reader.dumpComponent(instId, compId).get(cinstId).get("ACCESS_PUBLIC_HTTP"));
+        assertEquals(target, reader.shardOf(instId));
+        writer.addComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP", Integer.valueOf(81));
+        assertEquals(target, writer.shardOf(instId));
+        assertEquals("81", asyncReader.async().getComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP").get());
+        assertEquals(target, asyncReader.shardOf(instId));
+        assertNull(shards.get(source).exportApplicationInstance(instId));
+    }
+    
+    @Test
+    public void copiesMadeBeforeTheMigrationFindTheApplicationInstance() throws Exception {
+        ShardedRegistryImpl copy = copy(registry);
+        registry.migrateApplicationInstance(instId, target);
+        assertTrue(copy.applicationComponentExists(instId, compId));
+        assertFalse(copy.addApplicationInstance(instId, new ApplicationId(), "app"));
+        assertNull(shards.get(source).exportApplicationInstance(instId));
+    }
+    
+    @Test
+    public void formerShardRejectsWrites() throws Exception {
+        registry.migrateApplicationInstance(instId, target);
+        try {
+            shards.get(source).addComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP", Integer.valueOf(81));
+            fail("write to the former shard succeeded");
+        } catch(RegistrationException expected) {
+            // the tombstone keeps etcd from creating the directories anew //
+        }
+        assertNull(shards.get(source).exportApplicationInstance(instId));
+    }
+    
+    @Test
+    public void migratingBackRemovesTheForwarding() throws Exception {
+        ShardedRegistryImpl unaware = copy(registry);
+        registry.migrateApplicationInstance(instId, target);
+        ShardedRegistryImpl moved = copy(registry);
+        registry.migrateApplicationInstance(instId, source);
+        
+        assertNull(shards.get(source).getForwarding(instId));
+        assertEquals(String.valueOf(source), shards.get(target).getForwarding(instId));
+        assertEquals("80", unaware.getComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP"));
+        assertEquals(source, unaware.shardOf(instId));
+        assertEquals("80", moved.getComponentProperty(instId, compId, cinstId, "ACCESS_PUBLIC_HTTP"));
+        assertEquals(source, moved.shardOf(instId));
+    }
+    
+    private static ShardedRegistryImpl copy(LcaRegistry registry) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(registry);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ShardedRegistryImpl) in.readObject();
+        }
+    }
+}
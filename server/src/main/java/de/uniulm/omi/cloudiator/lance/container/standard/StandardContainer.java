@@ -133,13 +133,25 @@ public final class StandardContainer<T extends ContainerLogic> implements Contai
             throw new ContainerException("container has no IP address set after bootstrapping.");
         network.updateAddress(PortRegistryTranslator.PORT_HIERARCHY_2, address);
         network.iterateOverInPorts(logic.getPortMapper());
-        network.pollForNeededConnections();
+        if(NetworkHandler.waitsForSinksBeforePreStart()) {
+            // the install handlers do not need the sinks; they run while the sinks come up //
+            network.discoverNeededConnections();
+        } else {
+            network.pollForNeededConnections();
+        }
     }
     
-    void preInitAction() throws LifecycleException {
+    void preInitAction() throws LifecycleException, ContainerException {
+        // does not wait if the sinks have been found while bootstrapping, 
+        // but keeps a container whose wait has failed from running handlers //
+        if(! NetworkHandler.waitsForSinksBeforePreStart()) {
+            network.awaitNeededConnections();
+        }
     	controller.blockingInit();
         controller.blockingInstall();
         controller.blockingConfigure();
+        // PRE_START exposes the sinks to the component //
+        network.awaitNeededConnections();
         controller.blockingStart();
     }
     
@@ -151,14 +163,25 @@ public final class StandardContainer<T extends ContainerLogic> implements Contai
     }
     
     void preDestroyAction() {
+        // the wait for the sinks may still run if they have never been found //
+        network.cancelNeededConnections();
     	controller.blockingStop();
-    	//FIXME: remove entries from the registries //
+    	// the registry removes the entries of this instance once it has been DESTROYED //
     }
     
     void registerStatus(ContainerStatus status) throws RegistrationException {
     	accessor.updateContainerState(containerId, status);
     }
     
+    /** makes the failure visible in the registry; the state machine has no error state yet */
+    void registerError() {
+        try {
+            registerStatus(ContainerStatus.ERROR);
+        } catch(RegistrationException re) {
+            getLogger().warn("could not register error state.", re);
+        }
+    }
+    
     private StateMachineBuilder<ContainerStatus> addCreateTransition(StateMachineBuilder<ContainerStatus> b) {
         return b.addAsynchronousTransition(ContainerStatus.NEW, ContainerStatus.CREATING, ContainerStatus.CREATED,
                 new TransitionAction() {                    
@@ -188,7 +211,8 @@ public final class StandardContainer<T extends ContainerLogic> implements Contai
                             registerStatus(ContainerStatus.BOOTSTRAPPED);
                         } catch(ContainerException | RegistrationException ce) { 
                             getLogger().error("could not initialise container; FIXME add error state", ce); 
-                            /* FIXME: change to error state */ 
+                            network.cancelNeededConnections();
+                            registerError();
                         }
                     }
         });
@@ -206,7 +230,8 @@ public final class StandardContainer<T extends ContainerLogic> implements Contai
                             registerStatus(ContainerStatus.READY);
                         } catch(ContainerException | LifecycleException | RegistrationException ce ) { 
                             getLogger().error("could not initialise container; FIXME add error state", ce); 
-                            /* FIXME: change to error state */ 
+                            network.cancelNeededConnections();
+                            registerError();
                         }
                     }
         });
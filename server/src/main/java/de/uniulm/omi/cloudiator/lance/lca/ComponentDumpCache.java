@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
+
+/**
+ * agent-wide read-through cache for component dumps, which are held as 
+ * compact snapshots. All containers of an agent that consume the same 
+ * component share one entry. An entry is 
+ * re-read from the registry when it is older than the staleness bound or 
+ * when the registry has reported a change of the component. Re-reads 
+ * only fetch the changes since the cached version and return the cached 
+ * snapshot itself if there are none. Concurrent readers 
+ * of an outdated entry share a single re-read, and no thread waits for 
+ * it unless it uses the blocking access. Components with more than 
+ * CACHE_MAX_INSTANCES_KEY instances are not kept: once a read has found 
+ * a component that large, isEnabledFor reports false for it until its 
+ * entry is evicted, so that callers read it page by page instead.
+ */
+public final class ComponentDumpCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ComponentDumpCache.class);
+    
+    /** maximum age of a cached dump in milliseconds; 0 disables caching */
+    public static final String CACHE_STALENESS_KEY = "lca.registry.cache.staleness";
+    /** maximum number of cached components */
+    public static final String CACHE_SIZE_KEY = "lca.registry.cache.size";
+    /** maximum number of instances of a cached component */
+    public static final String CACHE_MAX_INSTANCES_KEY = "lca.registry.cache.instances";
+    
+    private static final long DEFAULT_STALENESS_MILLIS = 10000L;
+    private static final int DEFAULT_SIZE = 256;
+    private static final int DEFAULT_MAX_INSTANCES = 1000;
+    
+    private static final ComponentDumpCache INSTANCE = new ComponentDumpCache(
+            Long.getLong(CACHE_STALENESS_KEY, DEFAULT_STALENESS_MILLIS).longValue(), 
+            Integer.getInteger(CACHE_SIZE_KEY, DEFAULT_SIZE).intValue(), 
+            Integer.getInteger(CACHE_MAX_INSTANCES_KEY, DEFAULT_MAX_INSTANCES).intValue());
+    
+    public static ComponentDumpCache getInstance() {
+        return INSTANCE;
+    }
+    
+    private final long stalenessMillis;
+    private final int maxSize;
+    private final int maxInstances;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    // access ordered, so that the first entry is the least recently used one //
+    private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    
+    ComponentDumpCache(long stalenessMillisParam, int maxSizeParam, int maxInstancesParam) {
+        stalenessMillis = stalenessMillisParam;
+        maxSize = maxSizeParam;
+        maxInstances = maxInstancesParam;
+    }
+    
+    ComponentSnapshot getComponentSnapshot(LcaRegistry reg, ApplicationInstanceId instId, ComponentId compId) throws RegistrationException {
+        if(stalenessMillis <= 0) {
+            misses.incrementAndGet();
+            return reg.snapshotComponent(instId, compId);
+        }
+        return RegistryFutures.await(getOrCreateEntry(new CacheKey(instId, compId)).get(reg));
+    }
+    
+    CompletableFuture<ComponentSnapshot> getComponentSnapshotAsync(LcaRegistry reg, ApplicationInstanceId instId, ComponentId compId) {
+        if(stalenessMillis <= 0) {
+            misses.incrementAndGet();
+            return reg.async().snapshotComponent(instId, compId);
+        }
+        return getOrCreateEntry(new CacheKey(instId, compId)).get(reg);
+    }
+    
+    /** @return false if caching is disabled or the component is known to be too large to be cached */
+    boolean isEnabledFor(ApplicationInstanceId instId, ComponentId compId) {
+        if(stalenessMillis <= 0) 
+            return false;
+        CacheEntry entry;
+        synchronized(entries) {
+            entry = entries.get(new CacheKey(instId, compId));
+        }
+        return entry == null || ! entry.large;
+    }
+    
+    /** marks the cached dump of this component as outdated */
+    void invalidate(ApplicationInstanceId instId, ComponentId compId) {
+        CacheEntry entry;
+        synchronized(entries) {
+            entry = entries.get(new CacheKey(instId, compId));
+        }
+        if(entry != null) {
+            entry.invalidate();
+        }
+    }
+    
+    public long getHitCount() {
+        return hits.get();
+    }
+    
+    public long getMissCount() {
+        return misses.get();
+    }
+    
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentDumpCache: " + size() + "/" + maxSize + " entries, hits=" + getHitCount() + ", misses=" + getMissCount();
+    }
+    
+    private CacheEntry getOrCreateEntry(CacheKey key) {
+        CacheEntry entry;
+        CacheEntry evicted = null;
+        synchronized(entries) {
+            entry = entries.get(key);
+            if(entry == null) {
+                entry = new CacheEntry(key);
+                entries.put(key, entry);
+                if(entries.size() > maxSize) {
+                    Iterator<CacheEntry> it = entries.values().iterator();
+                    evicted = it.next();
+                    it.remove();
+                }
+            }
+        }
+        if(evicted != null) {
+            evicted.unwatch();
+        }
+        return entry;
+    }
+    
+    private final class CacheEntry implements ComponentChangeListener {
+        
+        private final CacheKey key;
+        /** increased with every change event; compared against the state at the last read */
+        private final AtomicLong generation = new AtomicLong(0);
+        
+        // guarded by this //
+        private ComponentSnapshot snapshot;
+        private long fetchedAt;
+        private long fetchedGeneration;
+        private LcaRegistry watchedRegistry;
+        /** the re-read in progress, if any */
+        private CompletableFuture<ComponentSnapshot> pending;
+        /** set once a read has found more than maxInstances instances */
+        volatile boolean large = false;
+        
+        CacheEntry(CacheKey keyParam) {
+            key = keyParam;
+        }
+        
+        synchronized CompletableFuture<ComponentSnapshot> get(LcaRegistry reg) {
+            final long now = System.currentTimeMillis();
+            if(snapshot != null && fetchedGeneration == generation.get() && now - fetchedAt <= stalenessMillis) {
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(snapshot);
+            }
+            if(pending != null) {
+                hits.incrementAndGet();
+                return pending;
+            }
+            misses.incrementAndGet();
+            if(watchedRegistry == null) {
+                watch(reg);
+            }
+            final long currentGeneration = generation.get();
+            final ComponentSnapshot previous = snapshot;
+            CompletableFuture<ComponentSnapshot> read;
+            if(previous == null) {
+                read = reg.async().snapshotComponent(key.instId, key.compId);
+            } else {
+                // only transfer what has changed; keeps the old object if nothing 
+                // has changed so that users can compare by identity //
+                read = reg.async().dumpComponentSince(key.instId, key.compId, previous.getVersion())
+                            .thenApply(previous::withDelta);
+            }
+            CompletableFuture<ComponentSnapshot> result = read.whenComplete((fetched, failure) -> {
+                synchronized(CacheEntry.this) {
+                    pending = null;
+                    if(failure == null && fetched.size() > maxInstances) {
+                        LOGGER.info("component " + key + " has " + fetched.size() + " instances; reading it page by page from now on.");
+                        large = true;
+                        snapshot = null;
+                        unwatch();
+                    } else if(failure == null) {
+                        snapshot = fetched;
+                        fetchedAt = now;
+                        fetchedGeneration = currentGeneration;
+                    }
+                }
+            });
+            // a registry that answers right away has already completed the future //
+            if(! result.isDone()) {
+                pending = result;
+            }
+            return result;
+        }
+        
+        private void watch(LcaRegistry reg) {
+            try {
+                if(reg.addComponentListener(key.instId, key.compId, this)) {
+                    watchedRegistry = reg;
+                }
+            } catch(RegistrationException re) {
+                LOGGER.info("cannot watch component " + key + "; relying on staleness bound.", re);
+            }
+        }
+        
+        synchronized void unwatch() {
+            if(watchedRegistry == null) 
+                return;
+            try {
+                watchedRegistry.removeComponentListener(key.instId, key.compId, this);
+            } catch(RegistrationException re) {
+                LOGGER.info("cannot remove watch on component " + key, re);
+            }
+            watchedRegistry = null;
+        }
+        
+        void invalidate() {
+            generation.incrementAndGet();
+        }
+
+        @Override
+        public void componentChanged(ApplicationInstanceId instId, ComponentId compId) {
+            invalidate();
+        }
+    }
+    
+    private static final class CacheKey {
+        
+        final ApplicationInstanceId instId;
+        final ComponentId compId;
+        
+        CacheKey(ApplicationInstanceId instIdParam, ComponentId compIdParam) {
+            instId = instIdParam;
+            compId = compIdParam;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof CacheKey)) 
+                return false;
+            CacheKey that = (CacheKey) o;
+            return instId.equals(that.instId) && compId.equals(that.compId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * instId.hashCode() + compId.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return instId + "/" + compId;
+        }
+    }
+}
@@ -91,10 +91,20 @@ final class EnvContext implements HostContext {
 
     @Override
     public ScheduledFuture<?> scheduleAction(Runnable runner) {
-        ScheduledFuture<?> sf = periodicExecutor.scheduleWithFixedDelay(runner, 30L, 60L, TimeUnit.SECONDS);
+        return scheduleAction(runner, 30L, 60L, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public ScheduledFuture<?> scheduleAction(Runnable runner, long initialDelay, long period, TimeUnit unit) {
+        ScheduledFuture<?> sf = periodicExecutor.scheduleWithFixedDelay(runner, initialDelay, period, unit);
         return sf;
     }
     
+    @Override
+    public ScheduledFuture<?> scheduleDelayedAction(Runnable runner, long delay, TimeUnit unit) {
+        return periodicExecutor.schedule(runner, delay, unit);
+    }
+    
     @Override @Deprecated
     public void run(Runnable runner) {
         executor.execute(runner);
@@ -20,7 +20,18 @@ package de.uniulm.omi.cloudiator.lance.lca;
 
 import static de.uniulm.omi.cloudiator.lance.lca.LcaRegistryConstants.*;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
 import de.uniulm.omi.cloudiator.lance.application.DeploymentContext;
@@ -29,21 +40,44 @@ import de.uniulm.omi.cloudiator.lance.application.component.DeployableComponent;
 import de.uniulm.omi.cloudiator.lance.application.component.PortReference;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerStatus;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
 import de.uniulm.omi.cloudiator.lance.lifecycle.LifecycleHandlerType;
 
 public final class GlobalRegistryAccessor {
     
+    private static final Logger LOGGER = LoggerFactory.getLogger(GlobalRegistryAccessor.class);
+    
+    /** lease of a component instance in the registry in seconds; 0 disables leases */
+    public static final String INSTANCE_LEASE_KEY = "lca.registry.lease.seconds";
+    private static final long DEFAULT_LEASE_SECONDS = 180L;
+    
+    /** number of instances per page when a component is read page by page */
+    public static final String PAGE_SIZE_KEY = "lca.registry.page.size";
+    private static final int PAGE_SIZE = Math.max(1, Integer.getInteger(PAGE_SIZE_KEY, 250).intValue());
+    
     private final LcaRegistry reg;
+    private final AsyncLcaRegistry asyncReg;
     // private final ApplicationId appId;
     private final ApplicationInstanceId appInstId; 
     private final ComponentId compId;
     private final DeploymentContext ctx;
     // private final DeployableComponent comp;
     private final ComponentInstanceId localId;
+    private final ComponentDumpCache dumpCache = ComponentDumpCache.getInstance();
+    private volatile ScheduledFuture<?> leaseFuture = null;
+    private final ConcurrentMap<ComponentInstanceId, StatusWriteBehind> statusWriters = new ConcurrentHashMap<>();
+    /** the properties written for the local instance, so that they can be written again 
+     * if the registry has lost the instance */
+    private final Map<String, String> localProperties = new ConcurrentHashMap<>();
+    private final AtomicBoolean reregistering = new AtomicBoolean(false);
     
     public GlobalRegistryAccessor(DeploymentContext ctxParam, DeployableComponent compParam, ComponentInstanceId localIdParam) {
         reg = ctxParam.getRegistry();
+        asyncReg = reg.async();
         // appId = _ctx.getApplicationId();
         appInstId = ctxParam.getApplicationInstanceId();
         compId = compParam.getComponentId();
@@ -55,14 +89,99 @@ public final class GlobalRegistryAccessor {
     public final void init(ComponentInstanceId myId) throws RegistrationException {
         reg.addComponentInstance(appInstId, compId, myId);
         reg.addComponentProperty(appInstId, compId, myId, COMPONENT_INSTANCE_STATUS, LifecycleHandlerType.NEW.toString());
+        statusWriter(myId).acknowledge(COMPONENT_INSTANCE_STATUS, LifecycleHandlerType.NEW.toString());
+        dumpCache.invalidate(appInstId, compId);
     }
     
-    public final void updateInstanceState(ComponentInstanceId myId, LifecycleHandlerType type) throws RegistrationException {
-        reg.addComponentProperty(appInstId, compId, myId, COMPONENT_INSTANCE_STATUS, type.toString());
+    /** does not wait for the registry; see StatusWriteBehind */
+    public final void updateInstanceState(ComponentInstanceId myId, LifecycleHandlerType type) {
+        statusWriter(myId).set(COMPONENT_INSTANCE_STATUS, type.toString(), false);
     }
     
+    /** only DESTROYED waits for the registry, as the container is gone afterwards; 
+     * READY is written right away, as other components wait for it. 
+     * The registry removes a DESTROYED instance on its own after a grace period; 
+     * hence, its lease is no longer renewed */
     public final void updateContainerState(ComponentInstanceId myId, ContainerStatus type) throws RegistrationException {
-        reg.addComponentProperty(appInstId, compId, myId, CONTAINER_STATUS, type.toString());
+        if(type == ContainerStatus.DESTROYED) {
+            stopLeaseRenewal();
+            RegistryFutures.await(statusWriter(myId).set(CONTAINER_STATUS, type.toString(), true));
+            return;
+        }
+        statusWriter(myId).set(CONTAINER_STATUS, type.toString(), type == ContainerStatus.READY);
+    }
+    
+    private StatusWriteBehind statusWriter(ComponentInstanceId myId) {
+        return statusWriters.computeIfAbsent(myId, id -> 
+                    new StatusWriteBehind(asyncReg, appInstId, compId, id, () -> dumpCache.invalidate(appInstId, compId)));
+    }
+    
+    /** 
+     * attaches a lease to the local instance and renews it in the background, so 
+     * that the registry removes the instance if this agent disappears. Renewals 
+     * do not wait for the registry. If a renewal finds that the registry has 
+     * dropped the instance, e.g. because the lease expired during a network 
+     * partition, the instance is added again with all of its properties. 
+     */
+    public void startLeaseRenewal(final HostContext hostContext) throws RegistrationException {
+        final long seconds = Long.getLong(INSTANCE_LEASE_KEY, DEFAULT_LEASE_SECONDS).longValue();
+        if(seconds <= 0) 
+            return;
+        final long leaseMillis = TimeUnit.SECONDS.toMillis(seconds);
+        reg.renewComponentInstance(appInstId, compId, localId, leaseMillis);
+        // renew often enough that a single failed attempt does not lose the lease //
+        final long period = Math.max(1L, seconds / 3L);
+        leaseFuture = hostContext.scheduleAction(new Runnable() {
+            @Override public void run() {
+                asyncReg.renewComponentInstance(appInstId, compId, localId, leaseMillis).whenComplete((result, failure) -> {
+                    if(failure == null) 
+                        return;
+                    if(! RegistryFutures.isNotKnown(failure)) {
+                        LOGGER.warn("could not renew lease of component instance " + localId, RegistryFutures.unwrap(failure));
+                        return;
+                    }
+                    // the registry calls back on its own threads //
+                    if(leaseFuture != null && reregistering.compareAndSet(false, true)) {
+                        hostContext.run(new Runnable() {
+                            @Override public void run() {
+                                try {
+                                    reregister(leaseMillis);
+                                } finally {
+                                    reregistering.set(false);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+    
+    /** adds the local instance again and writes its latest properties and status with a single request */
+    private void reregister(long leaseMillis) {
+        LOGGER.warn("registry has lost component instance " + localId + "; registering it again.");
+        Map<String, String> properties = new HashMap<>(localProperties);
+        properties.putAll(statusWriter(localId).latest());
+        try {
+            reg.addComponentInstance(appInstId, compId, localId);
+            reg.renewComponentInstance(appInstId, compId, localId, leaseMillis);
+            if(! properties.isEmpty()) {
+                reg.addComponentProperties(appInstId, compId, localId, properties);
+            }
+        } catch(RegistrationException | RuntimeException e) {
+            // the next renewal finds the instance missing again and retries //
+            LOGGER.warn("could not register component instance " + localId + " again.", e);
+        } finally {
+            dumpCache.invalidate(appInstId, compId);
+        }
+    }
+    
+    public void stopLeaseRenewal() {
+        ScheduledFuture<?> sf = leaseFuture;
+        if(sf != null) {
+            sf.cancel(false);
+            leaseFuture = null;
+        }
     }
     
     public static boolean dumpMapHasContainerStatus(Map<String, String> map, ContainerStatus type) {
@@ -187,11 +306,101 @@ public final class GlobalRegistryAccessor {
     */
     
     public Map<ComponentInstanceId, Map<String, String>> retrieveComponentDump(PortReference sinkReference) throws RegistrationException {
-        return reg.dumpComponent(appInstId, sinkReference.getComponentId());
+        return dumpCache.getComponentSnapshot(reg, appInstId, sinkReference.getComponentId()).toMap();
+    }
+    
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> retrieveComponentDumpAsync(PortReference sinkReference) {
+        return retrieveComponentSnapshotAsync(sinkReference).thenApply(ComponentSnapshot::toMap);
+    }
+    
+    /** @return the cached snapshot if caching is enabled; the cache returns the same object as long as the component has not changed */
+    public CompletableFuture<ComponentSnapshot> retrieveComponentSnapshotAsync(PortReference sinkReference) {
+        return dumpCache.getComponentSnapshotAsync(reg, appInstId, sinkReference.getComponentId());
+    }
+    
+    /** @return true if reads of this component are served from the agent-wide cache; 
+     * false if caching is disabled or the component is too large to be cached */
+    public boolean isCachingComponent(PortReference sinkReference) {
+        return dumpCache.isEnabledFor(appInstId, sinkReference.getComponentId());
+    }
+    
+    /** evaluates the query on the cached dump if the component is cached; in the registry otherwise */
+    public Map<ComponentInstanceId, Map<String, String>> queryComponent(PortReference sinkReference, ComponentQuery query) throws RegistrationException {
+        return RegistryFutures.await(queryComponentAsync(sinkReference, query));
+    }
+    
+    public CompletableFuture<Map<ComponentInstanceId, Map<String, String>>> queryComponentAsync(PortReference sinkReference, ComponentQuery query) {
+        if(isCachingComponent(sinkReference)) 
+            return retrieveComponentSnapshotAsync(sinkReference).thenApply(snapshot -> snapshot.query(query));
+        return asyncReg.queryComponent(appInstId, sinkReference.getComponentId(), query);
+    }
+    
+    /** receives the result of a query one page at a time */
+    public interface ComponentPageConsumer {
+        void accept(Map<ComponentInstanceId, Map<String, String>> page) throws RegistrationException;
+    }
+    
+    /** 
+     * hands the result of the query to the consumer one page after the other, so that 
+     * only one page has to be held at a time. If the component is cached, the query 
+     * is evaluated on the cached dump instead, which the agent holds anyway; its result 
+     * is a single page. Components too large for the cache are always read in pages. 
+     * @return a future that completes once the consumer has received the last page
+     */
+    public CompletableFuture<Void> scanComponent(PortReference sinkReference, ComponentQuery query, final ComponentPageConsumer consumer) {
+        if(isCachingComponent(sinkReference)) {
+            return retrieveComponentSnapshotAsync(sinkReference).thenAccept(snapshot -> consume(consumer, snapshot.query(query)));
+        }
+        return scanPages(sinkReference.getComponentId(), query, null, consumer);
+    }
+    
+    private CompletableFuture<Void> scanPages(final ComponentId component, final ComponentQuery query, String continuation, 
+                final ComponentPageConsumer consumer) {
+        return asyncReg.queryComponentPage(appInstId, component, query, continuation, PAGE_SIZE).thenCompose(page -> {
+            consume(consumer, page.getInstances());
+            if(page.isLast()) 
+                return CompletableFuture.completedFuture((Void) null);
+            return scanPages(component, query, page.getContinuation(), consumer);
+        });
+    }
+    
+    private static void consume(ComponentPageConsumer consumer, Map<ComponentInstanceId, Map<String, String>> page) {
+        try {
+            consumer.accept(page);
+        } catch(RegistrationException re) {
+            throw new CompletionException(re);
+        }
+    }
+    
+    /** @return a query for the instances in the given container status */
+    public static ComponentQuery.ComponentQueryBuilder queryForContainerStatus(ContainerStatus status) {
+        return new ComponentQuery.ComponentQueryBuilder().requireValue(CONTAINER_STATUS, status.toString());
+    }
+    
+    public ApplicationInstanceId getApplicationInstanceId() {
+        return appInstId;
+    }
+    
+    /** @return true if the registry will report changes to the component; 
+     * false if it has to be polled */
+    public boolean addComponentListener(ComponentId component, ComponentChangeListener listener) throws RegistrationException {
+        return reg.addComponentListener(appInstId, component, listener);
+    }
+    
+    public void removeComponentListener(ComponentId component, ComponentChangeListener listener) throws RegistrationException {
+        reg.removeComponentListener(appInstId, component, listener);
     }
     
     public void addLocalProperty(String key, String value) throws RegistrationException {
         reg.addComponentProperty(appInstId, compId, localId, key, value);
+        localProperties.put(key, value);
+        dumpCache.invalidate(appInstId, compId);
+    }
+    
+    public void addLocalProperties(Map<String, String> properties) throws RegistrationException {
+        reg.addComponentProperties(appInstId, compId, localId, properties);
+        localProperties.putAll(properties);
+        dumpCache.invalidate(appInstId, compId);
     }
 
     public String getComponentInstanceProperty(ComponentInstanceId myId, String key) throws RegistrationException {
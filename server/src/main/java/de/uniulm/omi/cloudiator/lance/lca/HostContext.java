@@ -19,6 +19,7 @@
 package de.uniulm.omi.cloudiator.lance.lca;
 
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface HostContext {
 
@@ -33,5 +34,9 @@ public interface HostContext {
     void run(Runnable runner);
 
     ScheduledFuture<?> scheduleAction(Runnable runner);
+    
+    ScheduledFuture<?> scheduleAction(Runnable runner, long initialDelay, long period, TimeUnit unit);
+    
+    ScheduledFuture<?> scheduleDelayedAction(Runnable runner, long delay, TimeUnit unit);
 
 }
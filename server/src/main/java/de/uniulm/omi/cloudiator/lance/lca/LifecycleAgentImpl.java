@@ -24,6 +24,7 @@ import de.uniulm.omi.cloudiator.lance.application.component.DeployableComponent;
 import de.uniulm.omi.cloudiator.lance.container.spec.os.OperatingSystem;
 import de.uniulm.omi.cloudiator.lance.lca.container.*;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +59,9 @@ public class LifecycleAgentImpl implements LifecycleAgent {
             LOGGER.warn("shutting down interrupted");
         }
         containers.terminate();
+        // after the containers, as they report their final state to the registry //
+        RegistryFactory.closeSharedClients();
+        LOGGER.info("registry read statistics: " + ComponentDumpCache.getInstance());
     }
 
 
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
+
+/**
+ * write-behind buffer for the status properties of one component instance. 
+ * Updates are collected for a short window and written with a single request; 
+ * a value that is superseded within the window is never written, and a value 
+ * equal to what the registry already holds is skipped. At most one write is 
+ * in flight, so that the registry sees the values in the order they were set. 
+ * Failed writes are repeated with the next batch unless a newer value has 
+ * been set in the meantime; the delay between attempts doubles with every 
+ * failure. A write is given up after MAX_ATTEMPTS failures in a row, or right 
+ * away if the registry does not know the instance, as repeating it cannot 
+ * help then. The future of a value completes only once the value is written 
+ * or given up. Values given up are still reported by latest(), so that they 
+ * are written when the instance is registered again.
+ */
+final class StatusWriteBehind {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatusWriteBehind.class);
+    
+    /** time in milliseconds for which status updates are collected; 0 writes every update right away */
+    public static final String WRITE_BEHIND_WINDOW_KEY = "lca.registry.writebehind.millis";
+    private static final long DEFAULT_WINDOW_MILLIS = 200L;
+    
+    static final long WINDOW_MILLIS = Long.getLong(WRITE_BEHIND_WINDOW_KEY, DEFAULT_WINDOW_MILLIS).longValue();
+    private static final long RETRY_DELAY_MILLIS = 1000L;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+    /** consecutive failures after which a write is given up */
+    private static final int MAX_ATTEMPTS = 8;
+    
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lca-registry-write-behind");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    private final AsyncLcaRegistry reg;
+    private final ApplicationInstanceId appInstId;
+    private final ComponentId compId;
+    private final ComponentInstanceId instId;
+    private final Runnable onWritten;
+    
+    // guarded by this //
+    private final Map<String, String> acknowledged = new LinkedHashMap<>();
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    /** values whose write has been given up and that have not been written since */
+    private final Map<String, String> givenUp = new LinkedHashMap<>();
+    private Map<String, String> inFlight = null;
+    private CompletableFuture<Void> inFlightDone = null;
+    private CompletableFuture<Void> pendingDone = new CompletableFuture<>();
+    private boolean scheduled = false;
+    private int failures = 0;
+    
+    StatusWriteBehind(AsyncLcaRegistry regParam, ApplicationInstanceId appInstIdParam, ComponentId compIdParam, 
+                ComponentInstanceId instIdParam, Runnable onWrittenParam) {
+        reg = regParam;
+        appInstId = appInstIdParam;
+        compId = compIdParam;
+        instId = instIdParam;
+        onWritten = onWrittenParam;
+    }
+    
+    /** records a value that has been written to the registry by other means */
+    synchronized void acknowledge(String key, String value) {
+        acknowledged.put(key, value);
+    }
+    
+    /** @return the latest value of every key, whether it is in the registry, being written, or pending */
+    synchronized Map<String, String> latest() {
+        Map<String, String> values = new LinkedHashMap<>(acknowledged);
+        values.putAll(givenUp);
+        if(inFlight != null) {
+            values.putAll(inFlight);
+        }
+        values.putAll(pending);
+        return values;
+    }
+    
+    /** 
+     * @param flush if true, the buffer is written without waiting for the window to pass
+     * @return a future that completes once the value, or a newer one, is in the registry
+     */
+    synchronized CompletableFuture<Void> set(String key, String value, boolean flush) {
+        final boolean writing = inFlight != null && inFlight.containsKey(key);
+        String expected = writing ? inFlight.get(key) : acknowledged.get(key);
+        if(value.equals(expected)) {
+            // a pending value that differs has been superseded by this one //
+            if(pending.remove(key) != null && pending.isEmpty()) {
+                // no batch will be sent for the futures of the superseded values //
+                CompletableFuture<Void> superseded = pendingDone;
+                pendingDone = new CompletableFuture<>();
+                if(inFlight == null) {
+                    superseded.complete(null);
+                } else {
+                    completeWith(inFlightDone, superseded);
+                }
+            }
+            return writing ? inFlightDone : CompletableFuture.completedFuture((Void) null);
+        }
+        pending.put(key, value);
+        CompletableFuture<Void> retVal = pendingDone;
+        if(flush || WINDOW_MILLIS <= 0) {
+            send();
+        } else {
+            scheduleSend(WINDOW_MILLIS);
+        }
+        return retVal;
+    }
+    
+    private void scheduleSend(long delayMillis) {
+        if(scheduled) 
+            return;
+        scheduled = true;
+        TIMER.schedule(new Runnable() {
+            @Override public void run() {
+                synchronized(StatusWriteBehind.this) {
+                    scheduled = false;
+                    send();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /** writes the buffer unless a write is in flight; in that case, the buffer is written after it */
+    private void send() {
+        if(inFlight != null || pending.isEmpty()) 
+            return;
+        inFlight = new LinkedHashMap<>(pending);
+        inFlightDone = pendingDone;
+        pending.clear();
+        pendingDone = new CompletableFuture<>();
+        final CompletableFuture<Void> done = inFlightDone;
+        reg.addComponentProperties(appInstId, compId, instId, inFlight).whenComplete((result, failure) -> {
+            final boolean giveUp;
+            synchronized(StatusWriteBehind.this) {
+                giveUp = failure != null && (RegistryFutures.isNotKnown(failure) || failures + 1 >= MAX_ATTEMPTS);
+                if(failure == null) {
+                    failures = 0;
+                    acknowledged.putAll(inFlight);
+                    givenUp.keySet().removeAll(inFlight.keySet());
+                } else if(giveUp) {
+                    LOGGER.warn("could not write status of component instance " + instId + "; giving up.", RegistryFutures.unwrap(failure));
+                    failures = 0;
+                    givenUp.putAll(inFlight);
+                } else {
+                    failures++;
+                    LOGGER.warn("could not write status of component instance " + instId + "; retrying.", RegistryFutures.unwrap(failure));
+                    for(Map.Entry<String, String> entry : inFlight.entrySet()) {
+                        if(! pending.containsKey(entry.getKey())) 
+                            pending.put(entry.getKey(), entry.getValue());
+                    }
+                    // the values are written with the next batch, or superseded by newer ones //
+                    completeWith(pendingDone, done);
+                }
+                inFlight = null;
+                inFlightDone = null;
+                if(failures == 0) {
+                    // values that have been set during the write //
+                    send();
+                } else {
+                    // gives a failing registry some time to recover //
+                    scheduleSend(retryDelayMillis());
+                }
+            }
+            onWritten.run();
+            if(failure == null) {
+                done.complete(null);
+            } else if(giveUp) {
+                done.completeExceptionally(RegistryFutures.asRegistrationException(failure));
+            }
+        });
+    }
+    
+    /** completes the target like the source, once the source has completed */
+    private static void completeWith(CompletableFuture<Void> source, final CompletableFuture<Void> target) {
+        source.whenComplete((r, f) -> {
+            if(f == null) {
+                target.complete(null);
+            } else {
+                target.completeExceptionally(f);
+            }
+        });
+    }
+    
+    /** has to be called while holding the monitor */
+    private long retryDelayMillis() {
+        long delay = RETRY_DELAY_MILLIS << Math.min(failures - 1, 16);
+        return Math.max(WINDOW_MILLIS, Math.min(MAX_RETRY_DELAY_MILLIS, delay));
+    }
+}
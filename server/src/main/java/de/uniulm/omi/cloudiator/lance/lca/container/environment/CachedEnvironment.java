@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.environment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.lifecycle.ExecutionResult;
+
+/**
+ * remembers the environment last exported to the shells of a container and 
+ * keeps a copy of it in a file inside the container. A new shell restores the 
+ * environment from that file and is only sent the variables that have changed 
+ * since, so that e.g. a port update costs a few commands instead of two 
+ * per variable.
+ */
+public final class CachedEnvironment {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedEnvironment.class);
+    
+    private final String file;
+    // guarded by this; null as long as the file has not been written //
+    private Map<String, String> exported;
+    
+    /** @param fileParam the path of the file inside the container */
+    public CachedEnvironment(String fileParam) {
+        file = fileParam;
+    }
+    
+    /** exports all variables to the shell and replaces the content of the file */
+    public synchronized void exportAll(ShellLikeInterface shell, Map<String, String> variables) {
+        for(Entry<String, String> entry : variables.entrySet()) {
+            shell.setEnvironmentVariable(entry.getKey(), entry.getValue());
+        }
+        writeFile(shell, variables);
+    }
+    
+    /** 
+     * brings a shell to the given environment: restores the last exported 
+     * environment from the file and exports the variables that differ. 
+     * Falls back to exporting all variables if the file cannot be read.
+     */
+    public synchronized void refresh(ShellLikeInterface shell, Map<String, String> variables) {
+        if(exported == null || ! restore(shell)) {
+            exportAll(shell, variables);
+            return;
+        }
+        int changes = 0;
+        for(Entry<String, String> entry : variables.entrySet()) {
+            if(! entry.getValue().equals(exported.get(entry.getKey()))) {
+                shell.setEnvironmentVariable(entry.getKey(), entry.getValue());
+                changes++;
+            }
+        }
+        for(String name : exported.keySet()) {
+            if(! variables.containsKey(name)) {
+                shell.executeCommand("unset " + name);
+                changes++;
+            }
+        }
+        LOGGER.debug("restored environment from " + file + "; " + changes + " of " + variables.size() + " variables changed.");
+        if(changes > 0) {
+            writeFile(shell, variables);
+        }
+    }
+    
+    private boolean restore(ShellLikeInterface shell) {
+        ExecutionResult result = shell.executeCommand(". " + file);
+        if(result.isSuccess()) 
+            return true;
+        LOGGER.info("cannot restore environment from " + file + "; exporting all variables: " + result);
+        return false;
+    }
+    
+    /** one command, so that its cost does not depend on the number of variables */
+    private void writeFile(ShellLikeInterface shell, Map<String, String> variables) {
+        StringBuilder command = new StringBuilder("printf '%s\\n'");
+        for(Entry<String, String> entry : variables.entrySet()) {
+            command.append(' ').append(quote("export " + entry.getKey() + "=" + entry.getValue()));
+        }
+        command.append(" > ").append(file);
+        ExecutionResult result = shell.executeCommand(command.toString());
+        if(result.isSuccess()) {
+            exported = new LinkedHashMap<>(variables);
+        } else {
+            LOGGER.warn("could not write environment to " + file + ": " + result);
+            exported = null;
+        }
+    }
+    
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+}
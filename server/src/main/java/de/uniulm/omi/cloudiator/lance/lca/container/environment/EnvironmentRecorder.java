@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.environment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.lifecycle.ExecutionResult;
+
+/** 
+ * records the environment variables set through it instead of passing them to 
+ * a shell; used with the export visitors to find out what they would export.
+ */
+public final class EnvironmentRecorder implements ShellLikeInterface {
+
+    private final Map<String, String> variables = new LinkedHashMap<>();
+    
+    @Override
+    public ExecutionResult executeCommand(String string) {
+        throw new IllegalStateException("commands are not recorded: " + string);
+    }
+
+    @Override
+    public void setEnvironmentVariable(String key, String value) {
+        variables.put(key, value);
+    }
+    
+    /** @return the variables in the order they have been set first */
+    public Map<String, String> getVariables() {
+        return new LinkedHashMap<>(variables);
+    }
+}
@@ -19,16 +19,21 @@
 package de.uniulm.omi.cloudiator.lance.lca.container.port;
 
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
+import de.uniulm.omi.cloudiator.lance.lca.HostContext;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerException;
-import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
 import de.uniulm.omi.cloudiator.lance.lifecycle.LifecycleController;
-import de.uniulm.omi.cloudiator.lance.lifecycle.detector.PortUpdateHandler;
 
+/** 
+ * no thread waits for the registry while the sinks are queried; the 
+ * update handlers run on the agent's scheduler once all answers are in.
+ */
 final class DownstreamPortUpdater implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NetworkHandler.class);
@@ -37,33 +42,49 @@ final class DownstreamPortUpdater implements Runnable {
     private final PortRegistryTranslator portAccessor;
     private final PortHierarchy portHierarchy;
     private final LifecycleController controller;
+    private final HostContext hostContext;
     private final Object portUpdateLock = new Object();
 
     // protected by portUpdateLock
 	private boolean updateInProgress;
+	/** set if a run was requested while an update was in progress */
+	private boolean rerunRequested;
     
     DownstreamPortUpdater(OutPortHandler outPortParams, PortRegistryTranslator portAccessorParam, 
-                PortHierarchy portHierarchyParam, LifecycleController controllerParam) {
+                PortHierarchy portHierarchyParam, LifecycleController controllerParam, HostContext hostContextParam) {
         outPorts = outPortParams;
         portAccessor = portAccessorParam;
         portHierarchy = portHierarchyParam;
         controller = controllerParam;
+        hostContext = hostContextParam;
     }
     
-    private List<PortDiff<DownstreamAddress>> getUpdatedPortSet() throws RegistrationException {
+    private boolean startUpdate() {
     	synchronized(portUpdateLock) {
     		if(updateInProgress) {
-    			LOGGER.info("omitting port update. other update already in progress.");
-    			return null;
-    		}
-    		List<PortDiff<DownstreamAddress>> diffs = outPorts.getUpdatedDownstreamPorts(portAccessor, portHierarchy);
-    		if(! outPorts.requiredDownstreamPortsSet()) {
-    			LOGGER.error("not all downstream ports are available. this may cause some issues");
-    			// FIXME: what should happen is that we return to INSTALL state //
-    			return null;
+    			LOGGER.info("deferring port update. other update already in progress.");
+    			rerunRequested = true;
+    			return false;
     		}
     		updateInProgress = true;
-    		return diffs;
+    		return true;
+    	}
+    }
+    
+    /** runs again if changes have come in meanwhile; all of them result in one update */
+    private void finishUpdate() {
+    	boolean rerun;
+    	synchronized(portUpdateLock){
+    		updateInProgress = false;
+    		rerun = rerunRequested;
+    		rerunRequested = false;
+    	}
+    	if(rerun) {
+    		try {
+    			hostContext.scheduleDelayedAction(this, 0L, TimeUnit.MILLISECONDS);
+    		} catch(RejectedExecutionException ree) {
+    			LOGGER.info("omitting port update. agent is shutting down.", ree);
+    		}
     	}
     }
     
@@ -73,70 +94,61 @@ final class DownstreamPortUpdater implements Runnable {
             return;
         }
         
-        // now that we got all changed ports, for each of them
-        // call the port update handler
-        for(PortDiff<DownstreamAddress> diff : diffs) {
-            OutPort port = diff.getPort();
-            PortUpdateHandler handler = port.getUpdateHandler();
-            LOGGER.info("calling update handler for port: " + diff);
-            try {
-            	controller.blockingUpdatePorts(port, handler, diff);
-            	LOGGER.info("port update handler for port: " + diff + " done. manifesting changes.");
-            	synchronized(portUpdateLock) {
-            		outPorts.manifestChangeset(diff);
-            	}
-            } catch(ContainerException ce) {
-            	LOGGER.warn("could not update ports: " + diff, ce);
-            }
-          }
+        // now that we got all changed ports, call their port update 
+        // handlers in a single session
+        LOGGER.info("calling update handlers for ports: " + diffs);
+        try {
+        	controller.blockingUpdatePorts(diffs);
+        	LOGGER.info("port update handlers for ports: " + diffs + " done. manifesting changes.");
+        	synchronized(portUpdateLock) {
+        		for(PortDiff<DownstreamAddress> diff : diffs) {
+        			outPorts.manifestChangeset(diff);
+        		}
+        	}
+        } catch(ContainerException ce) {
+        	LOGGER.warn("could not update ports: " + diffs, ce);
+        }
     }
 
-    //FIXME: ensure only one update process running at a time
-    // add synchronized section here?
-    private void doRun() throws RegistrationException {
+    private void handleUpdatedPortSet(List<PortDiff<DownstreamAddress>> diffs, Throwable failure) {
     	try {
-    		List<PortDiff<DownstreamAddress>> diffs = getUpdatedPortSet();
-    		handleDiffSet(diffs);
-    	} finally {
-    		synchronized(portUpdateLock){
-    			updateInProgress = false;
+    		if(failure != null) {
+    			LOGGER.error("cannot access downstream ports. registry not available.", RegistryFutures.unwrap(failure));
+    		} else if(! outPorts.requiredDownstreamPortsSet()) {
+    			LOGGER.error("not all downstream ports are available. this may cause some issues");
+    			// FIXME: what should happen is that we return to INSTALL state //
+    		} else {
+    			handleDiffSet(diffs);
     		}
+    	} catch(RuntimeException re) {
+    		LOGGER.error("runtime exception occurred.", re);
+    	} catch(Error er) {
+    		LOGGER.error("error occurred.", er);
+    		throw er;
+    	} finally {
+    		finishUpdate();
     	}
-        
     }
     
+    /** only one update is running at a time; it ends when the update handlers have run */
     @Override
     public void run() {
+        if(! startUpdate()) 
+            return;
         try {
-            doRun();
-        } catch(RegistrationException ex) {
-            LOGGER.error("cannot access downstream ports. registry not available.", ex);
+            outPorts.getUpdatedDownstreamPortsAsync(portAccessor, portHierarchy).whenComplete((diffs, failure) -> {
+                try {
+                    // update handlers block; they must not run on a thread of the registry //
+                    hostContext.scheduleDelayedAction(() -> handleUpdatedPortSet(diffs, failure), 0L, TimeUnit.MILLISECONDS);
+                } catch(RejectedExecutionException ree) {
+                    LOGGER.info("omitting port update. agent is shutting down.", ree);
+                    finishUpdate();
+                }
+            });
         } catch(RuntimeException re) {
             LOGGER.error("runtime exception occurred.", re);
+            finishUpdate();
             throw re;
-        } catch(Error er) {
-            LOGGER.error("error occurred.", er);
-            throw er;
-        }
-    }
-    
-    static void pollForNeededConnections(OutPortHandler outPorts, PortRegistryTranslator portAccessor, PortHierarchy portHierarchy) {
-        while(true) {
-            try { 
-                outPorts.updateDownstreamPorts(portAccessor, portHierarchy);
-                if(outPorts.requiredDownstreamPortsSet()) {
-                    return;
-                }
-            } catch (RegistrationException e) {
-                LOGGER.warn("could not access registry for retrieving downstream ports", e);
-            }
-            LOGGER.info("did not find initial values for all required out ports; sleeping for some time... ");
-            try { 
-                Thread.sleep(3000); 
-            } catch(InterruptedException ie) {
-                LOGGER.info("thread interrupted (by system?)", ie);
-            }
         }
-        // throw new IllegalStateException();
     }
 }
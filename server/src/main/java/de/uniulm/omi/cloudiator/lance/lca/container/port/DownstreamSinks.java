@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.port;
+
+import java.util.Map;
+
+import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
+
+/** the sinks of an out port together with the version of the sink component they were read at */
+final class DownstreamSinks {
+
+    /** the sinks have been read without a version, e.g. page by page */
+    static final long UNKNOWN_VERSION = -1L;
+    
+    final long version;
+    final Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instances;
+    
+    DownstreamSinks(long versionParam, Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instancesParam) {
+        version = versionParam;
+        instances = instancesParam;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.port;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
+import de.uniulm.omi.cloudiator.lance.lca.HostContext;
+import de.uniulm.omi.cloudiator.lance.lca.container.ContainerException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
+
+/**
+ * waits for the sinks that the required out ports of a container need without 
+ * occupying a thread. Each attempt reads the sinks; if they do not suffice, the 
+ * next attempt is run on the agent's scheduler when a sink component changes or, 
+ * at the latest, after an exponentially growing delay with jitter, so that many 
+ * waiting containers do not query the registry in lockstep. The sinks are 
+ * subscribed at the {@link SinkWatcherHub}, so waiting containers share their 
+ * reads. The wait fails once the deadline has passed.
+ */
+final class NeededConnectionsWait implements ComponentChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkHandler.class);
+    
+    private static final long INITIAL_DELAY_MILLIS = 1000L;
+    private static final long MAX_DELAY_MILLIS = 30000L;
+    /** change events come in bursts; they are collected for this long */
+    private static final long COLLECT_DELAY_MILLIS = 500L;
+    
+    private final OutPortHandler outPorts;
+    private final PortRegistryTranslator portAccessor;
+    private final PortHierarchy portHierarchy;
+    private final HostContext hostContext;
+    private final long timeoutMillis;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final Set<ComponentId> subscribedSinks = new HashSet<>();
+    
+    // guarded by this //
+    private long delayMillis = INITIAL_DELAY_MILLIS;
+    private boolean attemptRunning;
+    private boolean changedDuringAttempt;
+    private ScheduledFuture<?> nextAttempt;
+    private ScheduledFuture<?> deadline;
+    
+    /** @param timeoutMillisParam 0 to wait without a deadline */
+    NeededConnectionsWait(OutPortHandler outPortsParam, PortRegistryTranslator portAccessorParam, 
+                PortHierarchy portHierarchyParam, HostContext hostContextParam, long timeoutMillisParam) {
+        outPorts = outPortsParam;
+        portAccessor = portAccessorParam;
+        portHierarchy = portHierarchyParam;
+        hostContext = hostContextParam;
+        timeoutMillis = timeoutMillisParam;
+    }
+    
+    /** @return a future that completes once all required out ports have enough sinks, 
+     * and fails with a ContainerException once the deadline has passed */
+    CompletableFuture<Void> start(List<OutPort> ports) {
+        subscribe(ports);
+        if(timeoutMillis > 0) {
+            synchronized(this) {
+                deadline = hostContext.scheduleDelayedAction(() -> finish(new ContainerException(
+                        "required downstream ports not available within " + timeoutMillis + " ms")), 
+                        timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        attempt();
+        return result;
+    }
+    
+    private void subscribe(List<OutPort> ports) {
+        try {
+            for(OutPort out : ports) {
+                ComponentId sink = portAccessor.findSinkComponent(out);
+                if(subscribedSinks.add(sink) && ! portAccessor.addSinkListener(sink, this, true)) {
+                    LOGGER.debug("sink " + sink + " is not watched; relying on retries.");
+                }
+            }
+        } catch(RegistrationException re) {
+            LOGGER.info("could not watch downstream components; relying on retries.", re);
+        }
+    }
+    
+    private void attempt() {
+        synchronized(this) {
+            if(result.isDone()) 
+                return;
+            if(attemptRunning) {
+                changedDuringAttempt = true;
+                return;
+            }
+            attemptRunning = true;
+            changedDuringAttempt = false;
+        }
+        outPorts.getUpdatedDownstreamPortsAsync(portAccessor, portHierarchy).whenComplete((diffs, failure) -> {
+            try {
+                if(failure != null) {
+                    LOGGER.warn("could not access registry for retrieving downstream ports", RegistryFutures.unwrap(failure));
+                } else {
+                    for(PortDiff<DownstreamAddress> diff : diffs) {
+                        outPorts.manifestChangeset(diff);
+                    }
+                    if(outPorts.requiredDownstreamPortsSet()) {
+                        finish(null);
+                        return;
+                    }
+                }
+                scheduleNextAttempt();
+            } catch(RuntimeException re) {
+                finish(re);
+            }
+        });
+    }
+    
+    private void scheduleNextAttempt() {
+        final long delay;
+        synchronized(this) {
+            attemptRunning = false;
+            if(result.isDone()) 
+                return;
+            if(changedDuringAttempt) {
+                delay = COLLECT_DELAY_MILLIS;
+            } else {
+                // equal jitter: at least half of the current delay //
+                delay = delayMillis / 2 + ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
+                delayMillis = Math.min(delayMillis * 2, MAX_DELAY_MILLIS);
+            }
+        }
+        LOGGER.info("did not find initial values for all required out ports; trying again in " + delay + " ms.");
+        schedule(delay);
+    }
+    
+    private void schedule(long delay) {
+        try {
+            ScheduledFuture<?> next = hostContext.scheduleDelayedAction(this::attempt, delay, TimeUnit.MILLISECONDS);
+            synchronized(this) {
+                if(nextAttempt != null) {
+                    nextAttempt.cancel(false);
+                }
+                nextAttempt = next;
+            }
+        } catch(RejectedExecutionException ree) {
+            finish(new ContainerException("agent is shutting down", ree));
+        }
+    }
+
+    @Override
+    public void componentChanged(ApplicationInstanceId instId, ComponentId compId) {
+        synchronized(this) {
+            if(result.isDone()) 
+                return;
+            if(attemptRunning) {
+                changedDuringAttempt = true;
+                return;
+            }
+            // a chatty sink (e.g. lease renewals) must not push back an attempt that is due anyway //
+            if(nextAttempt != null && ! nextAttempt.isDone() 
+                        && nextAttempt.getDelay(TimeUnit.MILLISECONDS) <= COLLECT_DELAY_MILLIS) 
+                return;
+        }
+        // the retry delay is kept; it still applies if the change does not help //
+        schedule(COLLECT_DELAY_MILLIS);
+    }
+    
+    /** ends the wait; fails it with the given exception unless that is null. Does 
+     * nothing if the wait has ended before */
+    void finish(Exception failure) {
+        synchronized(this) {
+            if(result.isDone()) 
+                return;
+            if(nextAttempt != null) {
+                nextAttempt.cancel(false);
+            }
+            if(deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+        for(ComponentId sink : subscribedSinks) {
+            portAccessor.removeSinkListener(sink, this);
+        }
+        if(failure == null) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(failure);
+        }
+    }
+}
@@ -19,18 +19,25 @@
 package de.uniulm.omi.cloudiator.lance.lca.container.port;
 
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.uniulm.omi.cloudiator.lance.application.DeploymentContext;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.application.component.DeployableComponent;
 import de.uniulm.omi.cloudiator.lance.application.component.InPort;
+import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
 import de.uniulm.omi.cloudiator.lance.lca.GlobalRegistryAccessor;
 import de.uniulm.omi.cloudiator.lance.lca.HostContext;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
@@ -42,8 +49,37 @@ public final class NetworkHandler {
 
 	public static final String UNKNOWN_ADDRESS = "<unknown>";
 	
+	/** selects how downstream ports are kept up to date: 'watch' (default) reacts 
+	 * to registry change events and only polls as a safety net; 'poll' polls only */
+	public static final String PORT_UPDATE_MODE_KEY = "lca.port.update.mode";
+	public static final String PORT_UPDATE_MODE_POLL = "poll";
+	public static final String PORT_UPDATE_MODE_WATCH = "watch";
+	/** how long no change of a sink component must have come in before its ports are updated, 
+	 * in milliseconds; all changes within a burst result in one update */
+	public static final String PORT_UPDATE_QUIET_MILLIS_KEY = "lca.port.update.quiet.millis";
+	/** how long the sinks read for one container are handed to the other containers 
+	 * of this agent if the sink component is polled rather than watched, in milliseconds */
+	public static final String SINK_SHARE_MILLIS_KEY = "lca.port.sinks.share.millis";
+	/** selects when a container waits for the sinks its required out ports need: 'bootstrap' 
+	 * (default) before any lifecycle handler runs; 'prestart' only before PRE_START, so that 
+	 * the install handlers run while the sinks are still coming up */
+	public static final String SINK_WAIT_MODE_KEY = "lca.port.sinks.wait";
+	public static final String SINK_WAIT_MODE_BOOTSTRAP = "bootstrap";
+	public static final String SINK_WAIT_MODE_PRESTART = "prestart";
+	/** how long a container waits for the sinks its required out ports need, in seconds; 
+	 * 0 (default) waits without a deadline */
+	public static final String SINK_WAIT_TIMEOUT_KEY = "lca.port.sinks.wait.timeout.seconds";
+	
+	private static final long INITIAL_UPDATE_DELAY_SECONDS = 30L;
+	private static final long SAFETY_NET_PERIOD_SECONDS = 600L;
+	private static final long DEFAULT_QUIET_MILLIS = 500L;
+	
     private static final Logger LOGGER = LoggerFactory.getLogger(NetworkHandler.class);
     private volatile ScheduledFuture<?> updateFuture = null;
+    private volatile PortUpdateTrigger updateTrigger = null;
+    private volatile NeededConnectionsWait neededConnectionsWait = null;
+    private volatile CompletableFuture<Void> neededConnections = null;
+    private final Set<ComponentId> subscribedSinks = new HashSet<>();
     
     private final PortHierarchy portHierarchy;
     private final DeployableComponent myComponent;
@@ -132,60 +168,79 @@ public final class NetworkHandler {
         state.registerValueAtLevel(level, portNumber);
     }*/
 
+    /** publishes all addresses and ports of this instance with a single registry update */
     public void publishLocalData(ComponentInstanceId myId) throws ContainerException {
-        publishLocalAddresses(myId, portAccessor);
-        publishLocalPorts(myId, portAccessor);
+        try { 
+            portAccessor.registerLocalPortsAndAddresses(inPorts, ipAddresses); 
+        } catch(RegistrationException de) {
+            LOGGER.info("problem when accessing registry", de); 
+            throw new ContainerException("could not register all ports: " + myId + "[" + de.getLocalizedMessage() + "]", de);
+        }
     }
     
-
-    /** this method loops until information from all required external
+    /** this method waits until information from all required external
      * connection is available (e.g. an application server may require 
-     * that the database is up and running). */
-    public void pollForNeededConnections() {
-        DownstreamPortUpdater.pollForNeededConnections(outPorts, portAccessor, portHierarchy);
+     * that the database is up and running). 
+     * @throws ContainerException if the deadline has passed */
+    public void pollForNeededConnections() throws ContainerException {
+        discoverNeededConnections();
+        awaitNeededConnections();
     }
     
-    private void publishLocalAddresses(ComponentInstanceId myId, PortRegistryTranslator registryAccessor) throws ContainerException {
-        List<String> failed = new LinkedList<>();
-        
-        for(PortHierarchyLevel level : ipAddresses) {
-            try { 
-                registryAccessor.registerLocalAddressAtLevel(level, ipAddresses.valueAtLevel(level)); 
-            } catch(RegistrationException de) {
-                LOGGER.info("problem when accessing registry", de); 
-                failed.add(de.getLocalizedMessage());
-            }        
-        }
-        
-        if(failed.isEmpty()) {
-            return;
-        }
-        throw new ContainerException("could register all ports: " + myId + "[" + failed.toString() + "]");
+    /** @return true if the needed connections are only awaited before PRE_START */
+    public static boolean waitsForSinksBeforePreStart() {
+        return SINK_WAIT_MODE_PRESTART.equals(System.getProperty(SINK_WAIT_MODE_KEY, SINK_WAIT_MODE_BOOTSTRAP));
     }
     
-    private void publishLocalPorts(ComponentInstanceId myId, PortRegistryTranslator registryAccessor) throws ContainerException {
-        List<String> failed = new LinkedList<>();
-        
-        for(Map.Entry<String, HierarchyLevelState<Integer>> entry : inPorts.entrySet()) {
-            HierarchyLevelState<Integer> state = entry.getValue();
-            for(PortHierarchyLevel level : state) {
-                try { 
-                    registryAccessor.registerLocalPortAtLevel(entry.getKey(), level, state.valueAtLevel(level)); 
-                } catch(RegistrationException de) {
-                    LOGGER.info("problem when accessing registry", de); 
-                    failed.add(de.getLocalizedMessage());
-                }        
-            }
+    /** starts looking for the needed connections, but does not wait for them; 
+     * see {@link #awaitNeededConnections()} */
+    public void discoverNeededConnections() {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Long.getLong(SINK_WAIT_TIMEOUT_KEY, 0L).longValue());
+        NeededConnectionsWait wait = new NeededConnectionsWait(outPorts, portAccessor, portHierarchy, hostContext, timeoutMillis);
+        neededConnectionsWait = wait;
+        neededConnections = wait.start(myComponent.getDownstreamPorts());
+    }
+    
+    /** stops looking for the needed connections, e.g. as the container has failed or 
+     * is being destroyed; a later {@link #awaitNeededConnections()} fails */
+    public void cancelNeededConnections() {
+        NeededConnectionsWait wait = neededConnectionsWait;
+        if(wait != null) {
+            wait.finish(new CancellationException("container does not need its downstream ports any longer"));
         }
-        if(failed.isEmpty()) {
+    }
+    
+    /** waits until the connections looked for by {@link #discoverNeededConnections()} are 
+     * available; returns right away if they are or if they have not been looked for */
+    public void awaitNeededConnections() throws ContainerException {
+        CompletableFuture<Void> found = neededConnections;
+        if(found == null) 
             return;
+        if(! found.isDone()) {
+            LOGGER.info("waiting for required downstream ports.");
+        }
+        try {
+            found.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ContainerException("interrupted while waiting for required downstream ports", ie);
+        } catch(ExecutionException ee) {
+            throw new ContainerException("could not find required downstream ports", ee.getCause());
+        } catch(CancellationException ce) {
+            throw new ContainerException("waiting for required downstream ports has been cancelled", ce);
         }
-        throw new ContainerException("could register all ports: " + myId + "[" + failed.toString() + "]");
     }
-
+    
     public void startPortUpdaters(LifecycleController controller) {
-        DownstreamPortUpdater updater = new DownstreamPortUpdater(outPorts, portAccessor, portHierarchy, controller);
-        ScheduledFuture<?> sf = hostContext.scheduleAction(updater);
+        DownstreamPortUpdater updater = new DownstreamPortUpdater(outPorts, portAccessor, portHierarchy, controller, hostContext);
+        ScheduledFuture<?> sf = null;
+        long quietMillis = Long.getLong(PORT_UPDATE_QUIET_MILLIS_KEY, DEFAULT_QUIET_MILLIS).longValue();
+        if(subscribeToSinks(new PortUpdateTrigger(updater, hostContext, quietMillis), watchModeEnabled())) {
+            // changes are pushed to us; keep polling only as a safety net //
+            sf = hostContext.scheduleAction(updater, INITIAL_UPDATE_DELAY_SECONDS, SAFETY_NET_PERIOD_SECONDS, TimeUnit.SECONDS);
+        } else {
+            sf = hostContext.scheduleAction(updater);
+        }
         updateFuture = sf;
     }
     
@@ -196,9 +251,61 @@ public final class NetworkHandler {
         } else {
             sf.cancel(false);
         }
+        unsubscribeFromSinks();
+    }
+    
+    private static boolean watchModeEnabled() {
+        String mode = System.getProperty(PORT_UPDATE_MODE_KEY, PORT_UPDATE_MODE_WATCH);
+        return !PORT_UPDATE_MODE_POLL.equals(mode);
+    }
+    
+    /** 
+     * subscribes to all sinks in either mode, so that their reads are shared with the 
+     * other containers of this agent.
+     * @return true if all sinks are watched; false if polling is required 
+     */
+    private boolean subscribeToSinks(PortUpdateTrigger trigger, boolean watch) {
+        boolean watched = watch;
+        synchronized(subscribedSinks) {
+            updateTrigger = trigger;
+            try {
+                for(ComponentId sink : findDistinctSinks()) {
+                    if(! subscribedSinks.add(sink)) 
+                        continue;
+                    watched = portAccessor.addSinkListener(sink, trigger, watch) && watched;
+                }
+            } catch(RegistrationException re) {
+                LOGGER.warn("could not subscribe to downstream components; falling back to polling.", re);
+                return false;
+            }
+        }
+        if(watch && !watched) {
+            LOGGER.info("registry does not support change notifications; polling for port updates.");
+        }
+        return watched;
+    }
+    
+    private Set<ComponentId> findDistinctSinks() throws RegistrationException {
+        Set<ComponentId> sinks = new HashSet<>();
+        for(OutPort out : myComponent.getDownstreamPorts()) {
+            sinks.add(portAccessor.findSinkComponent(out));
+        }
+        return sinks;
+    }
+    
+    private void unsubscribeFromSinks() {
+        synchronized(subscribedSinks) {
+            PortUpdateTrigger trigger = updateTrigger;
+            for(ComponentId sink : subscribedSinks) {
+                portAccessor.removeSinkListener(sink, trigger);
+            }
+            subscribedSinks.clear();
+            updateTrigger = null;
+        }
     }
 
-    public void accept(NetworkVisitor visitor, PortDiff<DownstreamAddress> diffSet) {
+    /** exports the sinks of the diffs instead of the current ones for the ports they belong to */
+    public void accept(NetworkVisitor visitor, List<PortDiff<DownstreamAddress>> diffs) {
         for(PortHierarchyLevel level : ipAddresses) {
             visitor.visitNetworkAddress(level, ipAddresses.valueAtLevel(level));
         }
@@ -211,7 +318,7 @@ public final class NetworkHandler {
             }    
         }
         
-        outPorts.accept(visitor, diffSet);
+        outPorts.accept(visitor, diffs);
     }
 
     public void updateAddress(PortHierarchyLevel level2Param, String containerIp) {
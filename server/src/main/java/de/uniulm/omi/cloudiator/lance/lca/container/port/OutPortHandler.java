@@ -25,6 +25,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,7 @@ import de.uniulm.omi.cloudiator.lance.application.component.DeployableComponent;
 import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
 
 final class OutPortHandler {
 
@@ -60,9 +62,13 @@ final class OutPortHandler {
             return;
         }
         
+        // all sinks are queried at once instead of one after the other //
+        List<CompletableFuture<Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>>>> queries = new ArrayList<>();
         for(OutPort out : outPorts) {
-            Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instances = accessor.findDownstreamInstances(out, portHierarchy);
-            OutPortState state = new OutPortState(out, instances);
+            queries.add(accessor.findDownstreamInstancesAsync(out, portHierarchy));
+        }
+        for(int i = 0; i < outPorts.size(); i++) {
+            OutPortState state = new OutPortState(outPorts.get(i), RegistryFutures.await(queries.get(i)));
             portStates.add(state);
         }
     }
@@ -75,17 +81,34 @@ final class OutPortHandler {
      * @throws RegistrationException
      */
     List<PortDiff<DownstreamAddress>> getUpdatedDownstreamPorts(PortRegistryTranslator accessor, PortHierarchy portHierarchy) throws RegistrationException {
-        List<PortDiff<DownstreamAddress>> changedPorts = new LinkedList<>();
+        return RegistryFutures.await(getUpdatedDownstreamPortsAsync(accessor, portHierarchy));
+    }
+    
+    /** 
+     * queries the sinks of all ports at once; the diffs are computed once all answers have arrived. 
+     * Ports whose sink component is still at the version of their current sinks are skipped.
+     */
+    CompletableFuture<List<PortDiff<DownstreamAddress>>> getUpdatedDownstreamPortsAsync(PortRegistryTranslator accessor, PortHierarchy portHierarchy) {
+        final List<CompletableFuture<DownstreamSinks>> queries = new ArrayList<>();
         for(OutPortState outPort : portStates) {
-            Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instances = accessor.findDownstreamInstances(outPort.getPort(), portHierarchy);
-            instances = filterInstancesWithUnsetPorts(instances);
-            PortDiff<DownstreamAddress> diff = outPort.computeDiffSet(instances);
-            //outdated code: updateWithDiff(instances);
-            if(diff.hasDiffs()) {
-                changedPorts.add(diff);
-            }
+            queries.add(accessor.findDownstreamSinksAsync(outPort.getPort(), portHierarchy));
         }
-        return changedPorts;
+        return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[queries.size()])).thenApply(done -> {
+            List<PortDiff<DownstreamAddress>> changedPorts = new LinkedList<>();
+            for(int i = 0; i < portStates.size(); i++) {
+                DownstreamSinks sinks = queries.get(i).join();
+                if(portStates.get(i).isAtVersion(sinks.version)) {
+                    continue;
+                }
+                Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instances = filterInstancesWithUnsetPorts(sinks.instances);
+                PortDiff<DownstreamAddress> diff = portStates.get(i).computeDiffSet(instances, sinks.version);
+                //outdated code: updateWithDiff(instances);
+                if(diff.hasDiffs()) {
+                    changedPorts.add(diff);
+                }
+            }
+            return changedPorts;
+        });
     }
     
     void updateDownstreamPorts(PortRegistryTranslator accessor, PortHierarchy portHierarchy) throws RegistrationException {
@@ -124,10 +147,12 @@ final class OutPortHandler {
         return retVal;
     }
 
-    void accept(NetworkVisitor visitor, PortDiff<DownstreamAddress> diffSet) {
+    /** the sinks of ports that have a diff are taken from the diff */
+    void accept(NetworkVisitor visitor, List<PortDiff<DownstreamAddress>> diffs) {
         for(OutPortState out : portStates) {
         	Map<PortHierarchyLevel, List<DownstreamAddress>> elements = null;
-        	if(diffSet != null && out.matchesPort(diffSet.getPort())) {
+        	PortDiff<DownstreamAddress> diffSet = findDiff(out, diffs);
+        	if(diffSet != null) {
         		elements = OutPortState.orderSinksByHierarchyLevel(diffSet.getCurrentSinkSet());
         	} else {
         		elements = out.sinksByHierarchyLevel();
@@ -139,6 +164,15 @@ final class OutPortHandler {
         }
     }
     
+    private static PortDiff<DownstreamAddress> findDiff(OutPortState out, List<PortDiff<DownstreamAddress>> diffs) {
+        for(PortDiff<DownstreamAddress> diff : diffs) {
+            if(out.matchesPort(diff.getPort())) {
+                return diff;
+            }
+        }
+        return null;
+    }
+    
     private static Map<PortHierarchyLevel, List<DownstreamAddress>> doCollect(OutPortState out, Map<PortHierarchyLevel, List<DownstreamAddress>> elements) {
         Map<PortHierarchyLevel, List<DownstreamAddress>> toVisit = new HashMap<>();        
         for(Entry<PortHierarchyLevel, List<DownstreamAddress>> entry : elements.entrySet()) {
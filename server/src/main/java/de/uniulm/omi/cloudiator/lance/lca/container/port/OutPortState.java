@@ -36,6 +36,8 @@ public final class OutPortState {
     private final Object lock = new Object();
     private final OutPort thePort;
     private final Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> possibleSinks;
+    /** the version of the sink component possibleSinks correspond to; guarded by lock */
+    private long sinkVersion = DownstreamSinks.UNKNOWN_VERSION;
 
     public OutPortState(OutPort outPortParam,
         Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> instancesParam) {
@@ -57,12 +59,36 @@ public final class OutPortState {
 
     PortDiff<DownstreamAddress> computeDiffSet(
         Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> newSinks) {
+        return computeDiffSet(newSinks, DownstreamSinks.UNKNOWN_VERSION);
+    }
+
+    /**
+     * @param version the version of the sink component the new sinks were read at
+     * @return the diff set; if it is empty, the current sinks are known to correspond to that version.
+     */
+    PortDiff<DownstreamAddress> computeDiffSet(
+        Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> newSinks, long version) {
         Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> oldSinks =
             getCurrentSinkSet();
-        PortDiff<DownstreamAddress> diff = new PortDiff<>(newSinks, oldSinks, thePort);
+        PortDiff<DownstreamAddress> diff = new PortDiff<>(newSinks, oldSinks, thePort, version);
+        if (!diff.hasDiffs()) {
+            synchronized (lock) {
+                sinkVersion = version;
+            }
+        }
         return diff;
     }
 
+    /**
+     * @return true if the current sinks have been derived from this version of the
+     * sink component, so that there cannot be a diff.
+     */
+    boolean isAtVersion(long version) {
+        synchronized (lock) {
+            return version != DownstreamSinks.UNKNOWN_VERSION && version == sinkVersion;
+        }
+    }
+
     /**
      * @param diff the diff set to apply
      * @return true if the port of the OutPort of the diff set matches the OutPort maintained by this OutPortState.
@@ -78,7 +104,7 @@ public final class OutPortState {
             diff.getOldSinkSet();
 
         Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> compOldSinks =
-            installNewSinks(newSinks);
+            installNewSinks(newSinks, diff.getVersion());
         if (!oldSinks.equals(compOldSinks)) {
             LOGGER.warn(
                 "old sinks do not match; do we have concurrency pvroblems?" + oldSinks + " vs "
@@ -95,7 +121,7 @@ public final class OutPortState {
         PortDiff<DownstreamAddress> diff = new PortDiff<>(newSinks, oldSinks, thePort);
 
         Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> compOldSinks =
-            installNewSinks(newSinks);
+            installNewSinks(newSinks, DownstreamSinks.UNKNOWN_VERSION);
         if (!oldSinks.equals(compOldSinks)) {
             LOGGER.warn("old sinks do not match; do we have concurrency problems?");
         }
@@ -168,12 +194,13 @@ public final class OutPortState {
     }
 
     private Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> installNewSinks(
-        Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> newSinksParam) {
+        Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> newSinksParam, long version) {
         HashMap<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> old = null;
         synchronized (lock) {
             old = new HashMap<>(possibleSinks);
             possibleSinks.clear();
             possibleSinks.putAll(newSinksParam);
+            sinkVersion = version;
         }
         return old;
     }
@@ -35,10 +35,18 @@ public final class PortDiff<T> {
     private final Set<ComponentInstanceId> added;
     private final Set<ComponentInstanceId> removed;
     private final Set<ComponentInstanceId> diffSet;
+    /** the version of the sink component the new sinks were read at */
+    private final long version;
     
     PortDiff(Map<ComponentInstanceId, HierarchyLevelState<T>> newSinksParam,
             Map<ComponentInstanceId, HierarchyLevelState<T>> oldSinksParam,
             OutPort myPortParam) {
+        this(newSinksParam, oldSinksParam, myPortParam, DownstreamSinks.UNKNOWN_VERSION);
+    }
+    
+    PortDiff(Map<ComponentInstanceId, HierarchyLevelState<T>> newSinksParam,
+            Map<ComponentInstanceId, HierarchyLevelState<T>> oldSinksParam,
+            OutPort myPortParam, long versionParam) {
         
     	if(myPortParam == null) 
     		throw new NullPointerException("port cannot be  null");
@@ -49,6 +57,7 @@ public final class PortDiff<T> {
         removed = inFirstNotInSecond(oldSinksParam, newSinksParam);
         diffSet = diffPerElement(oldSinksParam);
         myPort = myPortParam;
+        version = versionParam;
     }
 
     private Set<ComponentInstanceId> diffPerElement(Map<ComponentInstanceId, HierarchyLevelState<T>> old) {
@@ -101,6 +110,10 @@ public final class PortDiff<T> {
         return myPort;
     }
     
+    long getVersion() {
+        return version;
+    }
+    
     @Override
     public String toString() {
     	return "PortDiff ( " + myPort + "): +[" + added + "]; -[" + removed + "]"; 
@@ -23,10 +23,15 @@ import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
 import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
 import de.uniulm.omi.cloudiator.lance.application.component.PortReference;
 import de.uniulm.omi.cloudiator.lance.lca.GlobalRegistryAccessor;
@@ -34,7 +39,11 @@ import de.uniulm.omi.cloudiator.lance.lca.HostContext;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerStatus;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.PortHierarchy.PortHierarchyBuilder;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentQuery;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentSnapshot;
 import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistryFutures;
 
 public final class PortRegistryTranslator {
 	
@@ -79,6 +88,9 @@ public final class PortRegistryTranslator {
     
     private final HostContext hostContext;
     private final GlobalRegistryAccessor accessor;
+    private final SinkWatcherHub sinkHub = SinkWatcherHub.getInstance();
+    /** the sinks last derived per sink port, keyed by component and port name; reused as long as the snapshot is the same */
+    private final ConcurrentMap<String, SinkMemo> sinkMemos = new ConcurrentHashMap<>();
     
     public PortRegistryTranslator(GlobalRegistryAccessor accessorParam, HostContext context) {
         accessor = accessorParam;
@@ -90,6 +102,20 @@ public final class PortRegistryTranslator {
         accessor.addLocalProperty(key, value.toString());
     }
     
+    public void registerLocalPortsAndAddresses(Map<String, HierarchyLevelState<Integer>> ports, HierarchyLevelState<String> addresses) throws RegistrationException {
+        Map<String, String> properties = new HashMap<>();
+        for(PortHierarchyLevel level : addresses) {
+            properties.put(buildFullHostName(level), addresses.valueAtLevel(level));
+        }
+        for(Entry<String, HierarchyLevelState<Integer>> entry : ports.entrySet()) {
+            HierarchyLevelState<Integer> state = entry.getValue();
+            for(PortHierarchyLevel level : state) {
+                properties.put(buildFullPortName(entry.getKey(), level), state.valueAtLevel(level).toString());
+            }
+        }
+        accessor.addLocalProperties(properties);
+    }
+    
     public Integer findPortAtLevel(ComponentInstanceId myId, String portName, PortHierarchyLevel level) throws RegistrationException {
         String key = buildFullPortName(portName, level);
         try {
@@ -116,16 +142,91 @@ public final class PortRegistryTranslator {
     
     /* define 3 levels of hierarchy throughout the applicatin */
     public Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> findDownstreamInstances(OutPort out, PortHierarchy portHierarchy) throws RegistrationException {
-        PortReference sinkReference = null;        
+        return RegistryFutures.await(findDownstreamInstancesAsync(out, portHierarchy));
+    }
+    
+    /** does not wait for the registry; the future fails with a RegistrationException. */
+    public CompletableFuture<Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>>> findDownstreamInstancesAsync(OutPort out, final PortHierarchy portHierarchy) {
+        return findDownstreamSinksAsync(out, portHierarchy).thenApply(sinks -> sinks.instances);
+    }
+    
+    /** the sinks of subscribed sink components are shared by all containers of the agent; see {@link SinkWatcherHub} */
+    CompletableFuture<DownstreamSinks> findDownstreamSinksAsync(OutPort out, PortHierarchy portHierarchy) {
+        final PortReference sinkReference;
+        try {
+            sinkReference = findSinkReference(out);
+        } catch(RegistrationException re) {
+            return RegistryFutures.failed(re);
+        }
+        return sinkHub.findSinks(accessor, sinkReference, portHierarchy, this::readSinksAsync);
+    }
+    
+    /** 
+     * if the agent caches the sink component, the sinks are derived from the cached 
+     * snapshot and carry its version; an unchanged snapshot yields the very same result. 
+     * Otherwise, e.g. if the component is too large to be cached, it is read page by page, only the addresses of each page are 
+     * kept, and the version is unknown.
+     */
+    private CompletableFuture<DownstreamSinks> readSinksAsync(final PortReference sinkReference, final PortHierarchy portHierarchy) {
+        if(accessor.isCachingComponent(sinkReference)) {
+            return accessor.retrieveComponentSnapshotAsync(sinkReference).thenApply(snapshot -> 
+                        getSinks(sinkReference, snapshot, portHierarchy));
+        }
+        final Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> addresses = new HashMap<>();
+        return accessor.scanComponent(sinkReference, buildSinkQuery(sinkReference, portHierarchy), page -> 
+                    addresses.putAll(getHierarchicalPorts(sinkReference, page, portHierarchy)))
+                .thenApply(done -> new DownstreamSinks(DownstreamSinks.UNKNOWN_VERSION, addresses));
+    }
+    
+    private DownstreamSinks getSinks(PortReference sinkReference, ComponentSnapshot snapshot, PortHierarchy portHierarchy) {
+        final String memoKey = sinkReference.getComponentId() + "/" + sinkReference.getPortName();
+        SinkMemo memo = sinkMemos.get(memoKey);
+        if(memo != null && memo.matches(sinkReference, snapshot, portHierarchy)) 
+            return memo.sinks;
+        try {
+            DownstreamSinks sinks = new DownstreamSinks(snapshot.getVersion(), getHierarchicalPorts(sinkReference, snapshot, portHierarchy));
+            sinkMemos.put(memoKey, new SinkMemo(sinkReference, snapshot, portHierarchy, sinks));
+            return sinks;
+        } catch(RegistrationException re) {
+            throw new CompletionException(re);
+        }
+    }
+    
+    /** only ready instances and only their addresses and the port of the sink */
+    private static ComponentQuery buildSinkQuery(PortReference sinkReference, PortHierarchy portHierarchy) {
+        ComponentQuery.ComponentQueryBuilder builder = GlobalRegistryAccessor.queryForContainerStatus(ContainerStatus.READY);
+        for(PortHierarchyLevel level : portHierarchy.levels()) {
+            builder.selectKey(buildFullPortName(sinkReference.getPortName(), level));
+            builder.selectKey(buildFullHostName(level));
+        }
+        return builder.build();
+    }
+    
+    public ComponentId findSinkComponent(OutPort out) throws RegistrationException {
+        return findSinkReference(out).getComponentId();
+    }
+    
+    /** 
+     * subscribes to the sink component at the agent-wide hub, so that its sinks are shared 
+     * with other containers; the registry is watched at most once per sink component.
+     * @param watch false if the listener polls anyway
+     * @return true if the listener will be told about changes of the sink component 
+     */
+    public boolean addSinkListener(ComponentId sinkComponent, ComponentChangeListener listener, boolean watch) throws RegistrationException {
+        return sinkHub.subscribe(accessor, sinkComponent, listener, watch);
+    }
+    
+    public void removeSinkListener(ComponentId sinkComponent, ComponentChangeListener listener) {
+        sinkHub.unsubscribe(accessor, sinkComponent, listener);
+    }
+    
+    private PortReference findSinkReference(OutPort out) throws RegistrationException {
         Object o = accessor.getLocalProperty(out.getName(), OutPort.class);
         try { 
-            sinkReference = (PortReference) o;
+            return (PortReference) o;
         } catch(ClassCastException cce) {
             throw new IllegalStateException("sink unknown: port '" + out.getName() + "' not correctly wired.", cce);
         }
-        
-        Map<ComponentInstanceId, Map<String, String>> dump = accessor.retrieveComponentDump(sinkReference);
-        return getHierarchicalPorts(sinkReference, dump, portHierarchy);
     }
     
     private static boolean isValidPortOrUnset(Integer i) {
@@ -166,6 +267,49 @@ public final class PortRegistryTranslator {
         return addresses;
     }
 
+    /** works on the pre-parsed values of the snapshot; same checks as for maps */
+    private static Map<ComponentInstanceId, HierarchyLevelState<DownstreamAddress>> getHierarchicalPorts(PortReference sinkReference, ComponentSnapshot snapshot, PortHierarchy portHierarchy) throws RegistrationException {
+        Map<ComponentInstanceId,HierarchyLevelState<DownstreamAddress>> addresses = new HashMap<>(); 
+        for(int row = 0; row < snapshot.size(); row++) {
+            if(snapshot.getContainerStatus(row) != ContainerStatus.READY) 
+                continue;
+            ComponentInstanceId id = snapshot.getId(row);
+            HierarchyLevelState<DownstreamAddress> state = new HierarchyLevelState<>(id.toString(), portHierarchy);
+            boolean forAll = true;
+            for(PortHierarchyLevel level : portHierarchy.levels()) {
+                Integer i = getHierarchicalPort(sinkReference, snapshot, row, level);
+                String hostKey = buildFullHostName(level);
+                String ip = checkHostname(hostKey, snapshot.getValue(row, snapshot.indexOfKey(hostKey)));
+                if(ip == null) {
+                    forAll = false;
+                    continue;
+                }
+                state.registerValueAtLevel(level, new DownstreamAddress(ip, i));
+            }
+            if(forAll) { // only pass on when we found sth for all levels.
+                addresses.put(id, state);
+            }
+        }
+        return addresses;
+    }
+    
+    private static Integer getHierarchicalPort(PortReference sinkReference, ComponentSnapshot snapshot, int row, PortHierarchyLevel level) throws RegistrationException {
+        String key = buildFullPortName(sinkReference.getPortName(), level);
+        int column = snapshot.indexOfKey(key);
+        int number = snapshot.getNumber(row, column);
+        if(number == ComponentSnapshot.NO_NUMBER) {
+            String value = snapshot.getValue(row, column);
+            if(value == null) 
+                throw new RegistrationException("port with '" + key + "' has not been found. Value was null.");
+            throw new RegistrationException("(" + key + ") " + " value was not an expected number: " + value);
+        }
+        Integer i = Integer.valueOf(number);
+        if(isValidPortOrUnset(i)) {
+            return i;
+        }
+        throw new RegistrationException("(" + key + ") " + " received an unexpected result");
+    }
+
 	private static Integer getHierarchicalPort(PortReference sinkReference, Map<String, String> dump, PortHierarchyLevel level) throws RegistrationException {
         String key = buildFullPortName(sinkReference.getPortName(), level);
         String value = dump.get(key);
@@ -187,7 +331,10 @@ public final class PortRegistryTranslator {
     
     private static String getHierarchicalHostname(PortHierarchyLevel level, Map<String, String> dump) throws RegistrationException {
         String key = buildFullHostName(level);
-        String value = dump.get(key);
+        return checkHostname(key, dump.get(key));
+    }
+    
+    private static String checkHostname(String key, String value) throws RegistrationException {
         if(value == null) {
         	throw new RegistrationException("ipaddress for '" + key + "' has not been found. Value was null.");
         }
@@ -200,4 +347,24 @@ public final class PortRegistryTranslator {
             throw new RegistrationException("illegal IP address: " + value, uhe);
         } return value;
     }
+    
+    /** a snapshot belongs to one component, so the sink is identified by the snapshot and the port name */
+    private static final class SinkMemo {
+        
+        private final String sinkPortName;
+        private final ComponentSnapshot snapshot;
+        private final PortHierarchy portHierarchy;
+        final DownstreamSinks sinks;
+        
+        SinkMemo(PortReference sinkReferenceParam, ComponentSnapshot snapshotParam, PortHierarchy portHierarchyParam, DownstreamSinks sinksParam) {
+            sinkPortName = sinkReferenceParam.getPortName();
+            snapshot = snapshotParam;
+            portHierarchy = portHierarchyParam;
+            sinks = sinksParam;
+        }
+        
+        boolean matches(PortReference sinkReferenceParam, ComponentSnapshot snapshotParam, PortHierarchy portHierarchyParam) {
+            return snapshot == snapshotParam && portHierarchy == portHierarchyParam && sinkPortName.equals(sinkReferenceParam.getPortName());
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.port;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.lca.HostContext;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+
+/** 
+ * runs the port updater once a sink component has changed. as a scale-out 
+ * results in a burst of registry events, the updater only runs once no event 
+ * has come in for a quiet window, but no later than a maximum delay after the 
+ * first event. All changes of the burst then result in one diff per port and 
+ * in one run of the port update handlers.
+ */
+final class PortUpdateTrigger implements ComponentChangeListener {
+
+    /** the maximum delay is this many quiet windows */
+    private static final long MAX_DELAY_WINDOWS = 20L;
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkHandler.class);
+    
+    private final DownstreamPortUpdater updater;
+    private final HostContext hostContext;
+    private final long quietMillis;
+    private final Object lock = new Object();
+    
+    // guarded by lock; times are System.nanoTime(), so that clock adjustments do not matter //
+    private boolean pending;
+    private long firstEventAt;
+    private long lastEventAt;
+    
+    PortUpdateTrigger(DownstreamPortUpdater updaterParam, HostContext hostContextParam, long quietMillisParam) {
+        updater = updaterParam;
+        hostContext = hostContextParam;
+        quietMillis = quietMillisParam;
+    }
+    
+    @Override
+    public void componentChanged(ApplicationInstanceId instId, ComponentId compId) {
+        final long now = System.nanoTime();
+        synchronized(lock) {
+            lastEventAt = now;
+            if(pending) {
+                return; // the scheduled check will see this event //
+            }
+            pending = true;
+            firstEventAt = now;
+        }
+        schedule(quietMillis);
+    }
+    
+    private void schedule(long delayMillis) {
+        try {
+            hostContext.scheduleDelayedAction(new Runnable() {
+                @Override public void run() {
+                    fireIfQuiet();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException ree) {
+            LOGGER.info("omitting port update. agent is shutting down.", ree);
+            // lets a later event try again instead of waiting for a check that never runs //
+            synchronized(lock) {
+                pending = false;
+            }
+        }
+    }
+    
+    private void fireIfQuiet() {
+        final long now = System.nanoTime();
+        final long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        final long remaining;
+        synchronized(lock) {
+            long quietFor = now - lastEventAt;
+            if(quietFor < quietNanos && now - firstEventAt < quietNanos * MAX_DELAY_WINDOWS) {
+                // rounded up, so that the next check does not come too early //
+                remaining = TimeUnit.NANOSECONDS.toMillis(quietNanos - quietFor + 999999L);
+            } else {
+                pending = false;
+                remaining = 0L;
+            }
+        }
+        if(remaining > 0L) {
+            schedule(remaining);
+        } else {
+            updater.run();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014-2015 University of Ulm
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.  Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.uniulm.omi.cloudiator.lance.lca.container.port;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniulm.omi.cloudiator.lance.application.ApplicationInstanceId;
+import de.uniulm.omi.cloudiator.lance.application.component.ComponentId;
+import de.uniulm.omi.cloudiator.lance.application.component.PortReference;
+import de.uniulm.omi.cloudiator.lance.lca.GlobalRegistryAccessor;
+import de.uniulm.omi.cloudiator.lance.lca.registry.ComponentChangeListener;
+import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
+
+/**
+ * agent-wide hub for the sink components of all containers. For each 
+ * application instance and sink component, there is at most one registry 
+ * watch, whose events are passed on to all subscribed containers, and at 
+ * most one read at a time. The sinks derived from a read are handed to 
+ * all containers that ask for the same sink port until the component 
+ * changes. Hence, registry load grows with the number of distinct sinks 
+ * instead of the number of containers. Only subscribed sinks are shared; 
+ * reads before the port updaters have been started go to the registry.
+ */
+final class SinkWatcherHub {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkHandler.class);
+    
+    private static final long DEFAULT_SHARE_MILLIS = 5000L;
+    /** watched sinks are re-read after this time even without a change, so that polling remains a safety net */
+    private static final long WATCHED_MAX_AGE_MILLIS = 60000L;
+    
+    private static final SinkWatcherHub INSTANCE = new SinkWatcherHub(
+            Long.getLong(NetworkHandler.SINK_SHARE_MILLIS_KEY, DEFAULT_SHARE_MILLIS).longValue());
+    
+    static SinkWatcherHub getInstance() {
+        return INSTANCE;
+    }
+    
+    /** reads the sinks of a sink port from the registry */
+    interface SinkReader {
+        CompletableFuture<DownstreamSinks> read(PortReference sinkReference, PortHierarchy portHierarchy);
+    }
+    
+    private final long shareMillis;
+    // guarded by itself //
+    private final Map<SinkKey, SinkWatch> watches = new HashMap<>();
+    
+    SinkWatcherHub(long shareMillisParam) {
+        shareMillis = shareMillisParam;
+    }
+    
+    /** 
+     * @param watch false if the subscriber polls anyway
+     * @return true if the listener will be told about changes of the sink component; 
+     * false if it has to poll 
+     */
+    boolean subscribe(GlobalRegistryAccessor accessor, ComponentId sink, ComponentChangeListener listener, boolean watch) throws RegistrationException {
+        SinkKey key = new SinkKey(accessor.getApplicationInstanceId(), sink);
+        synchronized(watches) {
+            SinkWatch w = watches.get(key);
+            if(w == null) {
+                w = new SinkWatch(key);
+                watches.put(key, w);
+            }
+            w.subscribers.add(listener);
+            if(watch && w.watchedBy == null && !w.unwatchable) {
+                w.watch(accessor);
+            }
+            return watch && w.watchedBy != null;
+        }
+    }
+    
+    void unsubscribe(GlobalRegistryAccessor accessor, ComponentId sink, ComponentChangeListener listener) {
+        SinkKey key = new SinkKey(accessor.getApplicationInstanceId(), sink);
+        synchronized(watches) {
+            SinkWatch w = watches.get(key);
+            if(w == null) 
+                return;
+            w.subscribers.remove(listener);
+            if(w.subscribers.isEmpty()) {
+                watches.remove(key);
+                w.unwatch();
+            }
+        }
+    }
+    
+    /** @return the sinks shared with other containers if the sink component is subscribed; a fresh read otherwise */
+    CompletableFuture<DownstreamSinks> findSinks(GlobalRegistryAccessor accessor, PortReference sinkReference, PortHierarchy portHierarchy, SinkReader reader) {
+        SinkWatch w;
+        synchronized(watches) {
+            w = watches.get(new SinkKey(accessor.getApplicationInstanceId(), sinkReference.getComponentId()));
+        }
+        if(w == null) 
+            return reader.read(sinkReference, portHierarchy);
+        return w.get(sinkReference, portHierarchy, reader);
+    }
+    
+    private final class SinkWatch implements ComponentChangeListener {
+        
+        private final SinkKey key;
+        private final List<ComponentChangeListener> subscribers = new CopyOnWriteArrayList<>();
+        // written while holding watches //
+        private volatile GlobalRegistryAccessor watchedBy;
+        private boolean unwatchable;
+        
+        // guarded by this //
+        /** increased with every change event; results of earlier generations are not handed out */
+        private long generation;
+        private final Map<SinkView, SharedRead> reads = new HashMap<>();
+        
+        SinkWatch(SinkKey keyParam) {
+            key = keyParam;
+        }
+        
+        void watch(GlobalRegistryAccessor accessor) {
+            try {
+                if(accessor.addComponentListener(key.compId, this)) {
+                    watchedBy = accessor;
+                } else {
+                    unwatchable = true;
+                }
+            } catch(RegistrationException re) {
+                LOGGER.info("cannot watch sink component " + key + "; subscribers have to poll.", re);
+            }
+        }
+        
+        void unwatch() {
+            if(watchedBy == null) 
+                return;
+            try {
+                watchedBy.removeComponentListener(key.compId, this);
+            } catch(RegistrationException re) {
+                LOGGER.info("could not remove watch on " + key, re);
+            }
+            watchedBy = null;
+        }
+        
+        synchronized CompletableFuture<DownstreamSinks> get(PortReference sinkReference, PortHierarchy portHierarchy, SinkReader reader) {
+            final SinkView view = new SinkView(sinkReference.getPortName(), portHierarchy);
+            final long now = System.currentTimeMillis();
+            final long maxAge = watchedBy == null ? shareMillis : WATCHED_MAX_AGE_MILLIS;
+            SharedRead read = reads.get(view);
+            if(read != null && read.generation == generation && 
+                    (!read.result.isDone() || now - read.startedAt <= maxAge)) {
+                return read.result;
+            }
+            final SharedRead started = new SharedRead(generation, now, reader.read(sinkReference, portHierarchy));
+            reads.put(view, started);
+            started.result.whenComplete((sinks, failure) -> {
+                if(failure != null) {
+                    synchronized(SinkWatch.this) {
+                        // the next caller tries again //
+                        reads.remove(view, started);
+                    }
+                }
+            });
+            return started.result;
+        }
+
+        @Override
+        public void componentChanged(ApplicationInstanceId instId, ComponentId compId) {
+            synchronized(this) {
+                generation++;
+            }
+            for(ComponentChangeListener subscriber : subscribers) {
+                subscriber.componentChanged(instId, compId);
+            }
+        }
+    }
+    
+    private static final class SharedRead {
+        
+        final long generation;
+        final long startedAt;
+        final CompletableFuture<DownstreamSinks> result;
+        
+        SharedRead(long generationParam, long startedAtParam, CompletableFuture<DownstreamSinks> resultParam) {
+            generation = generationParam;
+            startedAt = startedAtParam;
+            result = resultParam;
+        }
+    }
+    
+    /** the port of the sink component and the hierarchy the sinks are derived for */
+    private static final class SinkView {
+        
+        final String sinkPortName;
+        final PortHierarchy portHierarchy;
+        
+        SinkView(String sinkPortNameParam, PortHierarchy portHierarchyParam) {
+            sinkPortName = sinkPortNameParam;
+            portHierarchy = portHierarchyParam;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof SinkView)) 
+                return false;
+            SinkView that = (SinkView) o;
+            return sinkPortName.equals(that.sinkPortName) && portHierarchy == that.portHierarchy;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * sinkPortName.hashCode() + System.identityHashCode(portHierarchy);
+        }
+    }
+    
+    private static final class SinkKey {
+        
+        final ApplicationInstanceId instId;
+        final ComponentId compId;
+        
+        SinkKey(ApplicationInstanceId instIdParam, ComponentId compIdParam) {
+            instId = instIdParam;
+            compId = compIdParam;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof SinkKey)) 
+                return false;
+            SinkKey that = (SinkKey) o;
+            return instId.equals(that.instId) && compId.equals(that.compId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * instId.hashCode() + compId.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return instId + "/" + compId;
+        }
+    }
+}
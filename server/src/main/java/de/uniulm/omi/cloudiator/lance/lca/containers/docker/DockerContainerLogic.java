@@ -18,6 +18,8 @@
 
 package de.uniulm.omi.cloudiator.lance.lca.containers.docker;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -31,6 +33,8 @@ import de.uniulm.omi.cloudiator.lance.container.standard.ContainerLogic;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerException;
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.container.environment.BashExportBasedVisitor;
+import de.uniulm.omi.cloudiator.lance.lca.container.environment.CachedEnvironment;
+import de.uniulm.omi.cloudiator.lance.lca.container.environment.EnvironmentRecorder;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.DownstreamAddress;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.InportAccessor;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.NetworkHandler;
@@ -48,6 +52,9 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
         
     private static final Logger LOGGER = LoggerFactory.getLogger(DockerContainerManager.class);
     
+    /** the copy of the exported environment inside the container */
+    private static final String ENVIRONMENT_FILE = "/tmp/.lance_environment";
+    
     private final ComponentInstanceId myId;
     private final DockerConnector client;
     
@@ -58,6 +65,7 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
     private final NetworkHandler networkHandler;
     
     private final DeployableComponent myComponent;
+    private final CachedEnvironment environment = new CachedEnvironment(ENVIRONMENT_FILE);
     
     DockerContainerLogic(ComponentInstanceId id, DockerConnector client, DeployableComponent comp,  
                             DeploymentContext ctx, OperatingSystem os, NetworkHandler network, 
@@ -159,14 +167,17 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
     public void prepare(HandlerType type) throws ContainerException {
         if(type == LifecycleHandlerType.INSTALL) {
             preInstallAction();
+        } else if(type == LifecycleHandlerType.PRE_START && NetworkHandler.waitsForSinksBeforePreStart()) {
+            // the sinks may not have been known when the environment was set up for INSTALL //
+            prepareEnvironment(shellFactory.createShell().shell);
         }
     }
 
     @Override
-    public void preprocessPortUpdate(PortDiff<DownstreamAddress> diffSet) throws ContainerException {
+    public void preprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs) throws ContainerException {
     	try {
     		DockerShell shell = client.getSideShell(myId);
-    		prepareEnvironment(shell, diffSet);
+    		refreshEnvironment(shell, diffs);
     		shellFactory.installDockerShell(shell);
     	} catch(DockerException de) {
     		throw new ContainerException("cannot create shell for port updates.", de);
@@ -174,7 +185,7 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
     }
     
     @Override
-    public void postprocessPortUpdate(PortDiff<DownstreamAddress> diffSet) {
+    public void postprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs) {
     	shellFactory.closeShell();
     }
     
@@ -192,7 +203,7 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
 		// nothing special to do; just create a shell and prepare an environment //
 		try {
     		DockerShell shell = client.getSideShell(myId);
-    		prepareEnvironment(shell);
+    		refreshEnvironment(shell, Collections.<PortDiff<DownstreamAddress>>emptyList());
     		shellFactory.installDockerShell(shell);
     	} catch(DockerException de) {
     		throw new ContainerException("cannot create shell for port updates.", de);
@@ -229,15 +240,23 @@ public class DockerContainerLogic implements ContainerLogic, LifecycleActionInte
         }
     }
     
+    /** exports the whole environment to the shell and caches it in the container */
     private void prepareEnvironment(DockerShell dshell) {
-    	prepareEnvironment(dshell, null);
+    	environment.exportAll(dshell, collectEnvironment(Collections.<PortDiff<DownstreamAddress>>emptyList()));
+    }
+    
+    /** restores the cached environment in a side shell and exports only what has changed */
+    private void refreshEnvironment(DockerShell dshell, List<PortDiff<DownstreamAddress>> diffs) {
+    	environment.refresh(dshell, collectEnvironment(diffs));
     }
     
-    private void prepareEnvironment(DockerShell dshell, PortDiff<DownstreamAddress> diff) {
-        BashExportBasedVisitor visitor = new BashExportBasedVisitor(dshell);
+    private Map<String, String> collectEnvironment(List<PortDiff<DownstreamAddress>> diffs) {
+        EnvironmentRecorder recorder = new EnvironmentRecorder();
+        BashExportBasedVisitor visitor = new BashExportBasedVisitor(recorder);
         visitor.addEnvironmentVariable("TERM", "dumb");
-        networkHandler.accept(visitor, diff);
+        networkHandler.accept(visitor, diffs);
         myComponent.accept(deploymentContext, visitor);
+        return recorder.getVariables();
     }
     
     private void executeCreation() throws DockerException {
@@ -96,6 +96,7 @@ public class DockerContainerManager implements ContainerManager {
         
         try { 
             accessor.init(id); 
+            accessor.startLeaseRenewal(hostContext);
         } catch(RegistrationException re) { 
             throw new ContainerException("cannot start container, because registry not available", re); 
         }
@@ -43,6 +43,9 @@ import de.uniulm.omi.cloudiator.lance.lifecycle.LifecycleHandlerType;
 import de.uniulm.omi.cloudiator.lance.lifecycle.LifecycleStore;
 import de.uniulm.omi.cloudiator.lance.lifecycle.detector.DetectorType;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -134,6 +137,9 @@ public class PlainContainerLogic implements ContainerLogic, LifecycleActionInter
     @Override public void prepare(HandlerType type) {
         if (type == LifecycleHandlerType.INSTALL) {
             preInstallAction();
+        } else if (type == LifecycleHandlerType.PRE_START && NetworkHandler.waitsForSinksBeforePreStart()) {
+            // the sinks may not have been known when the environment was set up for INSTALL //
+            preInstallAction();
         }
 
     }
@@ -146,14 +152,14 @@ public class PlainContainerLogic implements ContainerLogic, LifecycleActionInter
 
             PowershellExportBasedVisitor visitor =
                 new PowershellExportBasedVisitor(plainShellWrapper.plainShell);
-            networkHandler.accept(visitor, null);
+            networkHandler.accept(visitor, Collections.<PortDiff<DownstreamAddress>>emptyList());
             this.deployableComponent.accept(this.deploymentContext, visitor);
 
         } else if (this.os.getFamily().equals(OperatingSystemFamily.LINUX)) {
             BashExportBasedVisitor visitor =
                 new BashExportBasedVisitor(plainShellWrapper.plainShell);
 
-            networkHandler.accept(visitor, null);
+            networkHandler.accept(visitor, Collections.<PortDiff<DownstreamAddress>>emptyList());
             this.deployableComponent.accept(this.deploymentContext, visitor);
 
         } else {
@@ -179,12 +185,12 @@ public class PlainContainerLogic implements ContainerLogic, LifecycleActionInter
     }
 
 	@Override
-	public void postprocessPortUpdate(PortDiff<DownstreamAddress> diff) {
+	public void postprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs) {
 		plainShellFactory.closeShell();
 	}
 
 	@Override
-	public void preprocessPortUpdate(PortDiff<DownstreamAddress> diff)
+	public void preprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs)
 			throws ContainerException {
 
         //TODO: again duplicated code, needs refactoring
@@ -197,14 +203,14 @@ public class PlainContainerLogic implements ContainerLogic, LifecycleActionInter
 
             PowershellExportBasedVisitor visitor =
                     new PowershellExportBasedVisitor(plainShellWrapper.plainShell);
-            networkHandler.accept(visitor, diff);
+            networkHandler.accept(visitor, diffs);
             this.deployableComponent.accept(this.deploymentContext, visitor);
 
         } else if (this.os.getFamily().equals(OperatingSystemFamily.LINUX)) {
             BashExportBasedVisitor visitor =
                     new BashExportBasedVisitor(plainShellWrapper.plainShell);
 
-            networkHandler.accept(visitor, diff);
+            networkHandler.accept(visitor, diffs);
             this.deployableComponent.accept(this.deploymentContext, visitor);
 
         } else {
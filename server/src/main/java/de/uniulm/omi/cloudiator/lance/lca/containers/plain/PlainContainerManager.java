@@ -81,6 +81,7 @@ public class PlainContainerManager implements ContainerManager {
 
         try {
             accessor.init(componentInstanceId);
+            accessor.startLeaseRenewal(this.hostContext);
         } catch (RegistrationException re) {
             throw new ContainerException("cannot start container, because registry not available",
                 re);
@@ -18,6 +18,8 @@
 
 package de.uniulm.omi.cloudiator.lance.lifecycle;
 
+import java.util.List;
+
 import de.uniulm.omi.cloudiator.lance.lca.container.ComponentInstanceId;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerException;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.DownstreamAddress;
@@ -32,9 +34,11 @@ public interface LifecycleActionInterceptor {
 
 	ComponentInstanceId getComponentId();
 
-	void postprocessPortUpdate(PortDiff<DownstreamAddress> diff);
+	/** @param diffs the diffs of all ports that are updated in one session */
+	void postprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs);
 
-	void preprocessPortUpdate(PortDiff<DownstreamAddress> diff) throws ContainerException;
+	/** @param diffs the diffs of all ports that are updated in one session */
+	void preprocessPortUpdate(List<PortDiff<DownstreamAddress>> diffs) throws ContainerException;
 
 	void postprocessDetector(DetectorType type);
 
@@ -18,13 +18,12 @@
 
 package de.uniulm.omi.cloudiator.lance.lifecycle;
 
-import de.uniulm.omi.cloudiator.lance.application.component.OutPort;
+import java.util.List;
+
 import de.uniulm.omi.cloudiator.lance.lca.GlobalRegistryAccessor;
 import de.uniulm.omi.cloudiator.lance.lca.container.ContainerException;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.DownstreamAddress;
 import de.uniulm.omi.cloudiator.lance.lca.container.port.PortDiff;
-import de.uniulm.omi.cloudiator.lance.lca.registry.RegistrationException;
-import de.uniulm.omi.cloudiator.lance.lifecycle.detector.PortUpdateHandler;
 import de.uniulm.omi.cloudiator.lance.util.state.StateMachine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,11 +77,8 @@ public final class LifecycleController {
     }
 
     private void updateStateInRegistry(LifecycleHandlerType type) {
-        try {
-            accessor.updateInstanceState(interceptor.getComponentId(), type);
-        } catch (RegistrationException ex) {
-            LOGGER.warn("could not update status in registry.", ex);
-        }
+        // does not wait for the registry; failures are logged by the write-behind buffer //
+        accessor.updateInstanceState(interceptor.getComponentId(), type);
     }
 
     public synchronized void blockingInit() {
@@ -118,15 +114,19 @@ public final class LifecycleController {
             "not calling stop handler; this is not part of the state machine (yet).");
     }
 
-
-    public synchronized void blockingUpdatePorts(@SuppressWarnings("unused") OutPort port,
-        PortUpdateHandler handler, PortDiff<DownstreamAddress> diff) throws ContainerException {
+    /**
+     * runs the update handlers of all ports in one session, so that the 
+     * environment is set up only once; it contains the new sinks of all ports.
+     */
+    public synchronized void blockingUpdatePorts(List<PortDiff<DownstreamAddress>> diffs) throws ContainerException {
         boolean preprocessed = false;
         try {
-            interceptor.preprocessPortUpdate(diff);
+            interceptor.preprocessPortUpdate(diffs);
             preprocessed = true;
-            LOGGER.info("updating ports via port handler.");
-            handler.execute(ec);
+            for (PortDiff<DownstreamAddress> diff : diffs) {
+                LOGGER.info("updating ports via port handler: " + diff);
+                diff.getPort().getUpdateHandler().execute(ec);
+            }
         } catch (ContainerException ce) {
             LOGGER
                 .warn("Exception when executing state transition. this is not thoroughly handled.",
@@ -135,7 +135,7 @@ public final class LifecycleController {
             // updateStateInRegistry(LifecycleHandlerType.START);
         } finally {
             if (preprocessed) {
-                interceptor.postprocessPortUpdate(diff);
+                interceptor.postprocessPortUpdate(diffs);
                 updateStateInRegistry(LifecycleHandlerType.START);
             }
         }